@@ -0,0 +1,222 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import com.atlassian.crowd.exception.InactiveAccountException;
+import com.atlassian.crowd.exception.InvalidAuthenticationException;
+import com.atlassian.crowd.model.group.Group;
+import com.atlassian.crowd.model.group.GroupTemplate;
+import com.atlassian.crowd.model.group.Membership;
+import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.model.user.UserTemplate;
+import com.atlassian.crowd.service.client.CrowdClient;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Синтетический каталог Crowd для измерений производительности.
+ * <p>
+ * Каталог генерируется детерминированно: пользователь входит в несколько групп (в среднем около пяти),
+ * группы выбираются неравномерно - небольшое число групп содержит большую часть пользователей.
+ * Часть групп вложена в другие группы, вложенность не содержит циклов.
+ *
+ * @author Vitaly Ogoltsov
+ */
+final class CrowdBenchmarkDirectory {
+
+    private static final long SEED = 20180601L;
+
+    /**
+     * Пароль всех пользователей каталога.
+     */
+    static final String PASSWORD = "benchmark";
+
+    private final int userCount;
+    private final int groupCount;
+
+    private final List<Group> groups;
+    private final List<User> users;
+    private final List<Membership> memberships;
+    private final Map<String, User> usersByName;
+
+    /**
+     * Отказ в аутентификации создаётся один раз: измеряются затраты сервера, а не клиента Crowd.
+     */
+    private final InvalidAuthenticationException invalidAuthentication =
+            new InvalidAuthenticationException("Failed to authenticate principal, password was invalid");
+
+
+    /**
+     * @param userCount  количество пользователей
+     * @param groupCount количество групп
+     */
+    CrowdBenchmarkDirectory(int userCount, int groupCount) {
+        this.userCount = userCount;
+        this.groupCount = groupCount;
+        Random random = new Random(SEED);
+        this.groups = new ArrayList<>(groupCount);
+        for (int i = 0; i < groupCount; i++) {
+            GroupTemplate group = new GroupTemplate(groupName(i));
+            group.setDescription("Benchmark group " + i);
+            group.setActive(true);
+            groups.add(group);
+        }
+        this.users = new ArrayList<>(userCount);
+        for (int i = 0; i < userCount; i++) {
+            UserTemplate user = new UserTemplate(userName(i));
+            user.setFirstName("First" + i);
+            user.setLastName("Last" + i);
+            user.setDisplayName("First" + i + " Last" + i);
+            user.setEmailAddress(userName(i) + "@example.com");
+            user.setActive(i % 50 != 0);
+            users.add(user);
+        }
+        this.usersByName = new HashMap<>(userCount * 2);
+        for (User user : users) {
+            usersByName.put(user.getName(), user);
+        }
+        List<Set<String>> userNames = new ArrayList<>(groupCount);
+        List<Set<String>> childGroupNames = new ArrayList<>(groupCount);
+        for (int i = 0; i < groupCount; i++) {
+            userNames.add(new LinkedHashSet<>());
+            childGroupNames.add(new LinkedHashSet<>());
+        }
+        for (int i = 0; i < userCount; i++) {
+            // количество групп пользователя распределено геометрически, номер группы смещён к популярным группам
+            int count = 1;
+            while (count < groupCount && random.nextInt(5) != 0) {
+                count++;
+            }
+            for (int j = 0; j < count; j++) {
+                userNames.get((int) (groupCount * Math.pow(random.nextDouble(), 3))).add(userName(i));
+            }
+        }
+        for (int i = 1; i < groupCount; i++) {
+            // группа вкладывается только в группу с меньшим номером, поэтому циклов нет
+            if (random.nextInt(5) == 0) {
+                childGroupNames.get(random.nextInt(i)).add(groupName(i));
+            }
+        }
+        this.memberships = new ArrayList<>(groupCount);
+        for (int i = 0; i < groupCount; i++) {
+            memberships.add(new BenchmarkMembership(groupName(i), userNames.get(i), childGroupNames.get(i)));
+        }
+    }
+
+
+    static String userName(int i) {
+        return "user" + i;
+    }
+
+    static String groupName(int i) {
+        return "group" + i;
+    }
+
+    int getUserCount() {
+        return userCount;
+    }
+
+    int getGroupCount() {
+        return groupCount;
+    }
+
+    List<Group> getGroups() {
+        return groups;
+    }
+
+    List<User> getUsers() {
+        return users;
+    }
+
+    List<Membership> getMemberships() {
+        return memberships;
+    }
+
+    /**
+     * @return клиент Crowd, возвращающий каталог для полной синхронизации и аутентифицирующий активных пользователей
+     * с паролем {@link #PASSWORD}; остальные операции не поддерживаются
+     */
+    CrowdClient crowdClient() {
+        return (CrowdClient) Proxy.newProxyInstance(
+                CrowdClient.class.getClassLoader(),
+                new Class<?>[]{CrowdClient.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getMemberships":
+                            return memberships;
+                        case "searchGroups":
+                            return page(groups, (Integer) args[1], (Integer) args[2]);
+                        case "searchUsers":
+                            return page(users, (Integer) args[1], (Integer) args[2]);
+                        case "authenticateUser":
+                            return authenticate((String) args[0], (String) args[1]);
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return "CrowdBenchmarkDirectory[users = " + userCount + ", groups = " + groupCount + "]";
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                }
+        );
+    }
+
+
+    private User authenticate(String userName, String password) throws InvalidAuthenticationException, InactiveAccountException {
+        User user = usersByName.get(userName);
+        if (user == null || !PASSWORD.equals(password)) {
+            throw invalidAuthentication;
+        }
+        if (!user.isActive()) {
+            throw new InactiveAccountException(userName);
+        }
+        return user;
+    }
+
+    private static <T> List<T> page(List<T> list, int start, int size) {
+        if (start >= list.size()) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(list.subList(start, Math.min(list.size(), start + size)));
+    }
+
+
+
+    private static final class BenchmarkMembership implements Membership {
+
+        private final String groupName;
+        private final Set<String> userNames;
+        private final Set<String> childGroupNames;
+
+        private BenchmarkMembership(String groupName, Set<String> userNames, Set<String> childGroupNames) {
+            this.groupName = groupName;
+            this.userNames = userNames;
+            this.childGroupNames = childGroupNames;
+        }
+
+        @Override
+        public String getGroupName() {
+            return groupName;
+        }
+
+        @Override
+        public Set<String> getUserNames() {
+            return userNames;
+        }
+
+        @Override
+        public Set<String> getChildGroupNames() {
+            return childGroupNames;
+        }
+
+    }
+
+}
@@ -0,0 +1,116 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.util.CrowdLdapConstants;
+import com.atlassian.crowd.model.group.Group;
+import com.atlassian.crowd.model.group.Membership;
+import com.atlassian.crowd.model.user.User;
+import org.apache.directory.shared.ldap.constants.SchemaConstants;
+import org.apache.directory.shared.ldap.entry.DefaultServerEntry;
+import org.apache.directory.shared.ldap.entry.ServerEntry;
+import org.apache.directory.shared.ldap.exception.LdapException;
+import org.apache.directory.shared.ldap.name.DN;
+import org.apache.directory.shared.ldap.name.RDN;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Прежнее представление кеша каталога для сравнения занимаемой кучи: по одной {@link DefaultServerEntry}
+ * на группу и пользователя в {@code Map<String, ServerEntry>} по имени, значения member/memberOf - строки DN.
+ * <p>
+ * Записи строятся так же, как их строил {@link CrowdLdapRepository} до перехода на наборы записей:
+ * учитываются прямые членства активных пользователей в активных группах.
+ *
+ * @author Vitaly Ogoltsov
+ */
+final class CrowdEntryMapBaseline {
+
+    private final SchemaManager schemaManager;
+    private final DN groupsDn;
+    private final DN usersDn;
+
+    private final Map<String, ServerEntry> groupEntriesByName = new HashMap<>();
+    private final Map<String, ServerEntry> userEntriesByName = new HashMap<>();
+
+
+    private CrowdEntryMapBaseline(SchemaManager schemaManager, String suffix) throws LdapException {
+        this.schemaManager = schemaManager;
+        this.groupsDn = new DN(suffix).add(CrowdLdapConstants.GROUPS_RDN);
+        this.usersDn = new DN(suffix).add(CrowdLdapConstants.USERS_RDN);
+    }
+
+
+    /**
+     * Строит записи групп и пользователей синтетического каталога.
+     */
+    static CrowdEntryMapBaseline of(SchemaManager schemaManager, String suffix, CrowdBenchmarkDirectory directory) throws LdapException {
+        CrowdEntryMapBaseline baseline = new CrowdEntryMapBaseline(schemaManager, suffix);
+        Map<String, Boolean> activeGroups = new HashMap<>();
+        for (Group group : directory.getGroups()) {
+            activeGroups.put(group.getName(), group.isActive());
+            baseline.groupEntriesByName.put(group.getName(), baseline.createGroupEntry(group));
+        }
+        Map<String, Boolean> activeUsers = new HashMap<>();
+        for (User user : directory.getUsers()) {
+            activeUsers.put(user.getName(), user.isActive());
+            baseline.userEntriesByName.put(user.getName(), baseline.createUserEntry(user));
+        }
+        for (Membership membership : directory.getMemberships()) {
+            if (!activeGroups.getOrDefault(membership.getGroupName(), false)) {
+                continue;
+            }
+            ServerEntry groupEntry = baseline.groupEntriesByName.get(membership.getGroupName());
+            for (String userName : membership.getUserNames()) {
+                if (activeUsers.getOrDefault(userName, false)) {
+                    groupEntry.add(CrowdLdapConstants.MEMBER_AT, baseline.userDn(userName).getName());
+                    baseline.userEntriesByName.get(userName)
+                            .add(CrowdLdapConstants.MEMBEROF_AT, baseline.groupDn(membership.getGroupName()).getName());
+                }
+            }
+        }
+        return baseline;
+    }
+
+
+    int getGroupCount() {
+        return groupEntriesByName.size();
+    }
+
+    int getUserCount() {
+        return userEntriesByName.size();
+    }
+
+
+    private ServerEntry createGroupEntry(Group group) throws LdapException {
+        ServerEntry groupEntry = new DefaultServerEntry(schemaManager, groupDn(group.getName()));
+        groupEntry.put(SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.GROUP_OF_NAMES_OC);
+        groupEntry.put(CrowdLdapConstants.GROUP_ID_AT, group.getName());
+        groupEntry.put("description", group.getDescription());
+        return groupEntry;
+    }
+
+    private ServerEntry createUserEntry(User user) throws LdapException {
+        ServerEntry userEntry = new DefaultServerEntry(schemaManager, userDn(user.getName()));
+        userEntry.put(SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.TOP_OC, SchemaConstants.ORGANIZATIONAL_PERSON_OC,
+                SchemaConstants.PERSON_OC, SchemaConstants.INET_ORG_PERSON_OC);
+        userEntry.put(SchemaConstants.CN_AT, user.getDisplayName());
+        userEntry.put(CrowdLdapConstants.USER_ID_AT, user.getName());
+        userEntry.put("mail", user.getEmailAddress());
+        userEntry.put("givenname", user.getFirstName());
+        userEntry.put(SchemaConstants.SN_AT, user.getLastName());
+        userEntry.put(SchemaConstants.OU_AT, "users");
+        return userEntry;
+    }
+
+    private DN groupDn(String groupName) throws LdapException {
+        return new DN().addAll(groupsDn).add(new RDN(CrowdLdapConstants.GROUP_ID_AT, groupName))
+                .normalize(schemaManager.getNormalizerMapping());
+    }
+
+    private DN userDn(String userName) throws LdapException {
+        return new DN().addAll(usersDn).add(new RDN(CrowdLdapConstants.USER_ID_AT, userName))
+                .normalize(schemaManager.getNormalizerMapping());
+    }
+
+}
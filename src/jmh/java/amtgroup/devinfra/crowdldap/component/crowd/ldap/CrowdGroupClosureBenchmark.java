@@ -0,0 +1,90 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Вложенные группы при публикации каталога: построение {@link CrowdGroupClosure}
+ * и дополнение прямых членств всех пользователей группами, в которые они входят транзитивно.
+ * <p>
+ * Группа вложена в группу с меньшим номером с вероятностью 1/5, часть вложений образует циклы.
+ *
+ * @author Vitaly Ogoltsov
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class CrowdGroupClosureBenchmark {
+
+    @Param({"50000"})
+    public int users;
+
+    @Param({"500", "5000"})
+    public int groups;
+
+    private int[][] parents;
+    private int[][] memberOf;
+    private CrowdGroupClosure closure;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(groups);
+        parents = new int[groups][];
+        for (int i = 0; i < groups; i++) {
+            if (i > 0 && random.nextInt(5) == 0) {
+                parents[i] = new int[]{random.nextInt(i)};
+            } else if (i > 0 && random.nextInt(100) == 0) {
+                // вложение в группу с большим номером может замкнуть цикл
+                parents[i] = new int[]{random.nextInt(i), i + random.nextInt(groups - i)};
+            } else {
+                parents[i] = new int[0];
+            }
+        }
+        memberOf = new int[users][];
+        for (int i = 0; i < users; i++) {
+            int count = 1;
+            while (count < groups && random.nextInt(5) != 0) {
+                count++;
+            }
+            int[] ids = new int[count];
+            for (int j = 0; j < count; j++) {
+                ids[j] = (int) (groups * Math.pow(random.nextDouble(), 3));
+            }
+            memberOf[i] = Arrays.stream(ids).sorted().distinct().toArray();
+        }
+        closure = new CrowdGroupClosure(parents);
+    }
+
+
+    @Benchmark
+    public CrowdGroupClosure closure() {
+        return new CrowdGroupClosure(parents);
+    }
+
+    @Benchmark
+    public void expand(Blackhole blackhole) {
+        for (int[] ids : memberOf) {
+            blackhole.consume(closure.expand(ids));
+        }
+    }
+
+}
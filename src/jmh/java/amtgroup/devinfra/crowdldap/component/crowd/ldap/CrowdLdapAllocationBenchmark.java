@@ -0,0 +1,150 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapProperties;
+import org.apache.directory.server.core.LdapPrincipal;
+import org.apache.directory.server.core.entry.ClonedServerEntry;
+import org.apache.directory.server.core.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.interceptor.context.BindOperationContext;
+import org.apache.directory.server.core.interceptor.context.EntryOperationContext;
+import org.apache.directory.server.core.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.interceptor.context.SearchOperationContext;
+import org.apache.directory.shared.ldap.filter.SearchScope;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.naming.directory.SearchControls;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Выделение памяти на одну операцию crowd partition и аутентификации.
+ * <p>
+ * Контексты операций создаются заранее, поэтому измеряется только работа сервера.
+ * Результат измерения - {@code gc.alloc.rate.norm} профилировщика {@code -prof gc}, включённого в профиле jmh:
+ * проверка существования записи не должна выделять память, неуспешная аутентификация - заполнять стек вызовов.
+ *
+ * @author Vitaly Ogoltsov
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class CrowdLdapAllocationBenchmark {
+
+    private static final int USERS = 10000;
+
+
+    @Benchmark
+    public boolean hasEntry(PartitionState state) {
+        return state.fixture.getCrowdLdapPartition().hasEntry(state.hasEntryContext);
+    }
+
+    @Benchmark
+    public ClonedServerEntry lookup(PartitionState state) {
+        return state.fixture.getCrowdLdapPartition().lookup(state.lookupContext);
+    }
+
+    @Benchmark
+    public void search(PartitionState state, Blackhole blackhole) throws Exception {
+        EntryFilteringCursor cursor = state.fixture.getCrowdLdapPartition().search(state.searchContext);
+        try {
+            while (cursor.next()) {
+                blackhole.consume(cursor.get());
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Benchmark
+    public LdapPrincipal bindCached(PartitionState state) {
+        return state.fixture.getCrowdAuthenticator().authenticate(state.bindContext);
+    }
+
+    @Benchmark
+    public Object bindFailed(BindState state) {
+        try {
+            return state.fixture.getCrowdAuthenticator().authenticate(state.bindContext);
+        } catch (RuntimeException e) {
+            return e;
+        }
+    }
+
+
+
+    @State(Scope.Benchmark)
+    public static class PartitionState {
+
+        private CrowdLdapBenchmarkFixture fixture;
+        private EntryOperationContext hasEntryContext;
+        private LookupOperationContext lookupContext;
+        private SearchOperationContext searchContext;
+        private BindOperationContext bindContext;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            CrowdBenchmarkDirectory directory = new CrowdBenchmarkDirectory(USERS, USERS / 10);
+            fixture = new CrowdLdapBenchmarkFixture(directory, new CrowdLdapProperties());
+            String userDn = "uid=" + CrowdBenchmarkDirectory.userName(1) + ",ou=users,dc=crowd";
+            hasEntryContext = new EntryOperationContext(fixture.getDirectoryService().getAdminSession(), fixture.dn(userDn));
+            lookupContext = new LookupOperationContext(fixture.getDirectoryService().getAdminSession(), fixture.dn(userDn));
+            SearchControls searchControls = new SearchControls();
+            searchControls.setSearchScope(SearchScope.ONELEVEL.getScope());
+            searchContext = new SearchOperationContext(
+                    fixture.getDirectoryService().getAdminSession(),
+                    fixture.dn("ou=users,dc=crowd"),
+                    fixture.filter("(uid=" + CrowdBenchmarkDirectory.userName(1) + ")"),
+                    searchControls
+            );
+            bindContext = fixture.bindContext(fixture.dn(userDn), CrowdBenchmarkDirectory.PASSWORD);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            fixture.close();
+        }
+
+    }
+
+    @State(Scope.Benchmark)
+    public static class BindState {
+
+        /**
+         * Ограничение неуспешных аутентификаций: {@code true} - повторные попытки отклоняются без обращения к Crowd,
+         * {@code false} - каждую попытку отклоняет Crowd.
+         */
+        @Param({"true", "false"})
+        public boolean bindThrottle;
+
+        private CrowdLdapBenchmarkFixture fixture;
+        private BindOperationContext bindContext;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            CrowdLdapProperties crowdLdapProperties = new CrowdLdapProperties();
+            crowdLdapProperties.getBindThrottle().setEnabled(bindThrottle);
+            fixture = new CrowdLdapBenchmarkFixture(new CrowdBenchmarkDirectory(USERS, USERS / 10), crowdLdapProperties);
+            String userDn = "uid=" + CrowdBenchmarkDirectory.userName(1) + ",ou=users,dc=crowd";
+            bindContext = fixture.bindContext(fixture.dn(userDn), "wrong-" + CrowdBenchmarkDirectory.PASSWORD);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            fixture.close();
+        }
+
+    }
+
+}
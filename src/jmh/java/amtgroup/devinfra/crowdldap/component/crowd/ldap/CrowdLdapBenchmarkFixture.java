@@ -0,0 +1,192 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapConfiguration;
+import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapProperties;
+import amtgroup.devinfra.crowdldap.component.crowd.util.CrowdLdapFilter;
+import amtgroup.devinfra.crowdldap.component.ldap.config.LdapServerConfiguration;
+import amtgroup.devinfra.crowdldap.component.ldap.config.LdapServerProperties;
+import com.atlassian.crowd.service.client.CrowdClient;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.io.FileUtils;
+import org.apache.directory.server.core.DirectoryService;
+import org.apache.directory.server.core.entry.ClonedServerEntry;
+import org.apache.directory.server.core.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.interceptor.context.BindOperationContext;
+import org.apache.directory.server.core.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.interceptor.context.SearchOperationContext;
+import org.apache.directory.server.core.normalization.FilterNormalizingVisitor;
+import org.apache.directory.server.ldap.LdapServer;
+import org.apache.directory.shared.ldap.filter.ExprNode;
+import org.apache.directory.shared.ldap.filter.FilterParser;
+import org.apache.directory.shared.ldap.filter.SearchScope;
+import org.apache.directory.shared.ldap.name.DN;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.apache.directory.shared.ldap.schema.normalizers.ConcreteNameComponentNormalizer;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import javax.naming.directory.SearchControls;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+/**
+ * Окружение измерений: служба каталогов ApacheDS со схемой сервера и crowd partition,
+ * синхронизированная с синтетическим каталогом Crowd.
+ * <p>
+ * Компоненты создаются так же, как в конфигурации приложения, но без контекста Spring и без LDAP-транспорта.
+ * Аутентификация выполняется по паролю {@link CrowdBenchmarkDirectory#PASSWORD}.
+ * Рабочая директория создаётся во временной директории и удаляется при закрытии.
+ *
+ * @author Vitaly Ogoltsov
+ */
+final class CrowdLdapBenchmarkFixture {
+
+    private final File workingDirectory;
+    private final SchemaManager schemaManager;
+    private final DirectoryService directoryService;
+    private final ThreadPoolTaskExecutor syncExecutor;
+    private final ThreadPoolTaskExecutor bindExecutor;
+    private final CrowdLdapFilter crowdLdapFilter;
+    private final CrowdLdapRepository crowdLdapRepository;
+    private final CrowdLdapPartition crowdLdapPartition;
+    private final CrowdAuthenticator crowdAuthenticator;
+
+
+    /**
+     * @param directory           синтетический каталог Crowd
+     * @param crowdLdapProperties настройки crowd partition; сохранение модели и инкрементальная синхронизация отключаются,
+     *                            чтобы каждая синхронизация была полной
+     */
+    CrowdLdapBenchmarkFixture(CrowdBenchmarkDirectory directory, CrowdLdapProperties crowdLdapProperties) throws Exception {
+        this.workingDirectory = Files.createTempDirectory("crowd-ldap-benchmark").toFile();
+        System.setProperty("ldap.server.work.dir", workingDirectory.getAbsolutePath());
+        crowdLdapProperties.setPersistSnapshot(false);
+        crowdLdapProperties.setIncrementalSync(false);
+        // служба каталогов
+        LdapServerProperties ldapServerProperties = new LdapServerProperties();
+        LdapServerConfiguration ldapServerConfiguration = new LdapServerConfiguration();
+        this.schemaManager = ldapServerConfiguration.schemaManager(ldapServerProperties);
+        this.directoryService = ldapServerConfiguration.directoryService(
+                ldapServerProperties,
+                schemaManager,
+                ldapServerConfiguration.schemaPartition(schemaManager),
+                Collections.emptySet()
+        );
+        // crowd partition
+        this.syncExecutor = new CrowdLdapConfiguration().crowdSyncExecutor(crowdLdapProperties);
+        this.syncExecutor.initialize();
+        this.crowdLdapFilter = new CrowdLdapFilter(crowdLdapProperties, schemaManager);
+        CrowdLdapMetrics metrics = new CrowdLdapMetrics(crowdLdapProperties, new SimpleMeterRegistry());
+        CrowdClient crowdClient = directory.crowdClient();
+        CrowdBindCache bindCache = new CrowdBindCache(crowdLdapProperties);
+        this.crowdLdapRepository = new CrowdLdapRepository(
+                crowdLdapProperties,
+                crowdClient,
+                directoryService,
+                bindCache,
+                syncExecutor,
+                metrics
+        );
+        this.crowdLdapPartition = new CrowdLdapPartition(
+                crowdLdapProperties,
+                crowdLdapRepository,
+                crowdLdapFilter,
+                directoryService,
+                new LdapServer(),
+                metrics,
+                new CrowdLdapSearchLog(crowdLdapProperties)
+        );
+        this.crowdLdapPartition.init();
+        // аутентификация
+        this.bindExecutor = new CrowdLdapConfiguration().crowdBindExecutor(crowdLdapProperties);
+        this.bindExecutor.initialize();
+        CrowdCredentialHasher credentialHasher = new CrowdCredentialHasher();
+        this.crowdAuthenticator = new CrowdAuthenticator(
+                crowdLdapProperties,
+                crowdClient,
+                bindCache,
+                new CrowdBindThrottle(crowdLdapProperties, credentialHasher),
+                credentialHasher,
+                bindExecutor,
+                metrics
+        );
+    }
+
+
+    SchemaManager getSchemaManager() {
+        return schemaManager;
+    }
+
+    CrowdLdapFilter getCrowdLdapFilter() {
+        return crowdLdapFilter;
+    }
+
+    CrowdLdapRepository getCrowdLdapRepository() {
+        return crowdLdapRepository;
+    }
+
+    CrowdLdapPartition getCrowdLdapPartition() {
+        return crowdLdapPartition;
+    }
+
+    CrowdAuthenticator getCrowdAuthenticator() {
+        return crowdAuthenticator;
+    }
+
+    DirectoryService getDirectoryService() {
+        return directoryService;
+    }
+
+    /**
+     * @return фильтр, нормализованный так же, как его нормализует служба каталогов перед обращением к partition
+     */
+    ExprNode filter(String filter) throws Exception {
+        FilterNormalizingVisitor visitor = new FilterNormalizingVisitor(new ConcreteNameComponentNormalizer(schemaManager), schemaManager);
+        return (ExprNode) FilterParser.parse(filter).accept(visitor);
+    }
+
+    /**
+     * @return нормализованный DN
+     */
+    DN dn(String dn) throws Exception {
+        return DN.normalize(dn, schemaManager.getNormalizerMapping());
+    }
+
+    /**
+     * Выполняет поиск в crowd partition от имени администратора, возвращая все пользовательские атрибуты.
+     */
+    EntryFilteringCursor search(DN base, SearchScope scope, ExprNode filter) throws Exception {
+        SearchControls searchControls = new SearchControls();
+        searchControls.setSearchScope(scope.getScope());
+        return crowdLdapPartition.search(new SearchOperationContext(directoryService.getAdminSession(), base, filter, searchControls));
+    }
+
+    /**
+     * Выполняет чтение записи crowd partition от имени администратора.
+     */
+    ClonedServerEntry lookup(DN dn) throws Exception {
+        return crowdLdapPartition.lookup(new LookupOperationContext(directoryService.getAdminSession(), dn));
+    }
+
+    /**
+     * @return контекст простой аутентификации от имени администратора
+     */
+    BindOperationContext bindContext(DN dn, String password) throws Exception {
+        BindOperationContext bindContext = new BindOperationContext(directoryService.getAdminSession());
+        bindContext.setDn(dn);
+        bindContext.setCredentials(password.getBytes(StandardCharsets.UTF_8));
+        return bindContext;
+    }
+
+    void close() throws Exception {
+        try {
+            directoryService.shutdown();
+            syncExecutor.shutdown();
+            bindExecutor.shutdown();
+        } finally {
+            FileUtils.deleteDirectory(workingDirectory);
+        }
+    }
+
+}
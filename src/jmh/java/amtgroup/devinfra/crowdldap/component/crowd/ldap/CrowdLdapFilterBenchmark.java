@@ -0,0 +1,117 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapProperties;
+import amtgroup.devinfra.crowdldap.component.crowd.util.CrowdLdapEntryView;
+import amtgroup.devinfra.crowdldap.component.crowd.util.CrowdLdapFilter;
+import org.apache.directory.shared.ldap.entry.ServerEntry;
+import org.apache.directory.shared.ldap.filter.ExprNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Фильтры поиска: получение предиката {@link CrowdLdapFilter#of} из кеша и с компиляцией,
+ * проверка записей пользователей скомпилированным предикатом.
+ *
+ * @author Vitaly Ogoltsov
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class CrowdLdapFilterBenchmark {
+
+    private static final int FILTERS = 512;
+    private static final int ENTRIES = 1024;
+
+    @Param({"10000"})
+    public int users;
+
+    @Param({
+            "(uid=%s)",
+            "(&(objectClass=inetOrgPerson)(|(uid=%s)(mail=%s@example.com)))",
+            "(&(objectClass=inetOrgPerson)(memberOf=cn=%s,ou=groups,dc=crowd))",
+            "(&(objectClass=inetOrgPerson)(!(uid=%s))(cn=*%s*))"
+    })
+    public String filter;
+
+    private CrowdLdapBenchmarkFixture fixture;
+    private CrowdLdapFilter uncachedFilter;
+    private ExprNode[] filters;
+    private List<Predicate<CrowdLdapEntryView>> predicates;
+    private CrowdLdapEntryView[] entries;
+    private int next;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        CrowdBenchmarkDirectory directory = new CrowdBenchmarkDirectory(users, users / 10);
+        fixture = new CrowdLdapBenchmarkFixture(directory, new CrowdLdapProperties());
+        CrowdLdapProperties uncachedProperties = new CrowdLdapProperties();
+        uncachedProperties.setFilterCacheSize(0);
+        uncachedFilter = new CrowdLdapFilter(uncachedProperties, fixture.getSchemaManager());
+        Random random = new Random(FILTERS);
+        filters = new ExprNode[FILTERS];
+        predicates = new ArrayList<>(FILTERS);
+        for (int i = 0; i < FILTERS; i++) {
+            // в фильтре пользователя подставляется имя пользователя, в фильтре членства - имя группы
+            String value = filter.contains("memberOf")
+                    ? CrowdBenchmarkDirectory.groupName(random.nextInt(directory.getGroupCount()))
+                    : CrowdBenchmarkDirectory.userName(random.nextInt(directory.getUserCount()));
+            filters[i] = fixture.filter(filter.replace("%s", value));
+            predicates.add(fixture.getCrowdLdapFilter().of(filters[i]).getPredicate().orElse(e -> true));
+        }
+        List<CrowdLdapEntryView> userEntries = new ArrayList<>(ENTRIES);
+        Iterator<ServerEntry> iterator = fixture.getCrowdLdapRepository().getSnapshot()
+                .findUserEntries(fixture.filter("(objectClass=*)"), e -> true).iterator();
+        while (userEntries.size() < ENTRIES && iterator.hasNext()) {
+            userEntries.add(CrowdLdapEntryView.of(iterator.next()));
+        }
+        entries = new CrowdLdapEntryView[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            entries[i] = userEntries.get(i % userEntries.size());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+
+    @Benchmark
+    public CrowdLdapFilter.Compilation compileCached() {
+        return fixture.getCrowdLdapFilter().of(filters[next++ & (FILTERS - 1)]);
+    }
+
+    @Benchmark
+    public CrowdLdapFilter.Compilation compileUncached() {
+        return uncachedFilter.of(filters[next++ & (FILTERS - 1)]);
+    }
+
+    @Benchmark
+    public boolean evaluate() {
+        int i = next++;
+        return predicates.get(i & (FILTERS - 1)).test(entries[i & (ENTRIES - 1)]);
+    }
+
+}
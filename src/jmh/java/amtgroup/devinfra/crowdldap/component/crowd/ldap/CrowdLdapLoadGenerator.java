@@ -0,0 +1,374 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.CrowdLdapServerApplication;
+import org.apache.commons.io.FileUtils;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Нагрузочный тест сервера целиком: приложение запускается с LDAP-транспортом и полной цепочкой перехватчиков
+ * ApacheDS и синхронизируется со встроенной заглушкой REST API Crowd ({@link CrowdRestStub}).
+ * <p>
+ * Каждое из N соединений в своём потоке выполняет операции в заданной пропорции:
+ * <ul>
+ * <li>bind - повторная аутентификация пользователя на соединении (обращение к Crowd);</li>
+ * <li>lookup - чтение записи пользователя (поиск с областью base);</li>
+ * <li>search - поиск групп пользователя по всему суффиксу;</li>
+ * <li>paged - постраничный поиск пользователей группы.</li>
+ * </ul>
+ * По завершении выводится количество операций и ошибок, пропускная способность и перцентили задержки
+ * p50/p99/p999 по каждому виду операций. Операции прогрева в отчёт не входят.
+ * <p>
+ * Параметры задаются в виде {@code name=value}: users, groups, connections, warmup и duration (с), mix
+ * (например {@code bind:10,lookup:40,search:40,paged:10}), page-size, crowd-latency (мс).
+ * Аргументы, начинающиеся с {@code --}, передаются приложению как свойства Spring Boot.
+ *
+ * @author Vitaly Ogoltsov
+ */
+public final class CrowdLdapLoadGenerator {
+
+    private static final String PASSWORD = "password";
+    private static final String[] OPERATIONS = {"bind", "lookup", "search", "paged"};
+
+    private final int users;
+    private final int groups;
+    private final int connections;
+    private final long warmup;
+    private final long duration;
+    private final int[] mix;
+    private final int pageSize;
+
+    private int ldapPort;
+
+
+    private CrowdLdapLoadGenerator(Map<String, String> options) {
+        this.users = Integer.parseInt(options.getOrDefault("users", "10000"));
+        this.groups = Integer.parseInt(options.getOrDefault("groups", String.valueOf(users / 10)));
+        this.connections = Integer.parseInt(options.getOrDefault("connections", "16"));
+        this.warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "10")));
+        this.duration = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "60")));
+        this.pageSize = Integer.parseInt(options.getOrDefault("page-size", "100"));
+        this.mix = new int[OPERATIONS.length];
+        for (String weight : options.getOrDefault("mix", "bind:10,lookup:40,search:40,paged:10").split(",")) {
+            String[] parts = weight.split(":");
+            int operation = Arrays.asList(OPERATIONS).indexOf(parts[0].trim());
+            if (operation < 0 || parts.length != 2) {
+                throw new IllegalArgumentException("Invalid operation mix: " + weight);
+            }
+            mix[operation] = Integer.parseInt(parts[1].trim());
+        }
+        // накопленные веса для выбора операции
+        for (int i = 1; i < mix.length; i++) {
+            mix[i] += mix[i - 1];
+        }
+        if (mix[mix.length - 1] <= 0) {
+            throw new IllegalArgumentException("Operation mix is empty");
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        List<String> applicationArgs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                applicationArgs.add(arg);
+            } else if (arg.contains("=")) {
+                options.put(arg.substring(0, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            } else {
+                throw new IllegalArgumentException("Invalid argument: " + arg);
+            }
+        }
+        CrowdLdapLoadGenerator generator = new CrowdLdapLoadGenerator(options);
+        CrowdBenchmarkDirectory directory = new CrowdBenchmarkDirectory(generator.users, generator.groups);
+        long crowdLatency = Long.parseLong(options.getOrDefault("crowd-latency", "0"));
+        File workingDirectory = Files.createTempDirectory("crowd-ldap-load").toFile();
+        System.setProperty("ldap.server.work.dir", workingDirectory.getAbsolutePath());
+        try (CrowdRestStub crowd = new CrowdRestStub(directory, PASSWORD, crowdLatency, 64)) {
+            generator.ldapPort = freePort();
+            List<String> properties = new ArrayList<>(Arrays.asList(
+                    "--crowd.client.server.url=" + crowd.getUrl(),
+                    "--crowd.client.application.name=crowd-ldap-load",
+                    "--crowd.client.application.password=crowd-ldap-load",
+                    "--crowd.client.application.login-url=" + crowd.getUrl(),
+                    "--ldap.server.port=" + generator.ldapPort,
+                    // HTTP-сервер Actuator нагрузочному тесту не нужен
+                    "--management.server.port=-1",
+                    // заглушка не поддерживает поток событий Crowd
+                    "--crowdldap.incremental-sync=false",
+                    // постраничный поиск читает группы целиком
+                    "--ldap.server.max-size-limit=0"
+            ));
+            properties.addAll(applicationArgs);
+            ConfigurableApplicationContext application = new SpringApplicationBuilder(CrowdLdapServerApplication.class)
+                    .run(properties.toArray(new String[0]));
+            try {
+                generator.run(crowd);
+            } finally {
+                application.close();
+            }
+        } finally {
+            FileUtils.deleteDirectory(workingDirectory);
+        }
+    }
+
+
+    private void run(CrowdRestStub crowd) throws Exception {
+        long started = System.nanoTime();
+        long measureFrom = started + warmup;
+        long deadline = measureFrom + duration;
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            Worker worker = new Worker(i, measureFrom, deadline);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        // отчёт
+        double seconds = duration / 1e9;
+        System.out.printf("%nusers = %d, groups = %d, connections = %d, duration = %.0f s, Crowd authentications = %d%n%n",
+                users, groups, connections, seconds, crowd.getAuthenticationCount());
+        System.out.printf("%-8s %10s %8s %10s %10s %10s %10s %10s%n",
+                "op", "count", "errors", "ops/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        Latencies total = new Latencies();
+        for (int operation = 0; operation < OPERATIONS.length; operation++) {
+            Latencies latencies = new Latencies();
+            long errors = 0;
+            for (Worker worker : workers) {
+                latencies.addAll(worker.latencies[operation]);
+                errors += worker.errors[operation];
+            }
+            total.addAll(latencies);
+            print(OPERATIONS[operation], latencies, errors, seconds);
+        }
+        long errors = workers.stream().mapToLong(worker -> Arrays.stream(worker.errors).sum()).sum();
+        print("total", total, errors, seconds);
+    }
+
+    private static void print(String operation, Latencies latencies, long errors, double seconds) {
+        long[] values = latencies.sorted();
+        System.out.printf("%-8s %10d %8d %10.1f %10.3f %10.3f %10.3f %10.3f%n",
+                operation, values.length, errors, values.length / seconds,
+                percentile(values, 0.50), percentile(values, 0.99), percentile(values, 0.999),
+                values.length > 0 ? values[values.length - 1] / 1e6 : 0);
+    }
+
+    private static double percentile(long[] values, double percentile) {
+        if (values.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * values.length) - 1;
+        return values[Math.max(0, index)] / 1e6;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * @return имя активного пользователя синтетического каталога
+     */
+    private String activeUser(ThreadLocalRandom random) {
+        int i = random.nextInt(users);
+        // каждый пятидесятый пользователь каталога неактивен
+        return CrowdBenchmarkDirectory.userName(i % 50 != 0 ? i : (i + 1) % users);
+    }
+
+    private static String userDn(String user) {
+        return "uid=" + user + ",ou=users,dc=crowd";
+    }
+
+
+
+    private final class Worker extends Thread {
+
+        private final long measureFrom;
+        private final long deadline;
+
+        private final Latencies[] latencies = new Latencies[OPERATIONS.length];
+        private final long[] errors = new long[OPERATIONS.length];
+
+        private Worker(int id, long measureFrom, long deadline) {
+            super("crowd-ldap-load-" + id);
+            this.measureFrom = measureFrom;
+            this.deadline = deadline;
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new Latencies();
+            }
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            LdapContext context = null;
+            try {
+                context = connect(activeUser(random));
+                for (long now = System.nanoTime(); now < deadline; now = System.nanoTime()) {
+                    int weight = random.nextInt(mix[mix.length - 1]);
+                    int operation = 0;
+                    while (weight >= mix[operation]) {
+                        operation++;
+                    }
+                    boolean failed = false;
+                    try {
+                        execute(context, operation, random);
+                    } catch (NamingException e) {
+                        failed = true;
+                        if (errors[operation] == 0) {
+                            System.err.println(getName() + ": " + OPERATIONS[operation] + " failed: " + e);
+                        }
+                    }
+                    long finished = System.nanoTime();
+                    if (now >= measureFrom && finished < deadline) {
+                        latencies[operation].add(finished - now);
+                        if (failed) {
+                            errors[operation]++;
+                        }
+                    }
+                }
+            } catch (NamingException e) {
+                System.err.println(getName() + ": connection failed: " + e);
+            } finally {
+                if (context != null) {
+                    try {
+                        context.close();
+                    } catch (NamingException e) {
+                        // соединение закрывается по завершении теста
+                    }
+                }
+            }
+        }
+
+        private LdapContext connect(String user) throws NamingException {
+            Hashtable<String, Object> environment = new Hashtable<>();
+            environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+            environment.put(Context.PROVIDER_URL, "ldap://127.0.0.1:" + ldapPort);
+            environment.put(Context.SECURITY_AUTHENTICATION, "simple");
+            environment.put(Context.SECURITY_PRINCIPAL, userDn(user));
+            environment.put(Context.SECURITY_CREDENTIALS, PASSWORD);
+            return new InitialLdapContext(environment, null);
+        }
+
+        private void execute(LdapContext context, int operation, ThreadLocalRandom random) throws NamingException {
+            switch (operation) {
+                case 0:
+                    context.addToEnvironment(Context.SECURITY_PRINCIPAL, userDn(activeUser(random)));
+                    context.addToEnvironment(Context.SECURITY_CREDENTIALS, PASSWORD);
+                    context.reconnect(null);
+                    break;
+                case 1:
+                    search(context, userDn(activeUser(random)), "(objectClass=*)", SearchControls.OBJECT_SCOPE);
+                    break;
+                case 2:
+                    search(context, "dc=crowd", "(&(objectClass=groupOfNames)(member=" + userDn(activeUser(random)) + "))",
+                            SearchControls.SUBTREE_SCOPE);
+                    break;
+                default:
+                    pagedSearch(context, "(&(objectClass=inetOrgPerson)(memberOf=cn="
+                            + CrowdBenchmarkDirectory.groupName(random.nextInt(groups)) + ",ou=groups,dc=crowd))");
+                    break;
+            }
+        }
+
+        private int search(LdapContext context, String base, String filter, int scope) throws NamingException {
+            SearchControls searchControls = new SearchControls();
+            searchControls.setSearchScope(scope);
+            NamingEnumeration<SearchResult> results = context.search(base, filter, searchControls);
+            int count = 0;
+            try {
+                while (results.hasMore()) {
+                    results.next();
+                    count++;
+                }
+            } finally {
+                results.close();
+            }
+            return count;
+        }
+
+        private void pagedSearch(LdapContext context, String filter) throws NamingException {
+            byte[] cookie = null;
+            try {
+                do {
+                    try {
+                        context.setRequestControls(new Control[]{new PagedResultsControl(pageSize, cookie, Control.CRITICAL)});
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    search(context, "ou=users,dc=crowd", filter, SearchControls.ONELEVEL_SCOPE);
+                    cookie = null;
+                    Control[] responseControls = context.getResponseControls();
+                    if (responseControls != null) {
+                        for (Control control : responseControls) {
+                            if (control instanceof PagedResultsResponseControl) {
+                                cookie = ((PagedResultsResponseControl) control).getCookie();
+                            }
+                        }
+                    }
+                } while (cookie != null && cookie.length > 0);
+            } finally {
+                context.setRequestControls(null);
+            }
+        }
+
+    }
+
+
+
+    /**
+     * Задержки операций (нс), накапливаемые одним потоком.
+     */
+    private static final class Latencies {
+
+        private long[] values = new long[1024];
+        private int size;
+
+        private void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private void addAll(Latencies latencies) {
+            for (int i = 0; i < latencies.size; i++) {
+                add(latencies.values[i]);
+            }
+        }
+
+        private long[] sorted() {
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+    }
+
+}
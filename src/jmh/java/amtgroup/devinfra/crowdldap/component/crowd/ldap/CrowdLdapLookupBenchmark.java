@@ -0,0 +1,83 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapProperties;
+import org.apache.directory.server.core.entry.ClonedServerEntry;
+import org.apache.directory.shared.ldap.name.DN;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Чтение записи crowd partition по DN (поиск с областью base, проверка существования записи).
+ *
+ * @author Vitaly Ogoltsov
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class CrowdLdapLookupBenchmark {
+
+    private static final int DNS = 512;
+
+    @Param({"1000", "10000", "100000"})
+    public int users;
+
+    @Param({"user", "group", "missing"})
+    public String entry;
+
+    private CrowdLdapBenchmarkFixture fixture;
+    private DN[] dns;
+    private int next;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        CrowdBenchmarkDirectory directory = new CrowdBenchmarkDirectory(users, users / 10);
+        fixture = new CrowdLdapBenchmarkFixture(directory, new CrowdLdapProperties());
+        Random random = new Random(DNS);
+        dns = new DN[DNS];
+        for (int i = 0; i < DNS; i++) {
+            switch (entry) {
+                case "user":
+                    dns[i] = fixture.dn("uid=" + CrowdBenchmarkDirectory.userName(random.nextInt(directory.getUserCount())) + ",ou=users,dc=crowd");
+                    break;
+                case "group":
+                    dns[i] = fixture.dn("cn=" + CrowdBenchmarkDirectory.groupName(random.nextInt(directory.getGroupCount())) + ",ou=groups,dc=crowd");
+                    break;
+                case "missing":
+                    dns[i] = fixture.dn("uid=missing" + i + ",ou=users,dc=crowd");
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown entry: " + entry);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+
+    @Benchmark
+    public ClonedServerEntry lookup() throws Exception {
+        return fixture.lookup(dns[next++ & (DNS - 1)]);
+    }
+
+}
@@ -0,0 +1,131 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapProperties;
+import org.apache.directory.server.core.filtering.EntryFilteringCursor;
+import org.apache.directory.shared.ldap.filter.ExprNode;
+import org.apache.directory.shared.ldap.filter.SearchScope;
+import org.apache.directory.shared.ldap.name.DN;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Поиск в crowd partition: {@link CrowdLdapPartition#search} и чтение всех результатов курсора.
+ * <p>
+ * Сценарии соответствуют типичным запросам LDAP-клиентов: поиск пользователя по uid и mail,
+ * пользователей группы, групп пользователя, поиск по начальной подстроке и перебор всех групп.
+ * Значения в фильтрах меняются от вызова к вызову, фильтры нормализуются заранее.
+ *
+ * @author Vitaly Ogoltsov
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class CrowdLdapSearchBenchmark {
+
+    private static final int FILTERS = 512;
+
+    @Param({"1000", "10000", "100000"})
+    public int users;
+
+    @Param({"user-by-uid", "user-by-mail", "users-of-group", "groups-of-user", "users-by-prefix", "all-groups", "users-in-chain"})
+    public String scenario;
+
+    private CrowdLdapBenchmarkFixture fixture;
+    private DN base;
+    private SearchScope scope;
+    private ExprNode[] filters;
+    private int next;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        CrowdBenchmarkDirectory directory = new CrowdBenchmarkDirectory(users, users / 10);
+        fixture = new CrowdLdapBenchmarkFixture(directory, new CrowdLdapProperties());
+        Random random = new Random(FILTERS);
+        filters = new ExprNode[FILTERS];
+        for (int i = 0; i < FILTERS; i++) {
+            String user = CrowdBenchmarkDirectory.userName(random.nextInt(directory.getUserCount()));
+            String group = CrowdBenchmarkDirectory.groupName(random.nextInt(directory.getGroupCount()));
+            switch (scenario) {
+                case "user-by-uid":
+                    base = fixture.dn("ou=users,dc=crowd");
+                    scope = SearchScope.ONELEVEL;
+                    filters[i] = fixture.filter("(uid=" + user + ")");
+                    break;
+                case "user-by-mail":
+                    base = fixture.dn("dc=crowd");
+                    scope = SearchScope.SUBTREE;
+                    filters[i] = fixture.filter("(&(objectClass=inetOrgPerson)(mail=" + user + "@example.com))");
+                    break;
+                case "users-of-group":
+                    base = fixture.dn("ou=users,dc=crowd");
+                    scope = SearchScope.ONELEVEL;
+                    filters[i] = fixture.filter("(&(objectClass=inetOrgPerson)(memberOf=cn=" + group + ",ou=groups,dc=crowd))");
+                    break;
+                case "groups-of-user":
+                    base = fixture.dn("ou=groups,dc=crowd");
+                    scope = SearchScope.ONELEVEL;
+                    filters[i] = fixture.filter("(&(objectClass=groupOfNames)(member=uid=" + user + ",ou=users,dc=crowd))");
+                    break;
+                case "users-by-prefix":
+                    base = fixture.dn("ou=users,dc=crowd");
+                    scope = SearchScope.ONELEVEL;
+                    filters[i] = fixture.filter("(|(uid=" + user + "*)(cn=" + user + "*))");
+                    break;
+                case "all-groups":
+                    base = fixture.dn("ou=groups,dc=crowd");
+                    scope = SearchScope.ONELEVEL;
+                    filters[i] = fixture.filter("(objectClass=groupOfNames)");
+                    break;
+                case "users-in-chain":
+                    base = fixture.dn("dc=crowd");
+                    scope = SearchScope.SUBTREE;
+                    filters[i] = fixture.filter("(memberOf:1.2.840.113556.1.4.1941:=cn=" + group + ",ou=groups,dc=crowd)");
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown scenario: " + scenario);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+
+    @Benchmark
+    public int search(Blackhole blackhole) throws Exception {
+        ExprNode filter = filters[next++ & (FILTERS - 1)];
+        EntryFilteringCursor cursor = fixture.search(base, scope, filter);
+        int count = 0;
+        try {
+            while (cursor.next()) {
+                blackhole.consume(cursor.get());
+                count++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return count;
+    }
+
+}
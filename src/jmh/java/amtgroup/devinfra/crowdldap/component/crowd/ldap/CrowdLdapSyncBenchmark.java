@@ -0,0 +1,105 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapProperties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Полная синхронизация {@link CrowdLdapRepository#sync()}: загрузка каталога из Crowd и построение снимка записей.
+ * <p>
+ * После измерений выводится объём кучи, занятый опубликованным каталогом: разность занятой кучи
+ * после синхронизации и до создания службы каталогов. В неё входят модель каталога, снимок записей
+ * и не зависящая от размера каталога схема ApacheDS, поэтому стоимость записи оценивается
+ * сравнением результатов для разных размеров каталога.
+ * <p>
+ * Параметр {@code cache = entry-map} вместо синхронизации строит из того же каталога прежнее представление
+ * кеша ({@link CrowdEntryMapBaseline}), чтобы сравнить занимаемую кучу с наборами записей.
+ *
+ * @author Vitaly Ogoltsov
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class CrowdLdapSyncBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int users;
+
+    @Param({"false", "true"})
+    public boolean memberOfIncludeNested;
+
+    /**
+     * Представление кеша каталога: {@code table} - наборы записей {@link CrowdLdapRepository},
+     * {@code entry-map} - прежние записи {@code DefaultServerEntry} по имени.
+     */
+    @Param({"table", "entry-map"})
+    public String cache;
+
+    private CrowdBenchmarkDirectory directory;
+    private CrowdLdapBenchmarkFixture fixture;
+    private CrowdEntryMapBaseline entryMap;
+    private long baselineHeap;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = new CrowdBenchmarkDirectory(users, users / 10);
+        baselineHeap = getUsedHeapAfterGc();
+        CrowdLdapProperties crowdLdapProperties = new CrowdLdapProperties();
+        crowdLdapProperties.setMemberOfIncludeNested(memberOfIncludeNested);
+        fixture = new CrowdLdapBenchmarkFixture(directory, crowdLdapProperties);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        long retainedHeap = getUsedHeapAfterGc() - baselineHeap;
+        if (entryMap != null) {
+            System.out.printf("%nRetained heap (entry-map): %d KB for %d users and %d groups%n",
+                    retainedHeap / 1024, entryMap.getUserCount(), entryMap.getGroupCount());
+        } else {
+            System.out.printf("%nRetained heap (table): %d KB for %d users and %d groups%n",
+                    retainedHeap / 1024, fixture.getCrowdLdapRepository().getUserCount(), fixture.getCrowdLdapRepository().getGroupCount());
+        }
+        entryMap = null;
+        fixture.close();
+    }
+
+
+    @Benchmark
+    public long sync() throws Exception {
+        if ("entry-map".equals(cache)) {
+            // записи удерживаются до конца измерений, как удерживал их прежний кеш
+            entryMap = CrowdEntryMapBaseline.of(fixture.getSchemaManager(), new CrowdLdapProperties().getSuffix(), directory);
+            return entryMap.getUserCount();
+        }
+        CrowdLdapRepository crowdLdapRepository = fixture.getCrowdLdapRepository();
+        crowdLdapRepository.sync();
+        return crowdLdapRepository.getGeneration();
+    }
+
+
+    private static long getUsedHeapAfterGc() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+}
@@ -0,0 +1,219 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import com.atlassian.crowd.model.group.Group;
+import com.atlassian.crowd.model.group.Membership;
+import com.atlassian.crowd.model.user.User;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Встроенный HTTP-сервер, отвечающий на запросы REST API Crowd (/rest/usermanagement/1) по синтетическому каталогу.
+ * <p>
+ * Поддерживаются только ресурсы, используемые сервером при полной синхронизации и аутентификации:
+ * постраничный поиск пользователей и групп, членства в группах и аутентификация пользователя.
+ * Аутентификация успешна для активного пользователя с общим паролем каталога
+ * и может выполняться с заданной задержкой, имитирующей время ответа Crowd.
+ *
+ * @author Vitaly Ogoltsov
+ */
+final class CrowdRestStub implements AutoCloseable {
+
+    private static final String REST_PATH = "/crowd/rest/usermanagement/1";
+
+    private final CrowdBenchmarkDirectory directory;
+    private final Map<String, User> usersByName = new HashMap<>();
+    private final String password;
+    private final long authenticationDelay;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final AtomicLong authenticationCount = new AtomicLong();
+
+
+    /**
+     * @param directory           синтетический каталог
+     * @param password            пароль всех пользователей каталога
+     * @param authenticationDelay задержка ответа на аутентификацию (мс)
+     * @param threads             количество потоков обработки запросов
+     */
+    CrowdRestStub(CrowdBenchmarkDirectory directory, String password, long authenticationDelay, int threads) throws IOException {
+        this.directory = directory;
+        for (User user : directory.getUsers()) {
+            usersByName.put(user.getName(), user);
+        }
+        this.password = password;
+        this.authenticationDelay = authenticationDelay;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.server.setExecutor(executor);
+        this.server.createContext(REST_PATH, this::handle);
+        this.server.start();
+    }
+
+
+    /**
+     * @return URL сервера Crowd для настройки {@code crowd.client.server.url}
+     */
+    String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/crowd/";
+    }
+
+    long getAuthenticationCount() {
+        return authenticationCount.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath().substring(REST_PATH.length());
+            Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+            byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+            switch (path) {
+                case "/authentication":
+                    authenticate(exchange, query.get("username"), new String(body, StandardCharsets.UTF_8));
+                    break;
+                case "/search":
+                    search(exchange, query);
+                    break;
+                case "/group/membership":
+                    respond(exchange, 200, memberships());
+                    break;
+                default:
+                    respond(exchange, 404, error("OPERATION_FAILED", "Not supported by stub: " + path));
+                    break;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 500, error("OPERATION_FAILED", "Interrupted"));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void authenticate(HttpExchange exchange, String userName, String body) throws IOException, InterruptedException {
+        authenticationCount.incrementAndGet();
+        if (authenticationDelay > 0) {
+            TimeUnit.MILLISECONDS.sleep(authenticationDelay);
+        }
+        User user = userName != null ? usersByName.get(userName) : null;
+        if (user == null || !body.contains("<value>" + escape(password) + "</value>")) {
+            respond(exchange, 400, error("INVALID_USER_AUTHENTICATION", "Failed to authenticate principal, password was invalid"));
+        } else if (!user.isActive()) {
+            respond(exchange, 400, error("INACTIVE_ACCOUNT", "Account is inactive"));
+        } else {
+            respond(exchange, 200, user(new StringBuilder(), user).toString());
+        }
+    }
+
+    private void search(HttpExchange exchange, Map<String, String> query) throws IOException {
+        int start = Integer.parseInt(query.getOrDefault("start-index", "0"));
+        int size = Integer.parseInt(query.getOrDefault("max-results", "1000"));
+        StringBuilder xml = new StringBuilder();
+        if ("group".equals(query.get("entity-type"))) {
+            List<Group> groups = directory.getGroups();
+            xml.append("<groups expand=\"group\">");
+            for (int i = start; i < Math.min(groups.size(), start + size); i++) {
+                group(xml, groups.get(i));
+            }
+            xml.append("</groups>");
+        } else {
+            List<User> users = directory.getUsers();
+            xml.append("<users expand=\"user\">");
+            for (int i = start; i < Math.min(users.size(), start + size); i++) {
+                user(xml, users.get(i));
+            }
+            xml.append("</users>");
+        }
+        respond(exchange, 200, xml.toString());
+    }
+
+    private String memberships() {
+        StringBuilder xml = new StringBuilder("<memberships>");
+        for (Membership membership : directory.getMemberships()) {
+            xml.append("<membership group=\"").append(escape(membership.getGroupName())).append("\"><users>");
+            for (String userName : membership.getUserNames()) {
+                xml.append("<user name=\"").append(escape(userName)).append("\"/>");
+            }
+            xml.append("</users><groups>");
+            for (String groupName : membership.getChildGroupNames()) {
+                xml.append("<group name=\"").append(escape(groupName)).append("\"/>");
+            }
+            xml.append("</groups></membership>");
+        }
+        return xml.append("</memberships>").toString();
+    }
+
+    private static StringBuilder user(StringBuilder xml, User user) {
+        return xml.append("<user name=\"").append(escape(user.getName())).append("\" expand=\"attributes\">")
+                .append("<first-name>").append(escape(user.getFirstName())).append("</first-name>")
+                .append("<last-name>").append(escape(user.getLastName())).append("</last-name>")
+                .append("<display-name>").append(escape(user.getDisplayName())).append("</display-name>")
+                .append("<email>").append(escape(user.getEmailAddress())).append("</email>")
+                .append("<active>").append(user.isActive()).append("</active>")
+                .append("</user>");
+    }
+
+    private static StringBuilder group(StringBuilder xml, Group group) {
+        return xml.append("<group name=\"").append(escape(group.getName())).append("\" expand=\"attributes\">")
+                .append("<description>").append(escape(group.getDescription())).append("</description>")
+                .append("<type>GROUP</type>")
+                .append("<active>").append(group.isActive()).append("</active>")
+                .append("</group>");
+    }
+
+    private static String error(String reason, String message) {
+        return "<error><reason>" + reason + "</reason><message>" + escape(message) + "</message></error>";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String xml) throws IOException {
+        byte[] bytes = ("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>" + xml).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml;charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> query(String rawQuery) throws IOException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery != null) {
+            for (String parameter : rawQuery.split("&")) {
+                int i = parameter.indexOf('=');
+                if (i > 0) {
+                    query.put(URLDecoder.decode(parameter.substring(0, i), "UTF-8"), URLDecoder.decode(parameter.substring(i + 1), "UTF-8"));
+                }
+            }
+        }
+        return query;
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+}
@@ -5,6 +5,7 @@ import com.atlassian.crowd.service.client.ClientProperties;
 import com.atlassian.crowd.service.client.ClientPropertiesImpl;
 import com.atlassian.crowd.service.client.CrowdClient;
 import com.atlassian.crowd.service.factory.CrowdClientFactory;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -16,11 +17,13 @@ import java.util.Properties;
  */
 @Configuration
 @EnableConfigurationProperties(CrowdClientProperties.class)
+@Slf4j
 public class CrowdClientConfiguration {
 
     @SuppressWarnings("SpellCheckingInspection")
     @Bean
-    public ClientProperties crowdClientProperties(CrowdClientProperties crowdClientProperties) {
+    public ClientProperties crowdClientProperties(CrowdClientProperties crowdClientProperties,
+                                                  CrowdLdapProperties crowdLdapProperties) {
         Properties properties = new Properties();
         if (crowdClientProperties.getServer() != null) {
             properties.put("crowd.server.url", crowdClientProperties.getServer().getUrl());
@@ -36,6 +39,30 @@ public class CrowdClientConfiguration {
             properties.put("session.isauthenticated", crowdClientProperties.getSession().getIsAuthenticated());
             properties.put("session.tokenkey", crowdClientProperties.getSession().getTokenKey());
         }
+        if (crowdClientProperties.getHttp() != null) {
+            CrowdClientProperties.Http http = crowdClientProperties.getHttp();
+            // аутентификации и этапы синхронизации не должны ждать свободного соединения пула
+            int threads = crowdLdapProperties.getBind().getThreads() + crowdLdapProperties.getSyncThreads();
+            if (http.getMaxConnections() < threads) {
+                log.warn("crowdClientProperties(): crowd.client.http.max-connections = {} is less than bind and sync threads ({}), "
+                        + "Crowd calls may wait for a free connection", http.getMaxConnections(), threads);
+            }
+            properties.put("http.max.connections", String.valueOf(http.getMaxConnections()));
+            properties.put("http.timeout", String.valueOf(http.getTimeout()));
+            properties.put("socket.timeout", String.valueOf(http.getSocketTimeout()));
+            if (http.getProxy() != null && http.getProxy().getHost() != null) {
+                properties.put("http.proxy.host", http.getProxy().getHost());
+                if (http.getProxy().getPort() != null) {
+                    properties.put("http.proxy.port", String.valueOf(http.getProxy().getPort()));
+                }
+                if (http.getProxy().getUsername() != null) {
+                    properties.put("http.proxy.username", http.getProxy().getUsername());
+                }
+                if (http.getProxy().getPassword() != null) {
+                    properties.put("http.proxy.password", http.getProxy().getPassword());
+                }
+            }
+        }
         return ClientPropertiesImpl.newInstanceFromProperties(properties);
     }
 
@@ -27,6 +27,11 @@ public class CrowdClientProperties {
      */
     private Session session = new Session();
 
+    /**
+     * Настройки HTTP-соединений с Crowd.
+     */
+    private Http http = new Http();
+
 
     @Data
     public static class Server {
@@ -59,4 +64,45 @@ public class CrowdClientProperties {
 
     }
 
+    @Data
+    public static class Http {
+
+        /**
+         * Максимальное количество одновременных соединений с Crowd.
+         * Должно быть не меньше суммы потоков аутентификации и синхронизации.
+         * Значение по умолчанию нагрузочными тестами не проверялось (см. README).
+         */
+        private int maxConnections = 32;
+
+        /**
+         * Время ожидания установки соединения (мс).
+         */
+        private long timeout = 5000;
+
+        /**
+         * Время ожидания данных в открытом соединении (мс). По умолчанию - значение клиента Crowd (10 минут):
+         * полная синхронизация большого каталога может долго ждать ответа Crowd.
+         */
+        private long socketTimeout = 10 * 60 * 1000;
+
+        /**
+         * Настройки HTTP-прокси.
+         */
+        private Proxy proxy = new Proxy();
+
+    }
+
+    @Data
+    public static class Proxy {
+
+        private String host;
+
+        private Integer port;
+
+        private String username;
+
+        private String password;
+
+    }
+
 }
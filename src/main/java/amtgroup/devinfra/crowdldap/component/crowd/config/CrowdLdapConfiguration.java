@@ -1,7 +1,11 @@
 package amtgroup.devinfra.crowdldap.component.crowd.config;
 
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.ThreadPoolExecutor;
 
 /**
  * @author Vitaly Ogoltsov
@@ -9,4 +13,46 @@ import org.springframework.context.annotation.Configuration;
 @Configuration
 @EnableConfigurationProperties(CrowdLdapProperties.class)
 public class CrowdLdapConfiguration {
+
+    public static final String SYNC_EXECUTOR = "crowdSyncExecutor";
+    public static final String BIND_EXECUTOR = "crowdBindExecutor";
+
+
+    /**
+     * Пул потоков для параллельной загрузки данных из Crowd.
+     * При заполнении очереди задача выполняется в вызывающем потоке.
+     * <p>
+     * Сама синхронизация выполняется вне пула и только ожидает его задачи, поэтому одного потока достаточно,
+     * чтобы задачи не ожидали друг друга бесконечно.
+     */
+    @Bean(SYNC_EXECUTOR)
+    public ThreadPoolTaskExecutor crowdSyncExecutor(CrowdLdapProperties crowdLdapProperties) {
+        if (crowdLdapProperties.getSyncThreads() < 1) {
+            throw new IllegalArgumentException("crowdldap.sync-threads should be at least 1, found "
+                    + crowdLdapProperties.getSyncThreads());
+        }
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(crowdLdapProperties.getSyncThreads());
+        executor.setMaxPoolSize(crowdLdapProperties.getSyncThreads());
+        executor.setQueueCapacity(crowdLdapProperties.getSyncThreads());
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.setThreadNamePrefix("crowd-sync-");
+        return executor;
+    }
+
+    /**
+     * Пул потоков для аутентификации в Crowd, отделяющий обращения к Crowd от потоков обработки LDAP-запросов.
+     * При заполнении очереди аутентификация отклоняется.
+     */
+    @Bean(BIND_EXECUTOR)
+    public ThreadPoolTaskExecutor crowdBindExecutor(CrowdLdapProperties crowdLdapProperties) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(crowdLdapProperties.getBind().getThreads());
+        executor.setMaxPoolSize(crowdLdapProperties.getBind().getThreads());
+        executor.setQueueCapacity(crowdLdapProperties.getBind().getQueueCapacity());
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+        executor.setThreadNamePrefix("crowd-bind-");
+        return executor;
+    }
+
 }
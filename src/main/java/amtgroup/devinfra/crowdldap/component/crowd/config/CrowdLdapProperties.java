@@ -3,6 +3,10 @@ package amtgroup.devinfra.crowdldap.component.crowd.config;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * @author Vitaly Ogoltsov
  */
@@ -16,7 +20,10 @@ public class CrowdLdapProperties {
     private String suffix = "dc=crowd";
 
     /**
-     * Включить эмуляцию работы атрибута memberOf в Active Directory.
+     * Включить эмуляцию работы атрибута memberOf в Active Directory: условия вида
+     * {@code (memberOf:1.2.840.113556.1.4.1941:=<DN группы>)} и {@code (member:1.2.840.113556.1.4.1941:=<DN пользователя>)}
+     * проверяются с учётом вложенных групп независимо от {@link #memberOfIncludeNested}.
+     * Без эмуляции такие условия проверяются по публикуемым значениям memberOf/member.
      */
     private boolean memberOfEmulateActiveDirectory = false;
 
@@ -30,4 +37,194 @@ public class CrowdLdapProperties {
      */
     private Integer cacheTtl = 60 * 60 * 1000;
 
+    /**
+     * Обновлять кеш по потоку событий Crowd вместо полной перезагрузки каталога.
+     * Полная синхронизация выполняется при первом запуске и если Crowd отклоняет токен событий.
+     * События избавляют от загрузки каталога из Crowd, но снимок каталога после них строится заново целиком.
+     */
+    private boolean incrementalSync = true;
+
+    /**
+     * Сохранять модель каталога в рабочей директории после каждой синхронизации.
+     * При запуске сохранённая модель публикуется сразу, а синхронизация с Crowd выполняется в фоне.
+     */
+    private boolean persistSnapshot = true;
+
+    /**
+     * Размер страницы при загрузке пользователей и групп из Crowd во время полной синхронизации, не меньше 1.
+     */
+    private int syncPageSize = 1000;
+
+    /**
+     * Количество потоков для параллельной загрузки данных из Crowd во время полной синхронизации, не меньше 1.
+     */
+    private int syncThreads = 3;
+
+    /**
+     * Атрибуты, по значениям которых строятся индексы для поиска по условиям равенства.
+     */
+    private List<String> indexedAttributes = new ArrayList<>(Arrays.asList(
+            "uid", "cn", "mail", "member", "memberOf", "objectClass"
+    ));
+
+    /**
+     * Атрибуты, по упорядоченным значениям которых строятся индексы для поиска по начальной подстроке.
+     */
+    private List<String> prefixIndexedAttributes = new ArrayList<>(Arrays.asList(
+            "uid", "cn", "mail", "displayName"
+    ));
+
+    /**
+     * Количество скомпилированных фильтров поиска, хранимых в кеше.
+     * При переполнении вытесняется десятая часть кеша - фильтры, использованные раньше других.
+     */
+    private int filterCacheSize = 1000;
+
+    /**
+     * Выполнение аутентификаций в Crowd.
+     */
+    private final Bind bind = new Bind();
+
+    /**
+     * Кеш успешных аутентификаций.
+     */
+    private final BindCache bindCache = new BindCache();
+
+    /**
+     * Ограничение неуспешных аутентификаций.
+     */
+    private final BindThrottle bindThrottle = new BindThrottle();
+
+    /**
+     * Метрики операций LDAP, аутентификаций и синхронизации.
+     */
+    private final Metrics metrics = new Metrics();
+
+    /**
+     * Журнал медленных поисков и статистика поисков по видам фильтров.
+     */
+    private final SearchLog searchLog = new SearchLog();
+
+
+
+    @Data
+    public static class Bind {
+
+        /**
+         * Количество потоков, выполняющих аутентификации в Crowd.
+         */
+        private int threads = 16;
+
+        /**
+         * Количество аутентификаций, ожидающих свободного потока. При заполнении очереди аутентификация отклоняется.
+         */
+        private int queueCapacity = 64;
+
+        /**
+         * Максимальное время ожидания результата аутентификации в Crowd (мс).
+         */
+        private long timeout = 10 * 1000;
+
+    }
+
+    @Data
+    public static class BindCache {
+
+        /**
+         * Подтверждать повторные аутентификации по кешу без обращения к Crowd.
+         */
+        private boolean enabled = false;
+
+        /**
+         * Время жизни успешной аутентификации в кеше (мс).
+         */
+        private long ttl = 5 * 60 * 1000;
+
+        /**
+         * Максимальное количество пользователей в кеше.
+         */
+        private int maxSize = 10000;
+
+        /**
+         * Количество итераций PBKDF2 при вычислении хеша пароля.
+         */
+        private int hashIterations = 10000;
+
+    }
+
+    @Data
+    public static class BindThrottle {
+
+        /**
+         * Отклонять повторные неуспешные аутентификации без обращения к Crowd.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Время, в течение которого неуспешная пара пользователь/пароль отклоняется без обращения к Crowd (мс).
+         */
+        private long negativeCacheTtl = 30 * 1000;
+
+        /**
+         * Количество неуспешных аутентификаций пользователя, допустимое подряд.
+         */
+        private int userBurst = 10;
+
+        /**
+         * Количество неуспешных аутентификаций пользователя в секунду, допустимое длительно.
+         */
+        private double userRate = 1;
+
+        /**
+         * Количество неуспешных аутентификаций с одного адреса, допустимое подряд.
+         */
+        private int addressBurst = 50;
+
+        /**
+         * Количество неуспешных аутентификаций с одного адреса в секунду, допустимое длительно.
+         */
+        private double addressRate = 5;
+
+        /**
+         * Максимальное количество отслеживаемых пользователей, адресов и неуспешных паролей.
+         */
+        private int maxSize = 10000;
+
+    }
+
+    @Data
+    public static class Metrics {
+
+        /**
+         * Собирать метрики операций LDAP, аутентификаций, синхронизации и обращений к Crowd.
+         */
+        private boolean enabled = true;
+
+    }
+
+    @Data
+    public static class SearchLog {
+
+        /**
+         * Длительность поиска, начиная с которой поиск записывается в журнал (мс). 0 - не журналировать.
+         */
+        private long slowThreshold = 1000;
+
+        /**
+         * Собирать статистику поисков по видам фильтров.
+         */
+        private boolean statisticsEnabled = true;
+
+        /**
+         * Максимальное количество различных видов фильтров в статистике. Остальные виды учитываются вместе.
+         */
+        private int maxFilterShapes = 1000;
+
+        /**
+         * Количество видов фильтров с наибольшим суммарным временем, возвращаемых endpoint.
+         */
+        private int top = 20;
+
+    }
+
 }
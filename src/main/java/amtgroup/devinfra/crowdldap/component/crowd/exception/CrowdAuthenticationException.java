@@ -3,6 +3,9 @@ package amtgroup.devinfra.crowdldap.component.crowd.exception;
 import amtgroup.devinfra.crowdldap.util.exception.ApplicationException;
 
 /**
+ * Аутентификация отклонена. Исключение создаётся при каждой неуспешной аутентификации,
+ * поэтому стек вызовов не заполняется.
+ *
  * @author Vitaly Ogoltsov
  */
 public class CrowdAuthenticationException extends ApplicationException {
@@ -11,4 +14,10 @@ public class CrowdAuthenticationException extends ApplicationException {
         super(username);
     }
 
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+
 }
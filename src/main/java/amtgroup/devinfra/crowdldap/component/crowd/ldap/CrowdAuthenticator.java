@@ -1,9 +1,16 @@
 package amtgroup.devinfra.crowdldap.component.crowd.ldap;
 
+import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapConfiguration;
 import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapProperties;
 import amtgroup.devinfra.crowdldap.component.crowd.exception.CrowdAuthenticationException;
 import amtgroup.devinfra.crowdldap.component.crowd.exception.CrowdLdapException;
+import amtgroup.devinfra.crowdldap.component.crowd.ldap.CrowdLdapMetrics.BindResult;
+import amtgroup.devinfra.crowdldap.component.crowd.ldap.CrowdLdapMetrics.CrowdCall;
 import amtgroup.devinfra.crowdldap.component.crowd.util.CrowdLdapConstants;
+import com.atlassian.crowd.exception.ExpiredCredentialException;
+import com.atlassian.crowd.exception.InactiveAccountException;
+import com.atlassian.crowd.exception.InvalidAuthenticationException;
+import com.atlassian.crowd.exception.UserNotFoundException;
 import com.atlassian.crowd.model.user.User;
 import com.atlassian.crowd.service.client.CrowdClient;
 import lombok.extern.slf4j.Slf4j;
@@ -15,9 +22,25 @@ import org.apache.directory.shared.ldap.constants.AuthenticationLevel;
 import org.apache.directory.shared.ldap.exception.LdapInvalidDnException;
 import org.apache.directory.shared.ldap.name.DN;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.stereotype.Component;
 
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Implements {@link org.apache.directory.server.core.authn.Authenticator}
@@ -26,48 +49,217 @@ import java.util.Objects;
  * @author Dieter Wimberger (dieter at wimpi dot net)
  */
 @Component
+@ManagedResource(objectName = "amtgroup.devinfra.crowdldap:type=CrowdAuthenticator")
 @Slf4j
 public class CrowdAuthenticator extends AbstractAuthenticator {
 
     private final CrowdClient client;
 
+    private final CrowdBindCache bindCache;
+
+    private final CrowdBindThrottle bindThrottle;
+
+    private final CrowdCredentialHasher credentialHasher;
+
+    private final AsyncTaskExecutor bindExecutor;
+
+    private final CrowdLdapMetrics metrics;
+
+    private final long bindTimeout;
+
+    /**
+     * Ключ пары пользователь/пароль -> выполняющаяся аутентификация в Crowd.
+     */
+    private final ConcurrentMap<String, CompletableFuture<User>> inFlightBinds = new ConcurrentHashMap<>();
+
+    private final LongAdder coalescedBinds = new LongAdder();
+    private final LongAdder rejectedBinds = new LongAdder();
+    private final LongAdder timedOutBinds = new LongAdder();
+
     private final DN usersDn;
 
 
     @Autowired
     public CrowdAuthenticator(CrowdLdapProperties crowdLdapProperties,
-                              CrowdClient client) throws LdapInvalidDnException {
+                              CrowdClient client,
+                              CrowdBindCache bindCache,
+                              CrowdBindThrottle bindThrottle,
+                              CrowdCredentialHasher credentialHasher,
+                              @Qualifier(CrowdLdapConfiguration.BIND_EXECUTOR) AsyncTaskExecutor bindExecutor,
+                              CrowdLdapMetrics metrics) throws LdapInvalidDnException {
 
         super("simple");
         this.client = Objects.requireNonNull(client);
+        this.bindCache = bindCache;
+        this.bindThrottle = bindThrottle;
+        this.credentialHasher = credentialHasher;
+        this.bindExecutor = bindExecutor;
+        this.metrics = metrics;
+        this.bindTimeout = crowdLdapProperties.getBind().getTimeout();
         this.usersDn = new DN(crowdLdapProperties.getSuffix()).add(CrowdLdapConstants.USERS_RDN);
     }
 
 
+    /**
+     * Аутентифицирует пользователя. Отклонённая аутентификация - ожидаемый результат, а не ошибка сервера:
+     * она журналируется одной строкой без стека вызовов и завершается {@link CrowdAuthenticationException},
+     * которое не заполняет стек вызовов.
+     */
     @Override
     public LdapPrincipal authenticate(BindOperationContext ctx) {
-        log.trace("authenticate(): {}", ctx);
+        long started = metrics.start();
+        BindResult result = BindResult.ERROR;
+        String user = null;
+        String address = null;
         try {
             DN bindDn = ctx.getDn();
             if (!StringUtils.endsWithIgnoreCase(bindDn.getName(), this.usersDn.getName())
                     || bindDn.size() != this.usersDn.size() + 1) {
 
-                log.error("authenticate() => invalid bind DN: {}", ctx);
+                log.error("authenticate() => invalid bind DN: [{}]", bindDn.getName());
+            }
+            user = bindDn.getSuffix(this.usersDn.size()).getRdn().getNormValue();
+            String pass = new String(ctx.getCredentials(), StandardCharsets.UTF_8);
+            address = getClientAddress(ctx);
+            // ограничение проверяется до кеша: подбор паролей не должен расходовать потоки обработки запросов на PBKDF2
+            if (!bindThrottle.acquire(user, pass, address)) {
+                result = BindResult.THROTTLED;
+                log.debug("authenticate() => rejected without calling Crowd: [{}] from [{}]", user, address);
+                throw new CrowdAuthenticationException(user);
             }
-            String user = ctx.getDn().getSuffix(this.usersDn.size()).getRdn().getNormValue();
-            String pass = new String(ctx.getCredentials(), "utf-8");
-            User u = client.authenticateUser(user, pass);
+            if (bindCache.authenticate(user, pass)) {
+                result = BindResult.CACHED;
+                log.trace("authenticate() => success (cached): [{}]", user);
+                return new LdapPrincipal(bindDn, AuthenticationLevel.SIMPLE);
+            }
+            User u = authenticateUser(user, pass, address);
             if (u == null) {
-                log.warn("authenticate() => failed: {}", ctx);
+                result = BindResult.FAILED;
+                log.warn("authenticate() => failed: [{}] from [{}]", user, address);
                 throw new CrowdAuthenticationException(user);
-            } else {
-                log.trace("authenticate() => success: {}", ctx);
-                return new LdapPrincipal(ctx.getDn(), AuthenticationLevel.SIMPLE);
             }
-        } catch (Exception ex) {
-            log.error("authenticate() => error:", ctx, ex);
-            throw new CrowdLdapException(ex);
+            result = BindResult.SUCCESS;
+            log.trace("authenticate() => success: [{}]", user);
+            return new LdapPrincipal(bindDn, AuthenticationLevel.SIMPLE);
+        } catch (CrowdAuthenticationException e) {
+            throw e;
+        } catch (UserNotFoundException | InactiveAccountException | ExpiredCredentialException | InvalidAuthenticationException e) {
+            result = BindResult.FAILED;
+            if (log.isWarnEnabled()) {
+                log.warn("authenticate() => failed: [{}] from [{}]: {}", user, address, e.getClass().getSimpleName());
+            }
+            throw new CrowdAuthenticationException(user);
+        } catch (TaskRejectedException | TimeoutException e) {
+            // уже записано в журнал при отклонении или истечении времени ожидания
+            result = e instanceof TimeoutException ? BindResult.TIMEOUT : BindResult.REJECTED;
+            throw new CrowdLdapException(e);
+        } catch (Exception e) {
+            log.error("authenticate() => error: [{}] from [{}]", user, address, e);
+            throw new CrowdLdapException(e);
+        } finally {
+            metrics.bind(started, result);
+        }
+    }
+
+    @ManagedAttribute(description = "Number of binds that shared the result of an identical bind already in progress")
+    public long getCoalescedBindCount() {
+        return coalescedBinds.sum();
+    }
+
+    @ManagedAttribute(description = "Number of binds rejected because the Crowd bind queue was full")
+    public long getRejectedBindCount() {
+        return rejectedBinds.sum();
+    }
+
+    @ManagedAttribute(description = "Number of binds that did not get a Crowd response within the timeout")
+    public long getTimedOutBindCount() {
+        return timedOutBinds.sum();
+    }
+
+
+    /**
+     * Аутентифицирует пользователя в Crowd. Одновременные аутентификации с одинаковыми учётными данными
+     * ожидают результата единственного обращения к Crowd.
+     * <p>
+     * Обращение выполняется в отдельном ограниченном пуле потоков: поток обработки LDAP-запроса ожидает результат
+     * не дольше заданного времени, а при заполнении очереди пула аутентификация сразу отклоняется.
+     * Так медленный Crowd не занимает все потоки обработки запросов, и поиск продолжает обслуживаться.
+     */
+    private User authenticateUser(String user, String pass, String address) throws Exception {
+        String key = credentialHasher.key(user, pass);
+        CompletableFuture<User> call = new CompletableFuture<>();
+        CompletableFuture<User> inFlight = inFlightBinds.putIfAbsent(key, call);
+        if (inFlight != null) {
+            coalescedBinds.increment();
+            return await(inFlight, user);
+        }
+        try {
+            Future<User> future;
+            try {
+                future = bindExecutor.submit(() -> callCrowd(user, pass, address));
+            } catch (TaskRejectedException e) {
+                rejectedBinds.increment();
+                log.warn("authenticate() => Crowd bind queue is full, bind of [{}] rejected", user);
+                throw e;
+            }
+            User u;
+            try {
+                u = await(future, user);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                throw e;
+            }
+            call.complete(u);
+            return u;
+        } catch (Exception e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightBinds.remove(key, call);
+        }
+    }
+
+    private User await(Future<User> future, String user) throws Exception {
+        try {
+            return future.get(bindTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            timedOutBinds.increment();
+            log.warn("authenticate() => no response from Crowd in {} ms for [{}]", bindTimeout, user);
+            throw e;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    private User callCrowd(String user, String pass, String address) throws Exception {
+        User u;
+        long started = metrics.start();
+        try {
+            u = client.authenticateUser(user, pass);
+            metrics.crowd(CrowdCall.AUTHENTICATE, started, false);
+        } catch (UserNotFoundException | InactiveAccountException | ExpiredCredentialException | InvalidAuthenticationException e) {
+            // Crowd отклонил учётные данные - повторные попытки с ними будут отклонены без обращения к Crowd
+            metrics.crowd(CrowdCall.AUTHENTICATE, started, false);
+            bindThrottle.failed(user, pass, address);
+            throw e;
+        } catch (Exception e) {
+            metrics.crowd(CrowdCall.AUTHENTICATE, started, true);
+            throw e;
+        }
+        if (u == null) {
+            bindThrottle.failed(user, pass, address);
+        } else {
+            bindCache.put(user, pass);
+        }
+        return u;
+    }
+
+    private static String getClientAddress(BindOperationContext ctx) {
+        SocketAddress address = ctx.getSession() != null ? ctx.getSession().getClientAddress() : null;
+        if (address instanceof InetSocketAddress) {
+            return ((InetSocketAddress) address).getHostString();
         }
+        return address != null ? address.toString() : null;
     }
 
 }
@@ -0,0 +1,186 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapProperties;
+import amtgroup.devinfra.crowdldap.component.crowd.exception.CrowdLdapException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Кеш успешных аутентификаций пользователей в Crowd.
+ * <p>
+ * Для пользователя хранится хеш PBKDF2 пароля со случайной солью, сам пароль не хранится.
+ * Запись действительна в течение заданного времени и удаляется, если синхронизация
+ * обнаружила изменение или удаление пользователя.
+ *
+ * @author Vitaly Ogoltsov
+ */
+@Component
+@ManagedResource(objectName = "amtgroup.devinfra.crowdldap:type=CrowdBindCache")
+@Slf4j
+public class CrowdBindCache {
+
+    private static final String HASH_ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 256;
+
+    private final boolean enabled;
+    private final long ttl;
+    private final int hashIterations;
+
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Имя пользователя в нижнем регистре -> успешная аутентификация.
+     */
+    private final Map<String, CachedBind> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder hitTime = new LongAdder();
+
+
+    public CrowdBindCache(CrowdLdapProperties crowdLdapProperties) {
+        CrowdLdapProperties.BindCache properties = crowdLdapProperties.getBindCache();
+        this.enabled = properties.isEnabled();
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(properties.getTtl());
+        this.hashIterations = properties.getHashIterations();
+        int maxSize = properties.getMaxSize();
+        this.entries = Collections.synchronizedMap(new LinkedHashMap<String, CachedBind>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedBind> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+
+    /**
+     * Проверяет пароль пользователя по кешу.
+     *
+     * @return {@code true}, если пользователь недавно успешно аутентифицировался с этим паролем
+     */
+    boolean authenticate(String userName, String password) {
+        if (!enabled) {
+            return false;
+        }
+        long started = System.nanoTime();
+        String key = key(userName);
+        CachedBind entry = entries.get(key);
+        if (entry != null && started - entry.created > ttl) {
+            entries.remove(key, entry);
+            entry = null;
+        }
+        if (entry == null || !MessageDigest.isEqual(entry.hash, hash(password, entry.salt))) {
+            misses.increment();
+            return false;
+        }
+        hits.increment();
+        hitTime.add(System.nanoTime() - started);
+        return true;
+    }
+
+    /**
+     * Запоминает успешную аутентификацию пользователя в Crowd.
+     */
+    void put(String userName, String password) {
+        if (!enabled) {
+            return;
+        }
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        entries.put(key(userName), new CachedBind(salt, hash(password, salt), System.nanoTime()));
+    }
+
+    /**
+     * Удаляет аутентификацию пользователя из кеша.
+     */
+    void invalidate(String userName) {
+        if (enabled && entries.remove(key(userName)) != null) {
+            log.debug("invalidate(): cached authentication of [{}] removed", userName);
+        }
+    }
+
+    @ManagedOperation(description = "Remove all cached authentications")
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+
+    @ManagedAttribute(description = "Number of cached authentications")
+    public int getSize() {
+        return entries.size();
+    }
+
+    @ManagedAttribute(description = "Number of binds confirmed by the cache")
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    @ManagedAttribute(description = "Number of binds forwarded to Crowd because the cache could not confirm them")
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @ManagedAttribute(description = "Share of binds confirmed by the cache")
+    public double getHitRatio() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total > 0 ? (double) hitCount / total : 0;
+    }
+
+    @ManagedAttribute(description = "Average time to confirm a bind by the cache, ms")
+    public double getAverageHitTime() {
+        long hitCount = hits.sum();
+        return hitCount > 0 ? (double) hitTime.sum() / hitCount / TimeUnit.MILLISECONDS.toNanos(1) : 0;
+    }
+
+
+    private byte[] hash(String password, byte[] salt) {
+        PBEKeySpec keySpec = new PBEKeySpec(password.toCharArray(), salt, hashIterations, HASH_LENGTH);
+        try {
+            return SecretKeyFactory.getInstance(HASH_ALGORITHM).generateSecret(keySpec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new CrowdLdapException(e);
+        } finally {
+            keySpec.clearPassword();
+        }
+    }
+
+    private static String key(String userName) {
+        return userName.toLowerCase(Locale.ROOT);
+    }
+
+
+
+    private static final class CachedBind {
+
+        private final byte[] salt;
+        private final byte[] hash;
+        private final long created;
+
+        private CachedBind(byte[] salt, byte[] hash, long created) {
+            this.salt = salt;
+            this.hash = hash;
+            this.created = created;
+        }
+
+    }
+
+}
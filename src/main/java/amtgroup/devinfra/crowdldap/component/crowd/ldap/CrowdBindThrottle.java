@@ -0,0 +1,195 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Защищает Crowd от повторяющихся неуспешных аутентификаций.
+ * <p>
+ * Неуспешная пара пользователь/пароль некоторое время отклоняется без обращения к Crowd,
+ * пароль при этом в открытом виде не хранится (см. {@link CrowdCredentialHasher}).
+ * Кроме того, неуспешные аутентификации расходуют маркеры из корзин пользователя и адреса клиента:
+ * пока корзина пуста, аутентификации этого пользователя или с этого адреса в Crowd не передаются.
+ *
+ * @author Vitaly Ogoltsov
+ */
+@Component
+@ManagedResource(objectName = "amtgroup.devinfra.crowdldap:type=CrowdBindThrottle")
+@Slf4j
+public class CrowdBindThrottle {
+
+    private final boolean enabled;
+    private final long negativeCacheTtl;
+    private final CrowdLdapProperties.BindThrottle properties;
+
+    private final CrowdCredentialHasher credentialHasher;
+
+    /**
+     * Источник времени в наносекундах ({@link System#nanoTime()}).
+     */
+    private final LongSupplier clock;
+
+    /**
+     * Пользователь и хеш пароля -> момент неуспешной аутентификации.
+     */
+    private final Map<String, Long> failures;
+    private final Map<String, TokenBucket> userBuckets;
+    private final Map<String, TokenBucket> addressBuckets;
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder forwarded = new LongAdder();
+
+
+    @Autowired
+    public CrowdBindThrottle(CrowdLdapProperties crowdLdapProperties, CrowdCredentialHasher credentialHasher) {
+        this(crowdLdapProperties, credentialHasher, System::nanoTime);
+    }
+
+    CrowdBindThrottle(CrowdLdapProperties crowdLdapProperties, CrowdCredentialHasher credentialHasher, LongSupplier clock) {
+        this.clock = clock;
+        this.properties = crowdLdapProperties.getBindThrottle();
+        this.enabled = properties.isEnabled();
+        this.negativeCacheTtl = TimeUnit.MILLISECONDS.toNanos(properties.getNegativeCacheTtl());
+        this.credentialHasher = credentialHasher;
+        this.failures = lruMap(properties.getMaxSize());
+        this.userBuckets = lruMap(properties.getMaxSize());
+        this.addressBuckets = lruMap(properties.getMaxSize());
+    }
+
+
+    /**
+     * Проверяет, можно ли проверить аутентификацию по кешу и передать её в Crowd.
+     * Проверка использует только HMAC пароля и выполняется до более дорогой проверки по кешу аутентификаций.
+     *
+     * @param address адрес клиента или {@code null}, если он неизвестен
+     * @return {@code false}, если аутентификация должна быть отклонена без обращения к Crowd
+     */
+    boolean acquire(String userName, String password, String address) {
+        if (enabled) {
+            long now = clock.getAsLong();
+            Long failed = failures.get(credentialHasher.key(userName, password));
+            if (failed != null && now - failed <= negativeCacheTtl) {
+                rejected.increment();
+                return false;
+            }
+            TokenBucket userBucket = userBuckets.get(key(userName));
+            TokenBucket addressBucket = address != null ? addressBuckets.get(address) : null;
+            if ((userBucket != null && !userBucket.available(now)) || (addressBucket != null && !addressBucket.available(now))) {
+                throttled.increment();
+                return false;
+            }
+        }
+        forwarded.increment();
+        return true;
+    }
+
+    /**
+     * Учитывает неуспешную аутентификацию в Crowd.
+     *
+     * @param address адрес клиента или {@code null}, если он неизвестен
+     */
+    void failed(String userName, String password, String address) {
+        if (!enabled) {
+            return;
+        }
+        long now = clock.getAsLong();
+        failures.put(credentialHasher.key(userName, password), now);
+        bucket(userBuckets, key(userName), properties.getUserBurst(), properties.getUserRate(), now).consume(now);
+        if (address != null) {
+            bucket(addressBuckets, address, properties.getAddressBurst(), properties.getAddressRate(), now).consume(now);
+        }
+    }
+
+
+    @ManagedAttribute(description = "Number of binds rejected by the failed credential cache")
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    @ManagedAttribute(description = "Number of binds rejected because the user or client address is throttled")
+    public long getThrottledCount() {
+        return throttled.sum();
+    }
+
+    @ManagedAttribute(description = "Number of binds passed on to the bind cache and Crowd")
+    public long getForwardedCount() {
+        return forwarded.sum();
+    }
+
+
+    private static TokenBucket bucket(Map<String, TokenBucket> buckets, String key, int burst, double rate, long now) {
+        synchronized (buckets) {
+            return buckets.computeIfAbsent(key, k -> new TokenBucket(burst, rate, now));
+        }
+    }
+
+    private static String key(String userName) {
+        return userName.toLowerCase(Locale.ROOT);
+    }
+
+    private static <V> Map<String, V> lruMap(int maxSize) {
+        return Collections.synchronizedMap(new LinkedHashMap<String, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+
+
+    /**
+     * Корзина маркеров: вмещает не более {@code burst} маркеров и пополняется на {@code rate} маркеров в секунду.
+     */
+    private static final class TokenBucket {
+
+        private final int burst;
+        private final double rate;
+
+        private double tokens;
+        private long refilled;
+
+        private TokenBucket(int burst, double rate, long now) {
+            this.burst = burst;
+            this.rate = rate;
+            this.tokens = burst;
+            this.refilled = now;
+        }
+
+        private synchronized boolean available(long now) {
+            refill(now);
+            return tokens >= 1;
+        }
+
+        private synchronized void consume(long now) {
+            refill(now);
+            tokens = Math.max(0, tokens - 1);
+        }
+
+        private void refill(long now) {
+            // время, прочитанное другим потоком раньше, не должно уменьшать количество маркеров
+            if (now <= refilled) {
+                return;
+            }
+            tokens = Math.min(burst, tokens + (now - refilled) * rate / TimeUnit.SECONDS.toNanos(1));
+            refilled = now;
+        }
+
+    }
+
+}
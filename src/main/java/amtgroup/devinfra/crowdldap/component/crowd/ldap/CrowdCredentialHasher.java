@@ -0,0 +1,45 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.exception.CrowdLdapException;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * Строит ключи для пар пользователь/пароль, не содержащие пароль в открытом виде.
+ * <p>
+ * Пароль заменяется HMAC с ключом, который создаётся при запуске и не покидает память процесса.
+ *
+ * @author Vitaly Ogoltsov
+ */
+@Component
+class CrowdCredentialHasher {
+
+    private static final String HASH_ALGORITHM = "HmacSHA256";
+
+    private final SecretKey hashKey;
+
+
+    CrowdCredentialHasher() throws GeneralSecurityException {
+        this.hashKey = KeyGenerator.getInstance(HASH_ALGORITHM).generateKey();
+    }
+
+
+    String key(String userName, String password) {
+        try {
+            Mac mac = Mac.getInstance(HASH_ALGORITHM);
+            mac.init(hashKey);
+            byte[] hash = mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+            return userName.toLowerCase(Locale.ROOT) + ':' + Base64.getEncoder().encodeToString(hash);
+        } catch (GeneralSecurityException e) {
+            throw new CrowdLdapException(e);
+        }
+    }
+
+}
@@ -0,0 +1,241 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import com.atlassian.crowd.model.group.Group;
+import com.atlassian.crowd.model.user.User;
+import lombok.Value;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Модель каталога Crowd в памяти: публикуемые атрибуты и признаки активности пользователей и групп,
+ * а также прямые членства пользователей и групп в группах.
+ * <p>
+ * Из объектов Crowd копируются только публикуемые атрибуты, сами объекты не удерживаются.
+ * Не является потокобезопасной: изменяется только в процессе синхронизации.
+ *
+ * @author Vitaly Ogoltsov
+ */
+final class CrowdDirectory {
+
+    private final Map<String, GroupRecord> groups = new HashMap<>();
+    private final Map<String, UserRecord> users = new HashMap<>();
+
+    /**
+     * Группа -> имена пользователей, непосредственно входящих в группу.
+     */
+    private final Map<String, Set<String>> groupUsers = new HashMap<>();
+    /**
+     * Пользователь -> имена групп, в которые он непосредственно входит.
+     */
+    private final Map<String, Set<String>> userGroups = new HashMap<>();
+    /**
+     * Группа -> имена групп, непосредственно вложенных в неё.
+     */
+    private final Map<String, Set<String>> groupChildren = new HashMap<>();
+    /**
+     * Группа -> имена групп, в которые она непосредственно вложена.
+     */
+    private final Map<String, Set<String>> groupParents = new HashMap<>();
+
+
+    GroupRecord getGroup(String groupName) {
+        return groups.get(groupName);
+    }
+
+    boolean isGroupActive(String groupName) {
+        GroupRecord group = groups.get(groupName);
+        return group != null && group.isActive();
+    }
+
+    UserRecord getUser(String userName) {
+        return users.get(userName);
+    }
+
+    boolean isUserActive(String userName) {
+        UserRecord user = users.get(userName);
+        return user != null && user.isActive();
+    }
+
+    Collection<GroupRecord> getGroups() {
+        return Collections.unmodifiableCollection(groups.values());
+    }
+
+    Collection<UserRecord> getUsers() {
+        return Collections.unmodifiableCollection(users.values());
+    }
+
+    Set<String> getUserNames(String groupName) {
+        return Collections.unmodifiableSet(groupUsers.getOrDefault(groupName, Collections.emptySet()));
+    }
+
+    /**
+     * @return имена групп, в которые непосредственно входит хотя бы один пользователь
+     */
+    Set<String> getMembershipGroupNames() {
+        return Collections.unmodifiableSet(groupUsers.keySet());
+    }
+
+    Set<String> getGroupNames(String userName) {
+        return Collections.unmodifiableSet(userGroups.getOrDefault(userName, Collections.emptySet()));
+    }
+
+    /**
+     * @return имена групп, в которые непосредственно вложена хотя бы одна группа
+     */
+    Set<String> getNestingGroupNames() {
+        return Collections.unmodifiableSet(groupChildren.keySet());
+    }
+
+    Set<String> getChildGroupNames(String groupName) {
+        return Collections.unmodifiableSet(groupChildren.getOrDefault(groupName, Collections.emptySet()));
+    }
+
+    Set<String> getParentGroupNames(String groupName) {
+        return Collections.unmodifiableSet(groupParents.getOrDefault(groupName, Collections.emptySet()));
+    }
+
+
+    void putGroup(GroupRecord group) {
+        groups.put(group.getName(), group);
+    }
+
+    /**
+     * Удаляет группу вместе с её членствами и вложениями.
+     */
+    void removeGroup(String groupName) {
+        groups.remove(groupName);
+        Set<String> userNames = groupUsers.remove(groupName);
+        if (userNames != null) {
+            for (String userName : userNames) {
+                remove(userGroups, userName, groupName);
+            }
+        }
+        Set<String> childGroupNames = groupChildren.remove(groupName);
+        if (childGroupNames != null) {
+            for (String childGroupName : childGroupNames) {
+                remove(groupParents, childGroupName, groupName);
+            }
+        }
+        Set<String> parentGroupNames = groupParents.remove(groupName);
+        if (parentGroupNames != null) {
+            for (String parentGroupName : parentGroupNames) {
+                remove(groupChildren, parentGroupName, groupName);
+            }
+        }
+    }
+
+    void putUser(UserRecord user) {
+        users.put(user.getName(), user);
+    }
+
+    /**
+     * Удаляет пользователя вместе с его членствами.
+     */
+    void removeUser(String userName) {
+        users.remove(userName);
+        Set<String> groupNames = userGroups.remove(userName);
+        if (groupNames != null) {
+            for (String groupName : groupNames) {
+                remove(groupUsers, groupName, userName);
+            }
+        }
+    }
+
+    void addMembership(String userName, String groupName) {
+        groupUsers.computeIfAbsent(groupName, k -> new HashSet<>()).add(userName);
+        userGroups.computeIfAbsent(userName, k -> new HashSet<>()).add(groupName);
+    }
+
+    void removeMembership(String userName, String groupName) {
+        remove(groupUsers, groupName, userName);
+        remove(userGroups, userName, groupName);
+    }
+
+
+    void addGroupMembership(String childGroupName, String parentGroupName) {
+        groupChildren.computeIfAbsent(parentGroupName, k -> new HashSet<>()).add(childGroupName);
+        groupParents.computeIfAbsent(childGroupName, k -> new HashSet<>()).add(parentGroupName);
+    }
+
+    void removeGroupMembership(String childGroupName, String parentGroupName) {
+        remove(groupChildren, parentGroupName, childGroupName);
+        remove(groupParents, childGroupName, parentGroupName);
+    }
+
+
+    /**
+     * @return независимая копия модели: записи неизменяемы и разделяются, множества членств копируются
+     */
+    CrowdDirectory copy() {
+        CrowdDirectory copy = new CrowdDirectory();
+        copy.groups.putAll(groups);
+        copy.users.putAll(users);
+        copy(groupUsers, copy.groupUsers);
+        copy(userGroups, copy.userGroups);
+        copy(groupChildren, copy.groupChildren);
+        copy(groupParents, copy.groupParents);
+        return copy;
+    }
+
+
+    private static void copy(Map<String, Set<String>> source, Map<String, Set<String>> target) {
+        source.forEach((key, values) -> target.put(key, new HashSet<>(values)));
+    }
+
+    private static void remove(Map<String, Set<String>> map, String key, String value) {
+        Set<String> values = map.get(key);
+        if (values != null && values.remove(value) && values.isEmpty()) {
+            map.remove(key);
+        }
+    }
+
+
+
+    /**
+     * Публикуемые атрибуты группы Crowd.
+     */
+    @Value
+    static class GroupRecord {
+
+        String name;
+        String description;
+        boolean active;
+
+        static GroupRecord of(Group group) {
+            return new GroupRecord(group.getName(), group.getDescription(), group.isActive());
+        }
+
+    }
+
+    /**
+     * Публикуемые атрибуты пользователя Crowd.
+     */
+    @Value
+    static class UserRecord {
+
+        String name;
+        String displayName;
+        String emailAddress;
+        String firstName;
+        String lastName;
+        boolean active;
+
+        static UserRecord of(User user) {
+            return new UserRecord(
+                    user.getName(),
+                    user.getDisplayName(),
+                    user.getEmailAddress(),
+                    user.getFirstName(),
+                    user.getLastName(),
+                    user.isActive()
+            );
+        }
+
+    }
+
+}
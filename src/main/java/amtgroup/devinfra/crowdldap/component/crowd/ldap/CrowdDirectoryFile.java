@@ -0,0 +1,166 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.ldap.CrowdDirectory.GroupRecord;
+import amtgroup.devinfra.crowdldap.component.crowd.ldap.CrowdDirectory.UserRecord;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Файл с последней успешно синхронизированной моделью каталога и токеном событий Crowd.
+ * <p>
+ * Позволяет после перезапуска сразу обслуживать запросы по сохранённой модели и обновлять её из Crowd в фоне.
+ * Модель записывается в компактном двоичном виде: только публикуемые атрибуты, прямые членства и вложения групп.
+ * Строки записываются длиной в байтах ({@code -1} - {@code null}) и байтами UTF-8.
+ * Файл заменяется атомарно, поэтому при сбое во время записи сохраняется предыдущая версия.
+ *
+ * @author Vitaly Ogoltsov
+ */
+final class CrowdDirectoryFile {
+
+    private static final int MAGIC = 0x43524C44;
+    /**
+     * Версия 3: строки записываются длиной и байтами UTF-8 (writeUTF ограничивает строку 64 КБ).
+     */
+    private static final int VERSION = 3;
+
+    private final File file;
+
+
+    CrowdDirectoryFile(File file) {
+        this.file = file;
+    }
+
+
+    File getFile() {
+        return file;
+    }
+
+    boolean exists() {
+        return file.isFile();
+    }
+
+    /**
+     * Записывает модель каталога и токен событий, соответствующий её состоянию.
+     */
+    void write(CrowdDirectory directory, String eventToken) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp.toPath()), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, eventToken);
+            Collection<GroupRecord> groups = directory.getGroups();
+            out.writeInt(groups.size());
+            for (GroupRecord group : groups) {
+                writeString(out, group.getName());
+                writeString(out, group.getDescription());
+                out.writeBoolean(group.isActive());
+            }
+            Collection<UserRecord> users = directory.getUsers();
+            out.writeInt(users.size());
+            for (UserRecord user : users) {
+                writeString(out, user.getName());
+                writeString(out, user.getDisplayName());
+                writeString(out, user.getEmailAddress());
+                writeString(out, user.getFirstName());
+                writeString(out, user.getLastName());
+                out.writeBoolean(user.isActive());
+            }
+            Set<String> groupNames = directory.getMembershipGroupNames();
+            out.writeInt(groupNames.size());
+            for (String groupName : groupNames) {
+                Set<String> userNames = directory.getUserNames(groupName);
+                writeString(out, groupName);
+                out.writeInt(userNames.size());
+                for (String userName : userNames) {
+                    writeString(out, userName);
+                }
+            }
+            Set<String> nestingGroupNames = directory.getNestingGroupNames();
+            out.writeInt(nestingGroupNames.size());
+            for (String groupName : nestingGroupNames) {
+                Set<String> childGroupNames = directory.getChildGroupNames(groupName);
+                writeString(out, groupName);
+                out.writeInt(childGroupNames.size());
+                for (String childGroupName : childGroupNames) {
+                    writeString(out, childGroupName);
+                }
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Читает модель каталога.
+     *
+     * @param directory модель, в которую добавляются прочитанные группы, пользователи и членства
+     * @return токен событий, соответствующий состоянию модели, или {@code null}
+     * @throws IOException если файл не может быть прочитан или записан в неподдерживаемом формате
+     */
+    String read(CrowdDirectory directory) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a directory snapshot file: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported directory snapshot version " + version + ": " + file);
+            }
+            String eventToken = readString(in);
+            for (int i = in.readInt(); i > 0; i--) {
+                directory.putGroup(new GroupRecord(readString(in), readString(in), in.readBoolean()));
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                directory.putUser(new UserRecord(readString(in), readString(in), readString(in), readString(in), readString(in), in.readBoolean()));
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                String groupName = readString(in);
+                for (int j = in.readInt(); j > 0; j--) {
+                    directory.addMembership(readString(in), groupName);
+                }
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                String groupName = readString(in);
+                for (int j = in.readInt(); j > 0; j--) {
+                    directory.addGroupMembership(readString(in), groupName);
+                }
+            }
+            return eventToken;
+        }
+    }
+
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        // длина из повреждённого файла не должна приводить к выделению огромного массива
+        if (length < 0 || length > file.length()) {
+            throw new IOException("Invalid string length " + length + ": " + file);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
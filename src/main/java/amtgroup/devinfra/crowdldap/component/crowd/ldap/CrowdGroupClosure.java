@@ -0,0 +1,121 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import java.util.BitSet;
+
+/**
+ * Транзитивное замыкание вложенности групп: для каждой группы - все группы, в которые она входит
+ * непосредственно или через другие группы.
+ * <p>
+ * Группы задаются номерами записей, замыкание вычисляется один раз при публикации каталога.
+ * Циклы вложенности допускаются: группа цикла входит во все группы цикла, но не в саму себя.
+ * Не является потокобезопасным.
+ *
+ * @author Vitaly Ogoltsov
+ */
+final class CrowdGroupClosure {
+
+    private static final int[] NO_IDS = new int[0];
+
+    /**
+     * Номер группы -> упорядоченные номера групп, в которые она входит транзитивно.
+     */
+    private final int[][] ancestors;
+    /**
+     * Количество групп, входящих в циклы вложенности.
+     */
+    private final int cyclicGroupCount;
+
+    private final BitSet scratch;
+
+
+    /**
+     * @param parents номер группы -> номера групп, в которые она непосредственно вложена
+     */
+    CrowdGroupClosure(int[][] parents) {
+        int size = parents.length;
+        this.ancestors = new int[size][];
+        this.scratch = new BitSet(size);
+        int[] stack = new int[size];
+        int cyclic = 0;
+        for (int id = 0; id < size; id++) {
+            scratch.clear();
+            int top = 0;
+            // группа отмечается при помещении в стек, поэтому попадает в него не более одного раза
+            for (int parent : parents[id]) {
+                if (!scratch.get(parent)) {
+                    scratch.set(parent);
+                    stack[top++] = parent;
+                }
+            }
+            while (top > 0) {
+                int group = stack[--top];
+                if (ancestors[group] != null) {
+                    // замыкание группы уже вычислено и полно - обход дальше не нужен
+                    for (int ancestor : ancestors[group]) {
+                        scratch.set(ancestor);
+                    }
+                } else {
+                    for (int parent : parents[group]) {
+                        if (!scratch.get(parent)) {
+                            scratch.set(parent);
+                            stack[top++] = parent;
+                        }
+                    }
+                }
+            }
+            if (scratch.get(id)) {
+                // группа достижима из самой себя - она входит в цикл вложенности
+                scratch.clear(id);
+                cyclic++;
+            }
+            ancestors[id] = toArray(scratch);
+        }
+        this.cyclicGroupCount = cyclic;
+    }
+
+
+    int getCyclicGroupCount() {
+        return cyclicGroupCount;
+    }
+
+    /**
+     * @return упорядоченные номера групп, в которые группа входит транзитивно
+     */
+    int[] ancestors(int id) {
+        return ancestors[id];
+    }
+
+    /**
+     * Дополняет набор групп всеми группами, в которые они входят транзитивно.
+     *
+     * @param ids номера групп
+     * @return упорядоченные номера групп набора и групп, в которые они входят
+     */
+    int[] expand(int[] ids) {
+        if (ids.length == 0) {
+            return ids;
+        }
+        scratch.clear();
+        for (int id : ids) {
+            scratch.set(id);
+            for (int ancestor : ancestors[id]) {
+                scratch.set(ancestor);
+            }
+        }
+        return toArray(scratch);
+    }
+
+
+    private static int[] toArray(BitSet bits) {
+        int cardinality = bits.cardinality();
+        if (cardinality == 0) {
+            return NO_IDS;
+        }
+        int[] ids = new int[cardinality];
+        for (int i = 0, id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+            ids[i++] = id;
+        }
+        return ids;
+    }
+
+}
@@ -0,0 +1,440 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.exception.CrowdLdapException;
+import amtgroup.devinfra.crowdldap.component.crowd.util.CrowdLdapEntryView;
+import org.apache.directory.shared.ldap.entry.DefaultServerEntry;
+import org.apache.directory.shared.ldap.entry.ServerEntry;
+import org.apache.directory.shared.ldap.exception.LdapException;
+import org.apache.directory.shared.ldap.exception.LdapInvalidDnException;
+import org.apache.directory.shared.ldap.filter.ExprNode;
+import org.apache.directory.shared.ldap.name.DN;
+import org.apache.directory.shared.ldap.name.RDN;
+import org.apache.directory.shared.ldap.schema.AttributeType;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.function.Predicate;
+
+/**
+ * Неизменяемый компактный набор записей одного типа (групп или пользователей).
+ * <p>
+ * Записи пронумерованы, значения атрибутов хранятся по столбцам в массивах, индексированных номером записи,
+ * повторяющиеся значения разделяются между записями. Значения member/memberOf хранятся номерами записей
+ * другого набора, строка DN каждой записи хранится в единственном экземпляре.
+ * {@link ServerEntry} строится только для записей, возвращаемых при поиске и чтении,
+ * фильтр поиска проверяется по столбцам без построения записей.
+ *
+ * @author Vitaly Ogoltsov
+ */
+final class CrowdLdapEntryTable {
+
+    private final SchemaManager schemaManager;
+    private final EntryNames names;
+    /**
+     * OID атрибута -> столбец значений.
+     */
+    private final Map<String, Column> columns;
+    /**
+     * OID атрибута связи -> значения связи с учётом вложенных групп (не публикуются, используются для
+     * правила LDAP_MATCHING_RULE_IN_CHAIN). Если столбца нет, связь совпадает со значениями атрибута.
+     */
+    private final Map<String, Column> chainColumns;
+    private final CrowdLdapIndex index;
+
+
+    CrowdLdapEntryTable(SchemaManager schemaManager,
+                        EntryNames names,
+                        List<Column> columns,
+                        List<Column> chainColumns,
+                        Collection<AttributeType> indexedAttributeTypes,
+                        Collection<AttributeType> prefixIndexedAttributeTypes) {
+
+        this.schemaManager = schemaManager;
+        this.names = names;
+        this.columns = byOid(columns);
+        this.chainColumns = byOid(chainColumns);
+        this.index = new CrowdLdapIndex(schemaManager, indexedAttributeTypes, prefixIndexedAttributeTypes, names.size(),
+                this.columns, this.chainColumns);
+    }
+
+    private static Map<String, Column> byOid(List<Column> columns) {
+        Map<String, Column> columnsByOid = new LinkedHashMap<>();
+        for (Column column : columns) {
+            columnsByOid.put(column.attributeType.getOid(), column);
+        }
+        return Collections.unmodifiableMap(columnsByOid);
+    }
+
+
+    int size() {
+        return names.size();
+    }
+
+    /**
+     * Ищет запись по RDN.
+     *
+     * @param rdn нормализованный RDN записи
+     */
+    Optional<ServerEntry> findById(RDN rdn) {
+        Integer id = names.id(rdn);
+        return id != null ? Optional.of(entry(id)) : Optional.empty();
+    }
+
+    /**
+     * Проверяет наличие записи по RDN, не строя запись.
+     *
+     * @param rdn нормализованный RDN записи
+     */
+    boolean containsId(RDN rdn) {
+        return names.id(rdn) != null;
+    }
+
+    /**
+     * Возвращает записи, удовлетворяющие фильтру. Кандидаты отбираются по индексам, если это возможно.
+     * Фильтр проверяется, а записи строятся по мере перебора итератора источника.
+     *
+     * @param filter    фильтр поиска
+     * @param predicate предикат, построенный по фильтру
+     */
+    CrowdLdapSearchSource find(ExprNode filter, Predicate<CrowdLdapEntryView> predicate) {
+        int[] candidates = index.candidates(filter).orElse(null);
+        int count = candidates != null ? candidates.length : size();
+        return new CrowdLdapSearchSource() {
+
+            @Override
+            public Iterator<ServerEntry> iterator() {
+                return new Iterator<ServerEntry>() {
+
+                    private final View view = new View();
+                    private int position;
+                    private boolean found;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (!found && position < count) {
+                            view.id = candidates != null ? candidates[position] : position;
+                            position++;
+                            found = predicate.test(view);
+                        }
+                        return found;
+                    }
+
+                    @Override
+                    public ServerEntry next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        found = false;
+                        return entry(view.id);
+                    }
+
+                };
+            }
+
+            @Override
+            public int[] findIds() {
+                View view = new View();
+                int[] ids = new int[count];
+                int found = 0;
+                for (int position = 0; position < count; position++) {
+                    view.id = candidates != null ? candidates[position] : position;
+                    if (predicate.test(view)) {
+                        ids[found++] = view.id;
+                    }
+                }
+                return found < count ? Arrays.copyOf(ids, found) : ids;
+            }
+
+            @Override
+            public CrowdLdapEntryView view(int id) {
+                View view = new View();
+                view.id = id;
+                return view;
+            }
+
+            @Override
+            public ServerEntry entry(int id) {
+                return CrowdLdapEntryTable.this.entry(id);
+            }
+
+        };
+    }
+
+    /**
+     * Строит запись по номеру.
+     */
+    ServerEntry entry(int id) {
+        try {
+            ServerEntry entry = new DefaultServerEntry(schemaManager, names.dn(schemaManager, id));
+            for (Column column : columns.values()) {
+                int size = column.size(id);
+                if (size == 0) {
+                    continue;
+                }
+                String[] values = new String[size];
+                for (int i = 0; i < size; i++) {
+                    values[i] = column.getUpValue(id, i);
+                }
+                entry.put(column.upId, values);
+            }
+            return entry;
+        } catch (LdapException e) {
+            throw new CrowdLdapException(e);
+        }
+    }
+
+
+
+    /**
+     * Представление записи набора для проверки фильтра. Переиспользуется при переборе записей.
+     */
+    private final class View implements CrowdLdapEntryView {
+
+        private int id;
+
+        @Override
+        public int size(AttributeType attributeType) {
+            Column column = columns.get(attributeType.getOid());
+            return column != null ? column.size(id) : 0;
+        }
+
+        @Override
+        public String getNormValue(AttributeType attributeType, int index) {
+            return columns.get(attributeType.getOid()).getNormValue(id, index);
+        }
+
+        @Override
+        public String getUpValue(AttributeType attributeType, int index) {
+            return columns.get(attributeType.getOid()).getUpValue(id, index);
+        }
+
+        @Override
+        public int getChainSize(AttributeType attributeType) {
+            Column column = chainColumns.get(attributeType.getOid());
+            return column != null ? column.size(id) : size(attributeType);
+        }
+
+        @Override
+        public String getChainNormValue(AttributeType attributeType, int index) {
+            Column column = chainColumns.get(attributeType.getOid());
+            return column != null ? column.getNormValue(id, index) : getNormValue(attributeType, index);
+        }
+
+    }
+
+
+
+    /**
+     * Имена и DN записей набора. Используются как значения RDN-атрибута,
+     * а также как значения member/memberOf записей другого набора.
+     */
+    static final class EntryNames {
+
+        private final DN parentDn;
+        private final String rdnAttributeId;
+        /**
+         * Нормализованный тип RDN-атрибута (OID).
+         */
+        private final String rdnNormType;
+        private final String[] rdnValues;
+        private final String[] dnNames;
+        private final String[] dnNormNames;
+        /**
+         * Нормализованное значение RDN -> номер записи.
+         */
+        private final Map<String, Integer> ids;
+
+        private EntryNames(DN parentDn, String rdnAttributeId, String rdnNormType, String[] rdnValues, String[] dnNames, String[] dnNormNames, Map<String, Integer> ids) {
+            this.parentDn = parentDn;
+            this.rdnAttributeId = rdnAttributeId;
+            this.rdnNormType = rdnNormType;
+            this.rdnValues = rdnValues;
+            this.dnNames = dnNames;
+            this.dnNormNames = dnNormNames;
+            this.ids = ids;
+        }
+
+        static EntryNames of(SchemaManager schemaManager, DN parentDn, String rdnAttributeId, String[] rdnValues) throws LdapInvalidDnException {
+            String[] dnNames = new String[rdnValues.length];
+            String[] dnNormNames = new String[rdnValues.length];
+            Map<String, Integer> ids = new HashMap<>(rdnValues.length * 4 / 3 + 1);
+            String rdnNormType = new DN().add(new RDN(rdnAttributeId, "-"))
+                    .normalize(schemaManager.getNormalizerMapping())
+                    .getRdn().getNormType();
+            for (int id = 0; id < rdnValues.length; id++) {
+                DN dn = new DN().addAll(parentDn).add(new RDN(rdnAttributeId, rdnValues[id]))
+                        .normalize(schemaManager.getNormalizerMapping());
+                dnNames[id] = dn.getName();
+                dnNormNames[id] = dn.getNormName();
+                ids.put(dn.getRdn().getNormValue(), id);
+            }
+            return new EntryNames(parentDn, rdnAttributeId, rdnNormType, rdnValues, dnNames, dnNormNames, Collections.unmodifiableMap(ids));
+        }
+
+        int size() {
+            return rdnValues.length;
+        }
+
+        /**
+         * @param rdn нормализованный RDN записи
+         * @return номер записи, или {@code null}, если RDN не состоит из одного RDN-атрибута набора
+         */
+        private Integer id(RDN rdn) {
+            // составной RDN или RDN другого атрибута с тем же значением не должен находить запись
+            if (rdn.size() != 1 || !rdnNormType.equals(rdn.getNormType())) {
+                return null;
+            }
+            return ids.get(rdn.getNormValue());
+        }
+
+        String[] getRdnValues() {
+            return rdnValues;
+        }
+
+        private DN dn(SchemaManager schemaManager, int id) throws LdapInvalidDnException {
+            return new DN().addAll(parentDn).add(new RDN(rdnAttributeId, rdnValues[id]))
+                    .normalize(schemaManager.getNormalizerMapping());
+        }
+
+    }
+
+
+
+    /**
+     * Столбец значений одного атрибута.
+     */
+    abstract static class Column {
+
+        final AttributeType attributeType;
+        /**
+         * Идентификатор атрибута в построенных записях.
+         */
+        final String upId;
+
+        private Column(AttributeType attributeType, String upId) {
+            this.attributeType = attributeType;
+            this.upId = upId;
+        }
+
+        abstract int size(int id);
+
+        abstract String getUpValue(int id, int index);
+
+        abstract String getNormValue(int id, int index);
+
+
+        /**
+         * Одинаковые значения атрибута у всех записей набора.
+         */
+        static Column constant(Interner interner, AttributeType attributeType, String upId, String... values) throws LdapException {
+            String[] normValues = new String[values.length];
+            for (int i = 0; i < values.length; i++) {
+                normValues[i] = interner.intern(CrowdLdapIndex.normalize(attributeType, values[i]));
+            }
+            return new Column(attributeType, upId) {
+
+                @Override
+                int size(int id) {
+                    return values.length;
+                }
+
+                @Override
+                String getUpValue(int id, int index) {
+                    return values[index];
+                }
+
+                @Override
+                String getNormValue(int id, int index) {
+                    return normValues[index];
+                }
+
+            };
+        }
+
+        /**
+         * Не более одного значения атрибута у каждой записи, {@code null} - значения нет.
+         * Значения в переданном массиве заменяются разделяемыми экземплярами.
+         */
+        static Column single(Interner interner, AttributeType attributeType, String upId, String[] values) throws LdapException {
+            String[] normValues = new String[values.length];
+            for (int id = 0; id < values.length; id++) {
+                if (values[id] != null) {
+                    values[id] = interner.intern(values[id]);
+                    normValues[id] = interner.intern(CrowdLdapIndex.normalize(attributeType, values[id]));
+                }
+            }
+            return new Column(attributeType, upId) {
+
+                @Override
+                int size(int id) {
+                    return values[id] != null ? 1 : 0;
+                }
+
+                @Override
+                String getUpValue(int id, int index) {
+                    return values[id];
+                }
+
+                @Override
+                String getNormValue(int id, int index) {
+                    return normValues[id];
+                }
+
+            };
+        }
+
+        /**
+         * Ссылки на записи другого набора (member/memberOf), значениями атрибута являются DN этих записей.
+         */
+        static Column references(AttributeType attributeType, String upId, int[][] references, EntryNames target) {
+            return new Column(attributeType, upId) {
+
+                @Override
+                int size(int id) {
+                    return references[id].length;
+                }
+
+                @Override
+                String getUpValue(int id, int index) {
+                    return target.dnNames[references[id][index]];
+                }
+
+                @Override
+                String getNormValue(int id, int index) {
+                    return target.dnNormNames[references[id][index]];
+                }
+
+            };
+        }
+
+    }
+
+
+
+    /**
+     * Разделяет одинаковые строковые значения между записями в пределах построения одного набора.
+     */
+    static final class Interner {
+
+        private final Map<String, String> values = new HashMap<>();
+
+        String intern(String value) {
+            if (value == null) {
+                return null;
+            }
+            String interned = values.putIfAbsent(value, value);
+            return interned != null ? interned : value;
+        }
+
+    }
+
+}
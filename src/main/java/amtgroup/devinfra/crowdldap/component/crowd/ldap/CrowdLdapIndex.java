@@ -0,0 +1,294 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.util.CrowdLdapConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.directory.shared.ldap.exception.LdapException;
+import org.apache.directory.shared.ldap.filter.AndNode;
+import org.apache.directory.shared.ldap.filter.EqualityNode;
+import org.apache.directory.shared.ldap.filter.ExprNode;
+import org.apache.directory.shared.ldap.filter.ExtensibleNode;
+import org.apache.directory.shared.ldap.filter.OrNode;
+import org.apache.directory.shared.ldap.filter.SubstringNode;
+import org.apache.directory.shared.ldap.schema.AttributeType;
+import org.apache.directory.shared.ldap.schema.MatchingRule;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Инвертированный индекс записей набора по нормализованным значениям атрибутов.
+ * <p>
+ * Используется для отбора записей-кандидатов по условиям равенства и по начальной подстроке фильтра поиска,
+ * после чего к кандидатам применяется полный фильтр. Для поиска по начальной подстроке нормализованные
+ * значения хранятся упорядоченными, значения с общим префиксом находятся двоичным поиском.
+ * Записи представлены номерами в наборе, номера в каждом списке упорядочены по возрастанию.
+ *
+ * @author Vitaly Ogoltsov
+ */
+@Slf4j
+final class CrowdLdapIndex {
+
+    private static final int[] NO_IDS = new int[0];
+
+    private final SchemaManager schemaManager;
+    private final int size;
+
+    /**
+     * OID атрибута -> нормализованное значение -> номера записей.
+     */
+    private final Map<String, Map<String, int[]>> indexes;
+    /**
+     * OID атрибута -> упорядоченные нормализованные значения и номера записей.
+     */
+    private final Map<String, PrefixIndex> prefixIndexes;
+    /**
+     * OID атрибута связи -> нормализованное значение связи с учётом вложенных групп -> номера записей.
+     */
+    private final Map<String, Map<String, int[]>> chainIndexes;
+
+
+    CrowdLdapIndex(SchemaManager schemaManager,
+                   Collection<AttributeType> attributeTypes,
+                   Collection<AttributeType> prefixAttributeTypes,
+                   int size,
+                   Map<String, CrowdLdapEntryTable.Column> columns,
+                   Map<String, CrowdLdapEntryTable.Column> chainColumns) {
+
+        this.schemaManager = schemaManager;
+        this.size = size;
+        Map<String, Map<String, int[]>> indexes = new HashMap<>();
+        for (AttributeType attributeType : attributeTypes) {
+            CrowdLdapEntryTable.Column column = columns.get(attributeType.getOid());
+            indexes.put(attributeType.getOid(), column != null ? index(column, size) : Collections.emptyMap());
+        }
+        Map<String, PrefixIndex> prefixIndexes = new HashMap<>();
+        for (AttributeType attributeType : prefixAttributeTypes) {
+            CrowdLdapEntryTable.Column column = columns.get(attributeType.getOid());
+            Map<String, int[]> index = indexes.get(attributeType.getOid());
+            if (index == null) {
+                index = column != null ? index(column, size) : Collections.emptyMap();
+            }
+            prefixIndexes.put(attributeType.getOid(), new PrefixIndex(index));
+        }
+        // по связям с учётом вложенных групп поиск выполняется только по равенству - индексируются все связи
+        Map<String, Map<String, int[]>> chainIndexes = new HashMap<>();
+        chainColumns.forEach((oid, column) -> chainIndexes.put(oid, index(column, size)));
+        this.indexes = Collections.unmodifiableMap(indexes);
+        this.prefixIndexes = Collections.unmodifiableMap(prefixIndexes);
+        this.chainIndexes = Collections.unmodifiableMap(chainIndexes);
+    }
+
+
+    /**
+     * Отбирает записи-кандидаты для фильтра с помощью индексов.
+     *
+     * @param filter фильтр поиска
+     * @return номера кандидатов по возрастанию (надмножество подходящих под фильтр записей)
+     * или пустой {@link Optional}, если фильтр не может быть обработан по индексам
+     */
+    Optional<int[]> candidates(ExprNode filter) {
+        if (filter instanceof EqualityNode) {
+            return candidates((EqualityNode<?>) filter);
+        } else if (filter instanceof SubstringNode) {
+            return candidates((SubstringNode) filter);
+        } else if (filter instanceof ExtensibleNode) {
+            return candidates((ExtensibleNode) filter);
+        } else if (filter instanceof AndNode) {
+            // достаточно самого селективного из проиндексированных условий
+            int[] result = null;
+            for (ExprNode child : ((AndNode) filter).getChildren()) {
+                Optional<int[]> candidates = candidates(child);
+                if (candidates.isPresent() && (result == null || candidates.get().length < result.length)) {
+                    result = candidates.get();
+                }
+            }
+            return Optional.ofNullable(result);
+        } else if (filter instanceof OrNode && !((OrNode) filter).getChildren().isEmpty()) {
+            // все ветви должны быть проиндексированы, иначе нужен полный перебор
+            List<int[]> branches = new ArrayList<>();
+            for (ExprNode child : ((OrNode) filter).getChildren()) {
+                Optional<int[]> candidates = candidates(child);
+                if (!candidates.isPresent()) {
+                    return Optional.empty();
+                }
+                branches.add(candidates.get());
+            }
+            return Optional.of(union(branches));
+        }
+        return Optional.empty();
+    }
+
+    private Optional<int[]> candidates(EqualityNode<?> node) {
+        try {
+            AttributeType attributeType = schemaManager.lookupAttributeTypeRegistry(node.getAttribute());
+            Map<String, int[]> index = indexes.get(attributeType.getOid());
+            if (index == null || node.getValue().isBinary() || "*".equals(node.getValue().getString())) {
+                return Optional.empty();
+            }
+            int[] ids = index.get(normalize(attributeType, node.getValue().getString()));
+            return Optional.of(ids != null ? ids : NO_IDS);
+        } catch (LdapException e) {
+            log.debug("candidates(): unable to use index for [{}]", node, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Условие LDAP_MATCHING_RULE_IN_CHAIN отбирается по индексу связей с учётом вложенных групп,
+     * а если связи совпадают со значениями атрибута - по индексу равенства атрибута.
+     */
+    private Optional<int[]> candidates(ExtensibleNode node) {
+        if (!CrowdLdapConstants.MATCHING_RULE_IN_CHAIN_OID.equals(node.getMatchingRuleId())
+                || node.getAttribute() == null || node.getValue() == null) {
+            return Optional.empty();
+        }
+        try {
+            AttributeType attributeType = schemaManager.lookupAttributeTypeRegistry(node.getAttribute());
+            Map<String, int[]> index = chainIndexes.get(attributeType.getOid());
+            if (index == null) {
+                index = indexes.get(attributeType.getOid());
+            }
+            if (index == null) {
+                return Optional.empty();
+            }
+            // значение расширенного сопоставления парсер и декодер LDAP-сообщений передают в двоичном виде:
+            // оно сравнивается со связями как строка UTF-8, так же как в скомпилированном фильтре
+            int[] ids = index.get(normalize(attributeType, node.getValue().getString()));
+            return Optional.of(ids != null ? ids : NO_IDS);
+        } catch (LdapException e) {
+            log.debug("candidates(): unable to use index for [{}]", node, e);
+            return Optional.empty();
+        }
+    }
+
+    private Optional<int[]> candidates(SubstringNode node) {
+        if (node.getInitial() == null) {
+            return Optional.empty();
+        }
+        try {
+            AttributeType attributeType = schemaManager.lookupAttributeTypeRegistry(node.getAttribute());
+            PrefixIndex index = prefixIndexes.get(attributeType.getOid());
+            if (index == null) {
+                return Optional.empty();
+            }
+            // значения в индексе нормализованы правилом равенства, начальная подстрока - правилом подстрок
+            MatchingRule matchingRule = attributeType.getSubstring() != null ? attributeType.getSubstring() : attributeType.getEquality();
+            String prefix = matchingRule != null && matchingRule.getNormalizer() != null
+                    ? matchingRule.getNormalizer().normalize(node.getInitial())
+                    : node.getInitial();
+            return Optional.of(union(index.find(prefix)));
+        } catch (LdapException e) {
+            log.debug("candidates(): unable to use prefix index for [{}]", node, e);
+            return Optional.empty();
+        }
+    }
+
+    private int[] union(List<int[]> branches) {
+        if (branches.isEmpty()) {
+            return NO_IDS;
+        }
+        if (branches.size() == 1) {
+            return branches.get(0);
+        }
+        BitSet ids = new BitSet(size);
+        for (int[] branch : branches) {
+            for (int id : branch) {
+                ids.set(id);
+            }
+        }
+        return ids.stream().toArray();
+    }
+
+
+    private static Map<String, int[]> index(CrowdLdapEntryTable.Column column, int size) {
+        Map<String, IdList> index = new HashMap<>();
+        for (int id = 0; id < size; id++) {
+            for (int i = 0, count = column.size(id); i < count; i++) {
+                String value = column.getNormValue(id, i);
+                if (value != null) {
+                    index.computeIfAbsent(value, v -> new IdList()).add(id);
+                }
+            }
+        }
+        Map<String, int[]> result = new HashMap<>(index.size() * 4 / 3 + 1);
+        index.forEach((value, ids) -> result.put(value, ids.toArray()));
+        return result;
+    }
+
+    static String normalize(AttributeType attributeType, String value) throws LdapException {
+        if (attributeType.getEquality() == null || attributeType.getEquality().getNormalizer() == null) {
+            return value;
+        }
+        return attributeType.getEquality().getNormalizer().normalize(value);
+    }
+
+
+
+    /**
+     * Упорядоченные нормализованные значения атрибута и номера записей с этими значениями.
+     */
+    private static final class PrefixIndex {
+
+        private final String[] values;
+        private final int[][] ids;
+
+        private PrefixIndex(Map<String, int[]> index) {
+            this.values = index.keySet().toArray(new String[0]);
+            Arrays.sort(this.values);
+            this.ids = new int[values.length][];
+            for (int i = 0; i < values.length; i++) {
+                this.ids[i] = index.get(values[i]);
+            }
+        }
+
+        /**
+         * @return номера записей для каждого значения, начинающегося с префикса
+         */
+        private List<int[]> find(String prefix) {
+            int position = Arrays.binarySearch(values, prefix);
+            if (position < 0) {
+                position = -position - 1;
+            }
+            List<int[]> result = new ArrayList<>();
+            for (; position < values.length && values[position].startsWith(prefix); position++) {
+                result.add(ids[position]);
+            }
+            return result;
+        }
+
+    }
+
+    /**
+     * Растущий список номеров записей.
+     */
+    private static final class IdList {
+
+        private int[] ids = new int[1];
+        private int size;
+
+        private void add(int id) {
+            // записи перебираются по возрастанию номеров, у записи может быть несколько одинаковых значений
+            if (size > 0 && ids[size - 1] == id) {
+                return;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(ids, size);
+        }
+
+    }
+
+}
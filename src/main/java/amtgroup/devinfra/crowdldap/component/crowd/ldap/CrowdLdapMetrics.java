@@ -0,0 +1,312 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapProperties;
+import amtgroup.devinfra.crowdldap.component.crowd.util.CrowdLdapConstants;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.directory.shared.ldap.filter.AndNode;
+import org.apache.directory.shared.ldap.filter.ApproximateNode;
+import org.apache.directory.shared.ldap.filter.EqualityNode;
+import org.apache.directory.shared.ldap.filter.ExprNode;
+import org.apache.directory.shared.ldap.filter.ExtensibleNode;
+import org.apache.directory.shared.ldap.filter.GreaterEqNode;
+import org.apache.directory.shared.ldap.filter.LessEqNode;
+import org.apache.directory.shared.ldap.filter.NotNode;
+import org.apache.directory.shared.ldap.filter.OrNode;
+import org.apache.directory.shared.ldap.filter.PresenceNode;
+import org.apache.directory.shared.ldap.filter.SearchScope;
+import org.apache.directory.shared.ldap.filter.SubstringNode;
+import org.springframework.stereotype.Component;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Метрики crowd partition: операции LDAP, аутентификации, синхронизация с Crowd и обращения к Crowd.
+ * <p>
+ * Метрики поиска различаются областью поиска, базой поиска и видом корневого условия фильтра,
+ * поэтому количество их сочетаний ограничено. Измерители создаются при первом использовании сочетания
+ * и далее берутся из массива, поэтому запись измерения при обработке LDAP-запроса не создаёт объектов.
+ * Если метрики отключены, методы, вызываемые при обработке LDAP-запросов, сразу возвращают управление.
+ *
+ * @author Vitaly Ogoltsov
+ */
+@Component
+public class CrowdLdapMetrics {
+
+    private static final int SCOPES = SearchScope.values().length;
+    private static final int BASES = SearchBase.values().length;
+    private static final int SHAPES = FilterShape.values().length;
+
+    private final boolean enabled;
+    private final MeterRegistry meterRegistry;
+
+    private final AtomicReferenceArray<SearchMeters> searchMeters = new AtomicReferenceArray<>(SCOPES * BASES * SHAPES);
+    private final Timer[] lookupTimers = new Timer[2];
+    private final Timer[] bindTimers = new Timer[BindResult.values().length];
+    private final Timer[] crowdTimers = new Timer[CrowdCall.values().length * 2];
+    private final Map<String, Timer> syncTimers = new ConcurrentHashMap<>();
+
+
+    public CrowdLdapMetrics(CrowdLdapProperties crowdLdapProperties, MeterRegistry meterRegistry) {
+        this.enabled = crowdLdapProperties.getMetrics().isEnabled();
+        this.meterRegistry = meterRegistry;
+        if (enabled) {
+            lookupTimers[0] = Timer.builder("crowdldap.lookup")
+                    .description("Lookups of crowd partition entries")
+                    .tags("result", "missing")
+                    .register(meterRegistry);
+            lookupTimers[1] = Timer.builder("crowdldap.lookup")
+                    .description("Lookups of crowd partition entries")
+                    .tags("result", "found")
+                    .register(meterRegistry);
+            for (BindResult result : BindResult.values()) {
+                bindTimers[result.ordinal()] = Timer.builder("crowdldap.bind")
+                        .description("Binds authenticated against Crowd")
+                        .tags("result", result.tag)
+                        .register(meterRegistry);
+            }
+            for (CrowdCall call : CrowdCall.values()) {
+                for (int failed = 0; failed < 2; failed++) {
+                    crowdTimers[call.ordinal() * 2 + failed] = Timer.builder("crowdldap.crowd.requests")
+                            .description("Requests to Crowd REST API")
+                            .tags("operation", call.tag, "outcome", failed == 0 ? "success" : "error")
+                            .register(meterRegistry);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return время начала измеряемой операции или 0, если метрики отключены
+     */
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Регистрирует показатели опубликованного снимка каталога.
+     */
+    void bindSnapshot(CrowdLdapRepository repository) {
+        if (!enabled) {
+            return;
+        }
+        Gauge.builder("crowdldap.snapshot.entries", repository, CrowdLdapRepository::getUserCount)
+                .description("Number of entries in the published directory snapshot")
+                .tags("type", "users")
+                .register(meterRegistry);
+        Gauge.builder("crowdldap.snapshot.entries", repository, CrowdLdapRepository::getGroupCount)
+                .description("Number of entries in the published directory snapshot")
+                .tags("type", "groups")
+                .register(meterRegistry);
+        Gauge.builder("crowdldap.snapshot.generation", repository, CrowdLdapRepository::getGeneration)
+                .description("Generation of the published directory snapshot, 0 before the first sync")
+                .register(meterRegistry);
+        Gauge.builder("crowdldap.snapshot.age", repository, r -> r.getSnapshotAge() >= 0 ? r.getSnapshotAge() / 1000.0 : Double.NaN)
+                .description("Age of the published directory snapshot, NaN before the first sync")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+        Gauge.builder("crowdldap.sync.peak.heap", repository, CrowdLdapRepository::getSyncPeakUsedHeap)
+                .description("Highest used heap sampled at phase boundaries of the last sync")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return измерители поиска для сочетания области, базы и фильтра или {@code null}, если метрики отключены
+     */
+    SearchMeters search(SearchScope scope, SearchBase base, ExprNode filter) {
+        if (!enabled) {
+            return null;
+        }
+        FilterShape shape = FilterShape.of(filter);
+        int index = (scope.ordinal() * BASES + base.ordinal()) * SHAPES + shape.ordinal();
+        SearchMeters meters = searchMeters.get(index);
+        if (meters == null) {
+            // реестр возвращает уже зарегистрированные измерители, поэтому одновременное создание безопасно
+            meters = new SearchMeters(meterRegistry, scope(scope), base.tag, shape.tag);
+            searchMeters.set(index, meters);
+        }
+        return meters;
+    }
+
+    void lookup(long started, boolean found) {
+        if (enabled) {
+            lookupTimers[found ? 1 : 0].record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    void bind(long started, BindResult result) {
+        if (enabled) {
+            bindTimers[result.ordinal()].record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    void crowd(CrowdCall call, long started, boolean failed) {
+        if (enabled) {
+            crowdTimers[call.ordinal() * 2 + (failed ? 1 : 0)].record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Записывает длительность синхронизации или её этапа. Вызывается только при синхронизации.
+     *
+     * @param phase этап синхронизации, например {@code "full"} или {@code "load users"}
+     */
+    void sync(String phase, long started) {
+        if (enabled) {
+            syncTimers.computeIfAbsent(phase, p -> Timer.builder("crowdldap.sync")
+                    .description("Synchronisation with Crowd and its phases")
+                    .tags("phase", p.replace(' ', '-'))
+                    .register(meterRegistry)
+            ).record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        }
+    }
+
+
+    private static String scope(SearchScope scope) {
+        switch (scope) {
+            case OBJECT:
+                return "base";
+            case ONELEVEL:
+                return "one";
+            default:
+                return "sub";
+        }
+    }
+
+
+
+    /**
+     * Измерители поиска одного сочетания области, базы и вида фильтра.
+     */
+    static final class SearchMeters {
+
+        private final Timer timer;
+        private final DistributionSummary results;
+
+        private SearchMeters(MeterRegistry meterRegistry, String scope, String base, String filter) {
+            this.timer = Timer.builder("crowdldap.search")
+                    .description("Searches in crowd partition: time spent preparing the search and reading its results, excluding time waiting for the client")
+                    .tags("scope", scope, "base", base, "filter", filter)
+                    .register(meterRegistry);
+            this.results = DistributionSummary.builder("crowdldap.search.results")
+                    .description("Number of entries returned by a search in crowd partition")
+                    .baseUnit("entries")
+                    .tags("scope", scope, "base", base, "filter", filter)
+                    .register(meterRegistry);
+        }
+
+        /**
+         * @param elapsed время поиска (нс)
+         */
+        void record(long elapsed, long count) {
+            timer.record(elapsed, TimeUnit.NANOSECONDS);
+            results.record(count);
+        }
+
+    }
+
+    /**
+     * База поиска.
+     */
+    enum SearchBase {
+
+        SUFFIX, GROUPS, USERS, ENTRY;
+
+        private final String tag = name().toLowerCase(Locale.ROOT);
+
+    }
+
+    /**
+     * Вид корневого условия фильтра.
+     */
+    enum FilterShape {
+
+        PRESENCE, EQUALITY, SUBSTRING, RANGE, APPROXIMATE, EXTENSIBLE, IN_CHAIN, AND, OR, NOT, OTHER;
+
+        private final String tag = name().toLowerCase(Locale.ROOT).replace('_', '-');
+
+        static FilterShape of(ExprNode filter) {
+            if (filter instanceof PresenceNode) {
+                return PRESENCE;
+            } else if (filter instanceof EqualityNode) {
+                return EQUALITY;
+            } else if (filter instanceof SubstringNode) {
+                return SUBSTRING;
+            } else if (filter instanceof GreaterEqNode || filter instanceof LessEqNode) {
+                return RANGE;
+            } else if (filter instanceof ApproximateNode) {
+                return APPROXIMATE;
+            } else if (filter instanceof ExtensibleNode) {
+                return CrowdLdapConstants.MATCHING_RULE_IN_CHAIN_OID.equals(((ExtensibleNode) filter).getMatchingRuleId())
+                        ? IN_CHAIN
+                        : EXTENSIBLE;
+            } else if (filter instanceof AndNode) {
+                return AND;
+            } else if (filter instanceof OrNode) {
+                return OR;
+            } else if (filter instanceof NotNode) {
+                return NOT;
+            }
+            return OTHER;
+        }
+
+    }
+
+    /**
+     * Результат аутентификации.
+     */
+    enum BindResult {
+
+        /**
+         * Подтверждена Crowd.
+         */
+        SUCCESS,
+        /**
+         * Подтверждена по кешу успешных аутентификаций.
+         */
+        CACHED,
+        /**
+         * Отклонена Crowd.
+         */
+        FAILED,
+        /**
+         * Отклонена без обращения к Crowd ограничением неуспешных аутентификаций.
+         */
+        THROTTLED,
+        /**
+         * Отклонена из-за заполнения очереди аутентификаций.
+         */
+        REJECTED,
+        /**
+         * Crowd не ответил за отведённое время.
+         */
+        TIMEOUT,
+        /**
+         * Ошибка обращения к Crowd.
+         */
+        ERROR;
+
+        private final String tag = name().toLowerCase(Locale.ROOT);
+
+    }
+
+    /**
+     * Обращение к REST API Crowd.
+     */
+    enum CrowdCall {
+
+        AUTHENTICATE, EVENT_TOKEN, EVENTS, MEMBERSHIPS, GROUPS, USERS;
+
+        private final String tag = name().toLowerCase(Locale.ROOT).replace('_', '-');
+
+    }
+
+}
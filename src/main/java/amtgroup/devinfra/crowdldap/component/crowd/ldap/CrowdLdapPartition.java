@@ -1,6 +1,8 @@
 package amtgroup.devinfra.crowdldap.component.crowd.ldap;
 
 import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapProperties;
+import amtgroup.devinfra.crowdldap.component.crowd.ldap.CrowdLdapMetrics.SearchBase;
+import amtgroup.devinfra.crowdldap.component.crowd.ldap.CrowdLdapSearchLog.Candidates;
 import amtgroup.devinfra.crowdldap.component.crowd.util.CrowdLdapConstants;
 import amtgroup.devinfra.crowdldap.component.crowd.util.CrowdLdapFilter;
 import amtgroup.devinfra.crowdldap.util.exception.ExceptionMessageUtils;
@@ -25,10 +27,11 @@ import org.apache.directory.server.core.interceptor.context.RenameOperationConte
 import org.apache.directory.server.core.interceptor.context.SearchOperationContext;
 import org.apache.directory.server.core.interceptor.context.UnbindOperationContext;
 import org.apache.directory.server.core.partition.AbstractPartition;
+import org.apache.directory.server.ldap.LdapServer;
 import org.apache.directory.shared.ldap.constants.SchemaConstants;
-import org.apache.directory.shared.ldap.cursor.ListCursor;
 import org.apache.directory.shared.ldap.entry.DefaultServerEntry;
 import org.apache.directory.shared.ldap.entry.ServerEntry;
+import org.apache.directory.shared.ldap.exception.LdapException;
 import org.apache.directory.shared.ldap.exception.LdapInvalidDnException;
 import org.apache.directory.shared.ldap.name.DN;
 import org.apache.directory.shared.ldap.schema.SchemaManager;
@@ -37,11 +40,11 @@ import org.springframework.stereotype.Component;
 import javax.annotation.PostConstruct;
 import javax.naming.OperationNotSupportedException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
+import java.util.function.Supplier;
 
 /**
  * @author Vitaly Ogoltsov
@@ -56,6 +59,12 @@ public class CrowdLdapPartition extends AbstractPartition {
 
     private final DirectoryService directoryService;
 
+    private final LdapServer ldapServer;
+
+    private final CrowdLdapMetrics metrics;
+
+    private final CrowdLdapSearchLog searchLog;
+
     @Getter
     @Setter
     private String id;
@@ -76,11 +85,17 @@ public class CrowdLdapPartition extends AbstractPartition {
     public CrowdLdapPartition(CrowdLdapProperties crowdLdapProperties,
                               CrowdLdapRepository crowdLdapRepository,
                               CrowdLdapFilter crowdLdapFilter,
-                              DirectoryService directoryService) throws LdapInvalidDnException {
+                              DirectoryService directoryService,
+                              LdapServer ldapServer,
+                              CrowdLdapMetrics metrics,
+                              CrowdLdapSearchLog searchLog) throws LdapInvalidDnException {
 
         this.crowdLdapRepository = crowdLdapRepository;
         this.crowdLdapFilter = crowdLdapFilter;
         this.directoryService = directoryService;
+        this.ldapServer = ldapServer;
+        this.metrics = metrics;
+        this.searchLog = searchLog;
         setId("crowd");
         setSuffix(crowdLdapProperties.getSuffix());
         setSchemaManager(directoryService.getSchemaManager());
@@ -91,7 +106,9 @@ public class CrowdLdapPartition extends AbstractPartition {
     void init() throws Exception {
         this.initialize();
         directoryService.addPartition(this);
-        crowdLdapRepository.sync();
+        // критичный управляющий элемент сортировки принимается сервером, только если он заявлен как поддерживаемый
+        ldapServer.getSupportedControls().add(CrowdLdapSort.SORT_REQUEST_CONTROL_OID);
+        crowdLdapRepository.start();
     }
 
 
@@ -150,21 +167,49 @@ public class CrowdLdapPartition extends AbstractPartition {
 
     @Override
     public boolean hasEntry(EntryOperationContext entryContext) {
-        log.trace("hasEntry(): {}", entryContext);
-        ServerEntry lookupResult = doLookup(entryContext.getDn());
-        log.trace("hasEntry(): result = {}", lookupResult);
-        return lookupResult != null;
+        boolean exists = doHasEntry(entryContext.getDn());
+        if (log.isTraceEnabled()) {
+            log.trace("hasEntry(): [{}] => {}", entryContext.getDn().getName(), exists);
+        }
+        return exists;
     }
 
     @Override
     public ClonedServerEntry lookup(LookupOperationContext lookupContext) {
-        log.trace("lookup(): {}", lookupContext);
+        long started = metrics.start();
         ServerEntry lookupResult = doLookup(lookupContext.getDn());
-        log.trace("lookup(): result = {}", lookupResult);
+        metrics.lookup(started, lookupResult != null);
+        if (log.isTraceEnabled()) {
+            log.trace("lookup(): [{}] => {}", lookupContext.getDn().getName(), lookupResult != null);
+        }
         return lookupResult != null ? new ClonedServerEntry(lookupResult) : null;
     }
 
+    /**
+     * Проверяет наличие записи так же, как {@link #doLookup(DN)} её ищет, но не строит запись.
+     * Служба каталогов проверяет наличие записи перед каждой операцией, поэтому проверка не выделяет память.
+     */
+    private boolean doHasEntry(DN dn) {
+        String name = dn.getName();
+        if (StringUtils.equalsIgnoreCase(name, this.domainEntry.getDn().getName())
+                || StringUtils.equalsIgnoreCase(name, this.groupsEntry.getDn().getName())
+                || StringUtils.equalsIgnoreCase(name, this.usersEntry.getDn().getName())) {
+            return true;
+        }
+        CrowdLdapSnapshot snapshot = this.crowdLdapRepository.getSnapshot();
+        if (dn.size() == this.groupsEntry.getDn().size() + 1
+                && StringUtils.endsWithIgnoreCase(name, this.groupsEntry.getDn().getName())) {
+            return snapshot.hasGroupEntry(dn.getRdn());
+        }
+        if (dn.size() == this.usersEntry.getDn().size() + 1
+                && StringUtils.endsWithIgnoreCase(name, this.usersEntry.getDn().getName())) {
+            return snapshot.hasUserEntry(dn.getRdn());
+        }
+        return false;
+    }
+
     private ServerEntry doLookup(DN lookupDn) {
+        CrowdLdapSnapshot snapshot = this.crowdLdapRepository.getSnapshot();
         // domain entry
         if (StringUtils.equalsIgnoreCase(lookupDn.getName(), this.domainEntry.getDn().getName())) {
             return this.domainEntry;
@@ -182,7 +227,7 @@ public class CrowdLdapPartition extends AbstractPartition {
             DN groupDn = lookupDn.getSuffix(this.groupsEntry.getDn().size());
             if (groupDn.size() == 1) {
                 // find group by id
-                return this.crowdLdapRepository.findGroupEntryById(groupDn.getRdn())
+                return snapshot.findGroupEntryById(groupDn.getRdn())
                         .orElse(null);
             }
         }
@@ -191,7 +236,7 @@ public class CrowdLdapPartition extends AbstractPartition {
             DN userDn = lookupDn.getSuffix(this.usersEntry.getDn().size());
             if (userDn.size() == 1) {
                 // find user by id
-                return this.crowdLdapRepository.findUserEntryById(userDn.getRdn())
+                return snapshot.findUserEntryById(userDn.getRdn())
                         .orElse(null);
             }
         }
@@ -200,46 +245,61 @@ public class CrowdLdapPartition extends AbstractPartition {
     }
 
     @Override
-    public EntryFilteringCursor search(SearchOperationContext searchContext) {
-        log.trace("search(): {}", searchContext);
+    public EntryFilteringCursor search(SearchOperationContext searchContext) throws LdapException {
+        long started = System.nanoTime();
         DN searchDn = searchContext.getDn();
-        List<ServerEntry> searchResults = new ArrayList<>();
+        if (log.isTraceEnabled()) {
+            log.trace("search(): base = [{}], scope = {}, filter = {}", searchDn.getName(), searchContext.getScope(), searchContext.getFilter());
+        }
+        // количество проверенных фильтром записей попадает в журнал медленных поисков
+        Candidates filter = new Candidates(crowdLdapFilter.of(searchContext.getFilter()));
+        // все источники поиска читают один снимок каталога
+        CrowdLdapSnapshot snapshot = this.crowdLdapRepository.getSnapshot();
+        // источники записей перебираются курсором лениво, по мере чтения результатов
+        List<CrowdLdapSearchSource> sources = new ArrayList<>();
+        SearchBase base = SearchBase.ENTRY;
         // domain entry
         if (StringUtils.equalsIgnoreCase(searchDn.getName(), this.domainEntry.getDn().getName())) {
+            base = SearchBase.SUFFIX;
             switch (searchContext.getScope()) {
                 case OBJECT:
-                    searchResults.add(this.domainEntry);
+                    sources.add(CrowdLdapSearchSource.of(this.domainEntry, filter));
                     break;
                 case SUBTREE:
-                    searchResults.addAll(this.crowdLdapRepository.findAllGroupEntries());
-                    searchResults.addAll(this.crowdLdapRepository.findAllUserEntries());
+                    sources.add(snapshot.findGroupEntries(searchContext.getFilter(), filter));
+                    sources.add(snapshot.findUserEntries(searchContext.getFilter(), filter));
+                    sources.add(CrowdLdapSearchSource.of(this.groupsEntry, filter));
+                    sources.add(CrowdLdapSearchSource.of(this.usersEntry, filter));
+                    break;
                 case ONELEVEL:
-                    searchResults.add(this.groupsEntry);
-                    searchResults.add(this.usersEntry);
+                    sources.add(CrowdLdapSearchSource.of(this.groupsEntry, filter));
+                    sources.add(CrowdLdapSearchSource.of(this.usersEntry, filter));
                     break;
             }
         }
         // groups top entry
         if (StringUtils.equalsIgnoreCase(searchDn.getName(), this.groupsEntry.getDn().getName())) {
+            base = SearchBase.GROUPS;
             switch (searchContext.getScope()) {
                 case OBJECT:
-                    searchResults.add(this.groupsEntry);
+                    sources.add(CrowdLdapSearchSource.of(this.groupsEntry, filter));
                     break;
                 case SUBTREE:
                 case ONELEVEL:
-                    searchResults.addAll(this.crowdLdapRepository.findAllGroupEntries());
+                    sources.add(snapshot.findGroupEntries(searchContext.getFilter(), filter));
                     break;
             }
         }
         // users top entry
         if (StringUtils.equalsIgnoreCase(searchDn.getName(), this.usersEntry.getDn().getName())) {
+            base = SearchBase.USERS;
             switch (searchContext.getScope()) {
                 case OBJECT:
-                    searchResults.add(this.usersEntry);
+                    sources.add(CrowdLdapSearchSource.of(this.usersEntry, filter));
                     break;
                 case SUBTREE:
                 case ONELEVEL:
-                    searchResults.addAll(this.crowdLdapRepository.findAllUserEntries());
+                    sources.add(snapshot.findUserEntries(searchContext.getFilter(), filter));
                     break;
             }
         }
@@ -247,8 +307,8 @@ public class CrowdLdapPartition extends AbstractPartition {
         if (StringUtils.equalsIgnoreCase(searchDn.getPrefix(searchDn.size() - 1).getName(), this.groupsEntry.getDn().getName())) {
             switch (searchContext.getScope()) {
                 case OBJECT:
-                    this.crowdLdapRepository.findGroupEntryById(searchDn.getRdn())
-                            .ifPresent(searchResults::add);
+                    snapshot.findGroupEntryById(searchDn.getRdn())
+                            .ifPresent(entry -> sources.add(CrowdLdapSearchSource.of(entry, filter)));
                     break;
             }
         }
@@ -256,22 +316,21 @@ public class CrowdLdapPartition extends AbstractPartition {
         if (StringUtils.equalsIgnoreCase(searchDn.getPrefix(searchDn.size() - 1).getName(), this.usersEntry.getDn().getName())) {
             switch (searchContext.getScope()) {
                 case OBJECT:
-                    this.crowdLdapRepository.findUserEntryById(searchDn.getRdn())
-                            .ifPresent(searchResults::add);
+                    snapshot.findUserEntryById(searchDn.getRdn())
+                            .ifPresent(entry -> sources.add(CrowdLdapSearchSource.of(entry, filter)));
                     break;
             }
         }
-        // filter results
-        Optional<Predicate<ServerEntry>> filter = crowdLdapFilter.of(searchContext.getFilter());
-        if (filter.isPresent()) {
-            searchResults = searchResults.stream()
-                    .filter(filter.get())
-                    .collect(Collectors.toList());
-        }
-        log.trace("search(): {} results found", searchResults.size());
+        // сортировка упорядочивает номера записей всех источников один раз, далее курсор (в том числе постранично)
+        // строит записи в готовом порядке
+        Optional<CrowdLdapSort> sort = CrowdLdapSort.of(searchContext, schemaManager);
+        List<Supplier<Iterator<ServerEntry>>> results = sort.isPresent()
+                ? sort.get().sort(sources)
+                : CrowdLdapSort.unsorted(sources);
         // return result
         return new BaseEntryFilteringCursor(
-                new ListCursor<>(searchResults),
+                new CrowdLdapSearchCursor(searchContext, snapshot.getGeneration(), results, started,
+                        metrics.search(searchContext.getScope(), base, searchContext.getFilter()), searchLog, filter),
                 searchContext
         );
     }
@@ -1,196 +1,784 @@
 package amtgroup.devinfra.crowdldap.component.crowd.ldap;
 
+import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapConfiguration;
 import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapProperties;
-import amtgroup.devinfra.crowdldap.component.crowd.exception.CrowdLdapException;
 import amtgroup.devinfra.crowdldap.component.crowd.exception.CrowdSyncException;
+import amtgroup.devinfra.crowdldap.component.crowd.ldap.CrowdDirectory.GroupRecord;
+import amtgroup.devinfra.crowdldap.component.crowd.ldap.CrowdDirectory.UserRecord;
+import amtgroup.devinfra.crowdldap.component.crowd.ldap.CrowdLdapEntryTable.Column;
+import amtgroup.devinfra.crowdldap.component.crowd.ldap.CrowdLdapEntryTable.EntryNames;
+import amtgroup.devinfra.crowdldap.component.crowd.ldap.CrowdLdapMetrics.CrowdCall;
 import amtgroup.devinfra.crowdldap.component.crowd.util.CrowdLdapConstants;
+import com.atlassian.crowd.event.Events;
+import com.atlassian.crowd.exception.EventTokenExpiredException;
+import com.atlassian.crowd.exception.IncrementalSynchronisationNotAvailableException;
+import com.atlassian.crowd.model.event.GroupEvent;
+import com.atlassian.crowd.model.event.GroupMembershipEvent;
+import com.atlassian.crowd.model.event.Operation;
+import com.atlassian.crowd.model.event.OperationEvent;
+import com.atlassian.crowd.model.event.UserEvent;
+import com.atlassian.crowd.model.event.UserMembershipEvent;
 import com.atlassian.crowd.model.group.Group;
 import com.atlassian.crowd.model.group.Membership;
 import com.atlassian.crowd.model.user.User;
 import com.atlassian.crowd.search.query.entity.restriction.NullRestrictionImpl;
 import com.atlassian.crowd.service.client.CrowdClient;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.directory.server.core.DirectoryService;
 import org.apache.directory.shared.ldap.constants.SchemaConstants;
-import org.apache.directory.shared.ldap.entry.DefaultServerEntry;
-import org.apache.directory.shared.ldap.entry.ServerEntry;
 import org.apache.directory.shared.ldap.exception.LdapException;
-import org.apache.directory.shared.ldap.exception.LdapInvalidDnException;
 import org.apache.directory.shared.ldap.name.DN;
-import org.apache.directory.shared.ldap.name.RDN;
+import org.apache.directory.shared.ldap.schema.AttributeType;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Repository;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.function.Predicate;
 
 /**
  * @author Vitaly Ogoltsov
  */
 @Repository
+@ManagedResource(objectName = "amtgroup.devinfra.crowdldap:type=CrowdLdapRepository")
 @Slf4j
-class CrowdLdapRepository {
+public class CrowdLdapRepository {
+
+    private static final int[] NO_IDS = new int[0];
 
     private final CrowdClient crowdClient;
     private final DirectoryService directoryService;
+    private final CrowdBindCache bindCache;
+    private final AsyncTaskExecutor syncExecutor;
+
+    private final CrowdLdapMetrics metrics;
 
     private final DN groupsDn;
     private final DN usersDn;
 
-    private volatile List<ServerEntry> groupEntries;
-    private volatile List<ServerEntry> userEntries;
+    private final List<AttributeType> indexedAttributeTypes;
+    private final List<AttributeType> prefixIndexedAttributeTypes;
+
+    private final boolean incrementalSyncEnabled;
+    private final boolean memberOfIncludeNested;
+    private final boolean memberOfEmulateActiveDirectory;
+    private final int syncPageSize;
+
+    /**
+     * Файл сохранённой модели каталога, {@code null} - сохранение отключено.
+     */
+    private final CrowdDirectoryFile directoryFile;
+
+    /**
+     * Модель каталога Crowd. Изменяется только в процессе синхронизации.
+     */
+    private CrowdDirectory directory = new CrowdDirectory();
+    /**
+     * Токен последнего полученного события Crowd, {@code null} - требуется полная синхронизация.
+     */
+    private String eventToken;
+
+    /**
+     * Опубликованный снимок каталога. Заменяется целиком одной записью.
+     */
+    private volatile CrowdLdapSnapshot snapshot = CrowdLdapSnapshot.EMPTY;
+
+    /**
+     * Наибольший занятый heap на границах этапов текущей (или последней) синхронизации.
+     * Пиковые значения пулов памяти общие для JVM и не сбрасываются, поэтому пик синхронизации
+     * оценивается замерами на границах этапов: после каждого этапа в пуле синхронизации
+     * и перед публикацией снимка, когда построенные наборы и предыдущий снимок удерживаются одновременно.
+     */
+    private final LongAccumulator syncPeakUsedHeap = new LongAccumulator(Math::max, 0);
 
 
     @Autowired
     public CrowdLdapRepository(CrowdLdapProperties crowdLdapProperties,
                                CrowdClient crowdClient,
-                               DirectoryService directoryService) throws LdapInvalidDnException {
+                               DirectoryService directoryService,
+                               CrowdBindCache bindCache,
+                               @Qualifier(CrowdLdapConfiguration.SYNC_EXECUTOR) AsyncTaskExecutor syncExecutor,
+                               CrowdLdapMetrics metrics) throws LdapException {
 
         this.groupsDn = new DN(crowdLdapProperties.getSuffix()).add(CrowdLdapConstants.GROUPS_RDN);
         this.usersDn = new DN(crowdLdapProperties.getSuffix()).add(CrowdLdapConstants.USERS_RDN);
         this.crowdClient = crowdClient;
         this.directoryService = directoryService;
+        this.bindCache = bindCache;
+        this.syncExecutor = syncExecutor;
+        this.metrics = metrics;
+        this.incrementalSyncEnabled = crowdLdapProperties.isIncrementalSync();
+        this.memberOfIncludeNested = crowdLdapProperties.isMemberOfIncludeNested();
+        this.memberOfEmulateActiveDirectory = crowdLdapProperties.isMemberOfEmulateActiveDirectory();
+        if (crowdLdapProperties.getSyncPageSize() < 1) {
+            throw new IllegalArgumentException("crowdldap.sync-page-size should be at least 1, found "
+                    + crowdLdapProperties.getSyncPageSize());
+        }
+        this.syncPageSize = crowdLdapProperties.getSyncPageSize();
+        this.directoryFile = crowdLdapProperties.isPersistSnapshot()
+                ? new CrowdDirectoryFile(new File(directoryService.getWorkingDirectory(), "crowd-directory.bin"))
+                : null;
+        this.indexedAttributeTypes = new ArrayList<>();
+        for (String attributeId : crowdLdapProperties.getIndexedAttributes()) {
+            this.indexedAttributeTypes.add(directoryService.getSchemaManager().lookupAttributeTypeRegistry(attributeId));
+        }
+        this.prefixIndexedAttributeTypes = new ArrayList<>();
+        for (String attributeId : crowdLdapProperties.getPrefixIndexedAttributes()) {
+            this.prefixIndexedAttributeTypes.add(directoryService.getSchemaManager().lookupAttributeTypeRegistry(attributeId));
+        }
+        metrics.bindSnapshot(this);
     }
 
 
-    List<ServerEntry> findAllGroupEntries() {
-        if (groupEntries == null) {
-            throw new IllegalStateException();
-        }
-        return groupEntries;
+    /**
+     * @return последний опубликованный снимок каталога, до завершения первой синхронизации - пустой
+     */
+    CrowdLdapSnapshot getSnapshot() {
+        return snapshot;
     }
 
-    Optional<ServerEntry> findGroupEntryById(RDN rdn) {
-        return findAllGroupEntries()
-                .stream()
-                .filter(group -> StringUtils.equalsIgnoreCase(group.getDn().getRdn().getName(), rdn.getName()))
-                .findFirst();
+    @ManagedAttribute(description = "Generation of the published directory snapshot, 0 before the first sync")
+    public long getGeneration() {
+        return snapshot.getGeneration();
     }
 
+    @ManagedAttribute(description = "Age of the published directory snapshot in milliseconds, -1 before the first sync")
+    public long getSnapshotAge() {
+        CrowdLdapSnapshot current = snapshot;
+        return current.getGeneration() > 0 ? System.currentTimeMillis() - current.getCreated() : -1;
+    }
 
-    List<ServerEntry> findAllUserEntries() {
-        if (userEntries == null) {
-            throw new IllegalStateException();
-        }
-        return userEntries;
+    @ManagedAttribute(description = "Number of groups in the published directory snapshot")
+    public int getGroupCount() {
+        return snapshot.getGroupCount();
+    }
+
+    @ManagedAttribute(description = "Highest used heap in bytes sampled at phase boundaries of the last sync")
+    public long getSyncPeakUsedHeap() {
+        return syncPeakUsedHeap.get();
     }
 
-    Optional<ServerEntry> findUserEntryById(RDN rdn) {
-        return findAllUserEntries()
-                .stream()
-                .filter(user -> StringUtils.equalsIgnoreCase(user.getDn().getRdn().getName(), rdn.getName()))
-                .findFirst();
+    @ManagedAttribute(description = "Number of users in the published directory snapshot")
+    public int getUserCount() {
+        return snapshot.getUserCount();
     }
 
 
+    /**
+     * Публикует каталог при запуске. Если есть сохранённая модель каталога, она публикуется сразу,
+     * а синхронизация с Crowd выполняется в фоне. Иначе каталог синхронизируется с Crowd до завершения запуска.
+     * <p>
+     * Фоновая синхронизация выполняется в отдельном потоке, а не в пуле потоков синхронизации:
+     * sync() сам распределяет этапы по этому пулу и ожидает их, и занятый им поток пула мог бы их не дождаться.
+     */
+    void start() {
+        if (directoryFile != null && restore()) {
+            Thread thread = new Thread(() -> {
+                try {
+                    sync();
+                } catch (CrowdSyncException e) {
+                    // ошибка журналируется в sync(), до следующей синхронизации публикуется сохранённая модель
+                }
+            }, "crowd-sync-restore");
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            sync();
+        }
+    }
+
     @Scheduled(fixedRateString = "${crowdldap.cache-ttl:900000}", initialDelayString = "${crowdldap.cache-ttl:900000}")
-    public void sync() {
+    public synchronized void sync() {
         log.info("sync(): started");
+        long usedHeap = getUsedHeap();
+        syncPeakUsedHeap.reset();
+        syncPeakUsedHeap.accumulate(usedHeap);
+        long generation = snapshot.getGeneration();
         try {
-            log.info("sync(): load all groups");
-            Map<String, Group> groups = crowdClient.searchGroups(NullRestrictionImpl.INSTANCE, 0, Integer.MAX_VALUE)
-                    .stream()
-                    .collect(Collectors.toMap(Group::getName, Function.identity()));
-            log.info("sync(): load all users");
-            Map<String, User> users = crowdClient.searchUsers(NullRestrictionImpl.INSTANCE, 0, Integer.MAX_VALUE)
-                    .stream()
-                    .collect(Collectors.toMap(User::getName, Function.identity()));
-            log.info("sync(): load memberships");
-            Iterable<Membership> memberships = crowdClient.getMemberships();
-            log.info("sync(): create group entries");
-            Map<String, ServerEntry> groupEntries = groups
-                    .entrySet()
-                    .stream()
-                    .collect(Collectors.toMap(Map.Entry::getKey, entry -> createGroupEntry(entry.getValue())));
-            log.info("sync(): create user entries");
-            Map<String, ServerEntry> userEntries = users
-                    .entrySet()
-                    .stream()
-                    .collect(Collectors.toMap(Map.Entry::getKey, entry -> createUserEntry(entry.getValue())));
-            log.info("sync(): map memberships");
-            for (Membership membership : memberships) {
-                String groupName = membership.getGroupName();
-                Group group = groups.get(groupName);
-                ServerEntry groupEntry = groupEntries.get(groupName);
-                if (group == null || !group.isActive() || groupEntry == null) {
-                    continue;
-                }
-                membership.getUserNames()
-                        .stream()
-                        .map(users::get)
-                        .filter(User::isActive)
-                        .map(user -> userEntries.get(user.getName()))
-                        .forEach(userEntry -> {
-                            addUserMemberOf(userEntry, groupEntry);
-                            addGroupMember(groupEntry, userEntry);
-                        });
-                // todo: implement nested memberships
-            }
-            log.info("sync(): update cache");
-            this.groupEntries = new ArrayList<>(groupEntries.values());
-            this.userEntries = new ArrayList<>(userEntries.values());
-            log.info("sync(): complete");
+            if (eventToken == null || !incrementalSync()) {
+                fullSync();
+            }
+            if (directoryFile != null && snapshot.getGeneration() != generation) {
+                save();
+            }
+            log.info("sync(): complete, used heap {} MB -> {} MB, peak at phase boundaries {} MB",
+                    usedHeap / (1024 * 1024), sampleUsedHeap() / (1024 * 1024), syncPeakUsedHeap.get() / (1024 * 1024));
         } catch (Exception e) {
             log.error("sync(): failed", e);
+            // модель могла быть изменена частично - следующая синхронизация должна быть полной
+            eventToken = null;
             throw new CrowdSyncException(e);
         }
     }
 
-    private ServerEntry createGroupEntry(Group group) {
+    /**
+     * Загружает и публикует сохранённую модель каталога.
+     *
+     * @return {@code false}, если сохранённой модели нет или её не удалось загрузить
+     */
+    private synchronized boolean restore() {
+        if (!directoryFile.exists()) {
+            return false;
+        }
+        long started = System.nanoTime();
         try {
-            ServerEntry groupEntry = new DefaultServerEntry(
-                    directoryService.getSchemaManager(),
-                    new DN().addAll(groupsDn).add(new RDN(CrowdLdapConstants.GROUP_ID_AT, group.getName()))
-            );
-            groupEntry.put(SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.GROUP_OF_NAMES_OC);
-            groupEntry.put(CrowdLdapConstants.GROUP_ID_AT, group.getName());
-            groupEntry.put("description", group.getDescription());
-            return groupEntry;
+            CrowdDirectory restored = new CrowdDirectory();
+            String restoredEventToken = directoryFile.read(restored);
+            this.directory = restored;
+            publish();
+            // изменения, сделанные после сохранения, будут получены по потоку событий, если токен ещё действителен
+            this.eventToken = incrementalSyncEnabled ? restoredEventToken : null;
+            log.info("restore(): directory restored from [{}] in {} ms", directoryFile.getFile(), elapsed(started));
+            return true;
         } catch (Exception e) {
-            throw new CrowdLdapException(e);
+            log.warn("restore(): failed to restore directory from [{}]", directoryFile.getFile(), e);
+            this.directory = new CrowdDirectory();
+            this.eventToken = null;
+            return false;
+        }
+    }
+
+    /**
+     * Сохраняет модель каталога. Ошибка сохранения не прерывает синхронизацию.
+     */
+    private void save() {
+        long started = System.nanoTime();
+        try {
+            directoryFile.write(directory, eventToken);
+            log.info("sync(): directory saved to [{}] in {} ms", directoryFile.getFile(), elapsed(started));
+        } catch (IOException e) {
+            log.warn("sync(): failed to save directory to [{}]", directoryFile.getFile(), e);
+        }
+    }
+
+    /**
+     * Полная синхронизация. Членства, группы и пользователи загружаются из Crowd параллельно,
+     * группы и пользователи - страницами, из объектов Crowd сразу копируются только публикуемые атрибуты.
+     */
+    private void fullSync() throws Exception {
+        // токен запрашивается до загрузки данных, чтобы не пропустить изменения, сделанные во время загрузки
+        String newEventToken = null;
+        if (incrementalSyncEnabled) {
+            try {
+                log.info("sync(): get current event token");
+                newEventToken = callCrowd(CrowdCall.EVENT_TOKEN, crowdClient::getCurrentEventToken);
+            } catch (IncrementalSynchronisationNotAvailableException e) {
+                log.warn("sync(): incremental synchronisation is not available: {}", e.getMessage());
+            }
+        }
+        long started = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            Future<CrowdDirectory> memberships = submit(futures, "load memberships", this::loadMemberships);
+            Future<List<GroupRecord>> groups = submit(futures, "load groups", this::loadGroups);
+            Future<List<UserRecord>> users = submit(futures, "load users", this::loadUsers);
+            CrowdDirectory directory = await(memberships);
+            await(groups).forEach(directory::putGroup);
+            await(users).forEach(directory::putUser);
+            invalidateChangedUsers(this.directory, directory);
+            this.directory = directory;
+            log.info("sync(): data loaded in {} ms, used heap {} MB", elapsed(started), sampleUsedHeap() / (1024 * 1024));
+        } finally {
+            futures.forEach(future -> future.cancel(true));
+        }
+        long cacheStarted = System.nanoTime();
+        publish();
+        this.eventToken = newEventToken;
+        metrics.sync("full", started);
+        log.info("sync(): update cache took {} ms, full sync took {} ms", elapsed(cacheStarted), elapsed(started));
+    }
+
+    /**
+     * Удаляет из кеша аутентификаций пользователей, которые были удалены или изменены в Crowd.
+     */
+    private void invalidateChangedUsers(CrowdDirectory oldDirectory, CrowdDirectory newDirectory) {
+        for (UserRecord user : oldDirectory.getUsers()) {
+            if (!user.equals(newDirectory.getUser(user.getName()))) {
+                bindCache.invalidate(user.getName());
+            }
         }
     }
 
-    private ServerEntry createUserEntry(User user) {
+    private CrowdDirectory loadMemberships() throws Exception {
+        CrowdDirectory directory = new CrowdDirectory();
+        for (Membership membership : callCrowd(CrowdCall.MEMBERSHIPS, crowdClient::getMemberships)) {
+            for (String userName : membership.getUserNames()) {
+                directory.addMembership(userName, membership.getGroupName());
+            }
+            for (String childGroupName : membership.getChildGroupNames()) {
+                directory.addGroupMembership(childGroupName, membership.getGroupName());
+            }
+        }
+        return directory;
+    }
+
+    private List<GroupRecord> loadGroups() throws Exception {
+        List<GroupRecord> loadedGroups = new ArrayList<>();
+        for (int start = 0; ; start += syncPageSize) {
+            int pageStart = start;
+            List<Group> groups = callCrowd(CrowdCall.GROUPS,
+                    () -> crowdClient.searchGroups(NullRestrictionImpl.INSTANCE, pageStart, syncPageSize));
+            for (Group group : groups) {
+                loadedGroups.add(GroupRecord.of(group));
+            }
+            if (groups.size() < syncPageSize) {
+                return loadedGroups;
+            }
+        }
+    }
+
+    private List<UserRecord> loadUsers() throws Exception {
+        List<UserRecord> loadedUsers = new ArrayList<>();
+        for (int start = 0; ; start += syncPageSize) {
+            int pageStart = start;
+            List<User> users = callCrowd(CrowdCall.USERS,
+                    () -> crowdClient.searchUsers(NullRestrictionImpl.INSTANCE, pageStart, syncPageSize));
+            for (User user : users) {
+                loadedUsers.add(UserRecord.of(user));
+            }
+            if (users.size() < syncPageSize) {
+                return loadedUsers;
+            }
+        }
+    }
+
+    /**
+     * Запускает этап синхронизации в пуле потоков синхронизации и журналирует время его выполнения.
+     * Этапы не ожидают друг друга, ожидает их только поток sync(), который не должен принадлежать пулу.
+     */
+    private <T> Future<T> submit(List<Future<?>> futures, String phase, Callable<T> task) {
+        Future<T> future = syncExecutor.submit(() -> {
+            long started = System.nanoTime();
+            T result = task.call();
+            sampleUsedHeap();
+            metrics.sync(phase, started);
+            log.info("sync(): {} took {} ms", phase, elapsed(started));
+            return result;
+        });
+        futures.add(future);
+        return future;
+    }
+
+    /**
+     * Выполняет обращение к Crowd и записывает его длительность и результат.
+     */
+    private <T> T callCrowd(CrowdCall call, Callable<T> request) throws Exception {
+        long started = metrics.start();
         try {
-            ServerEntry userEntry = new DefaultServerEntry(
-                    directoryService.getSchemaManager(),
-                    new DN().addAll(usersDn).add(new RDN(CrowdLdapConstants.USER_ID_AT, user.getName()))
-            );
-            userEntry.put(SchemaConstants.OBJECT_CLASS, SchemaConstants.INET_ORG_PERSON_OC);
-            userEntry.put(SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.TOP_OC, SchemaConstants.ORGANIZATIONAL_PERSON_OC, SchemaConstants.PERSON_OC, SchemaConstants.INET_ORG_PERSON_OC);
-            userEntry.put(SchemaConstants.CN_AT, user.getDisplayName());
-            userEntry.put(CrowdLdapConstants.USER_ID_AT, user.getName());
-            userEntry.put("mail", user.getEmailAddress());
-            userEntry.put("givenname", user.getFirstName());
-            userEntry.put(SchemaConstants.SN_AT, user.getLastName());
-            userEntry.put(SchemaConstants.OU_AT, "users");
-            return userEntry;
+            T result = request.call();
+            metrics.crowd(call, started, false);
+            return result;
         } catch (Exception e) {
-            throw new CrowdLdapException(e);
+            metrics.crowd(call, started, true);
+            throw e;
         }
     }
 
-    private void addUserMemberOf(ServerEntry userEntry, ServerEntry groupEntry) {
+    private static <T> T await(Future<T> future) throws Exception {
         try {
-            userEntry.add(CrowdLdapConstants.MEMBEROF_AT, groupEntry.getDn().getName());
-        } catch (LdapException e) {
-            e.printStackTrace();
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
         }
     }
 
-    private void addGroupMember(ServerEntry groupEntry, ServerEntry userEntry) {
+    private static long elapsed(long started) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    }
+
+    /**
+     * Применяет изменения из потока событий Crowd к модели каталога и, если они есть, публикует снимок,
+     * построенный по модели целиком.
+     *
+     * @return {@code false}, если изменения не могут быть применены и требуется полная синхронизация
+     */
+    private boolean incrementalSync() throws Exception {
+        log.info("sync(): load events");
+        long started = System.nanoTime();
+        Events events;
         try {
-            groupEntry.add(CrowdLdapConstants.MEMBER_AT, userEntry.getDn().getName());
-        } catch (LdapException e) {
-            e.printStackTrace();
+            events = callCrowd(CrowdCall.EVENTS, () -> crowdClient.getNewEvents(eventToken));
+        } catch (EventTokenExpiredException e) {
+            log.info("sync(): event token rejected by Crowd, falling back to full sync");
+            return false;
         }
+        int count = 0;
+        if (events.getEvents().iterator().hasNext()) {
+            // события применяются к копии модели: если событие не может быть применено, полная синхронизация
+            // сравнивает загруженный каталог с моделью до начала пакета, а не с частично изменённой
+            CrowdDirectory updated = directory.copy();
+            for (OperationEvent event : events.getEvents()) {
+                if (!applyEvent(updated, event)) {
+                    return false;
+                }
+                count++;
+            }
+            this.directory = updated;
+        }
+        log.info("sync(): {} events applied", count);
+        if (count > 0) {
+            // события изменяют только модель, а наборы записей, индексы и замыкание вложенности групп
+            // перестраиваются по модели целиком: номера записей в наборах зависят от состава каталога
+            publish();
+        }
+        this.eventToken = events.getNewEventToken();
+        metrics.sync("incremental", started);
+        return true;
+    }
+
+    /**
+     * Применяет событие Crowd к модели каталога.
+     *
+     * @return {@code false}, если событие не поддерживается
+     */
+    private boolean applyEvent(CrowdDirectory directory, OperationEvent event) {
+        if (event instanceof UserEvent) {
+            User user = ((UserEvent) event).getUser();
+            // событие может означать и смену пароля - успешная аутентификация в кеше больше не действительна
+            bindCache.invalidate(user.getName());
+            if (event.getOperation() == Operation.DELETED) {
+                directory.removeUser(user.getName());
+            } else {
+                directory.putUser(UserRecord.of(user));
+            }
+        } else if (event instanceof GroupEvent) {
+            Group group = ((GroupEvent) event).getGroup();
+            if (event.getOperation() == Operation.DELETED) {
+                directory.removeGroup(group.getName());
+            } else {
+                directory.putGroup(GroupRecord.of(group));
+            }
+        } else if (event instanceof UserMembershipEvent) {
+            UserMembershipEvent membershipEvent = (UserMembershipEvent) event;
+            String userName = membershipEvent.getChildUsername();
+            Set<String> groupNames = membershipEvent.getParentGroupNames();
+            switch (event.getOperation()) {
+                case CREATED:
+                    groupNames.forEach(groupName -> directory.addMembership(userName, groupName));
+                    break;
+                case DELETED:
+                    groupNames.forEach(groupName -> directory.removeMembership(userName, groupName));
+                    break;
+                case UPDATED:
+                    // событие содержит полный список родительских групп
+                    for (String groupName : directory.getGroupNames(userName).toArray(new String[0])) {
+                        if (!groupNames.contains(groupName)) {
+                            directory.removeMembership(userName, groupName);
+                        }
+                    }
+                    groupNames.forEach(groupName -> directory.addMembership(userName, groupName));
+                    break;
+            }
+        } else if (event instanceof GroupMembershipEvent) {
+            GroupMembershipEvent membershipEvent = (GroupMembershipEvent) event;
+            String groupName = membershipEvent.getGroupName();
+            Set<String> parentGroupNames = orEmpty(membershipEvent.getParentGroupNames());
+            Set<String> childGroupNames = orEmpty(membershipEvent.getChildGroupNames());
+            switch (event.getOperation()) {
+                case CREATED:
+                    parentGroupNames.forEach(parentGroupName -> directory.addGroupMembership(groupName, parentGroupName));
+                    childGroupNames.forEach(childGroupName -> directory.addGroupMembership(childGroupName, groupName));
+                    break;
+                case DELETED:
+                    parentGroupNames.forEach(parentGroupName -> directory.removeGroupMembership(groupName, parentGroupName));
+                    childGroupNames.forEach(childGroupName -> directory.removeGroupMembership(childGroupName, groupName));
+                    break;
+                case UPDATED:
+                    // событие содержит полные списки родительских и вложенных групп
+                    if (membershipEvent.getParentGroupNames() != null) {
+                        for (String parentGroupName : directory.getParentGroupNames(groupName).toArray(new String[0])) {
+                            if (!parentGroupNames.contains(parentGroupName)) {
+                                directory.removeGroupMembership(groupName, parentGroupName);
+                            }
+                        }
+                        parentGroupNames.forEach(parentGroupName -> directory.addGroupMembership(groupName, parentGroupName));
+                    }
+                    if (membershipEvent.getChildGroupNames() != null) {
+                        for (String childGroupName : directory.getChildGroupNames(groupName).toArray(new String[0])) {
+                            if (!childGroupNames.contains(childGroupName)) {
+                                directory.removeGroupMembership(childGroupName, groupName);
+                            }
+                        }
+                        childGroupNames.forEach(childGroupName -> directory.addGroupMembership(childGroupName, groupName));
+                    }
+                    break;
+            }
+        } else {
+            // неизвестное событие нельзя применить корректно - выполнить полную синхронизацию
+            log.warn("sync(): unsupported event type [{}]", event.getClass().getName());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Строит по модели каталога компактные наборы записей групп и пользователей
+     * и публикует их одним снимком следующего поколения.
+     */
+    private void publish() throws Exception {
+        long started = System.nanoTime();
+        SchemaManager schemaManager = directoryService.getSchemaManager();
+        String[] groupNames = directory.getGroups().stream().map(GroupRecord::getName).sorted().toArray(String[]::new);
+        String[] userNames = directory.getUsers().stream().map(UserRecord::getName).sorted().toArray(String[]::new);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            // DN записей нужны обоим наборам: группам - для member, пользователям - для memberOf
+            Future<EntryNames> groupEntryNames = submit(futures, "map group names",
+                    () -> EntryNames.of(schemaManager, groupsDn, CrowdLdapConstants.GROUP_ID_AT, groupNames));
+            Future<EntryNames> userEntryNames = submit(futures, "map user names",
+                    () -> EntryNames.of(schemaManager, usersDn, CrowdLdapConstants.USER_ID_AT, userNames));
+            Memberships memberships = resolveMemberships(userNames, groupNames);
+            EntryNames groups = await(groupEntryNames);
+            EntryNames users = await(userEntryNames);
+            Future<CrowdLdapEntryTable> groupTable = submit(futures, "build group entries", () -> createGroupEntries(groups, users, memberships));
+            Future<CrowdLdapEntryTable> userTable = submit(futures, "build user entries", () -> createUserEntries(users, groups, memberships));
+            CrowdLdapSnapshot newSnapshot = new CrowdLdapSnapshot(
+                    snapshot.getGeneration() + 1, System.currentTimeMillis(), await(groupTable), await(userTable));
+            sampleUsedHeap();
+            this.snapshot = newSnapshot;
+            metrics.sync("publish", started);
+            log.info("sync(): published generation {}: {} groups, {} users",
+                    newSnapshot.getGeneration(), newSnapshot.getGroupCount(), newSnapshot.getUserCount());
+        } finally {
+            futures.forEach(future -> future.cancel(true));
+        }
+    }
+
+    /**
+     * Вычисляет членства пользователей в группах. Активный пользователь входит в активные группы,
+     * если включено разрешение вложенных групп - также во все активные группы, в которые они входят транзитивно.
+     * В режиме эмуляции Active Directory дополнительно вычисляются членства с учётом вложенных групп
+     * для правила LDAP_MATCHING_RULE_IN_CHAIN, если они отличаются от публикуемых.
+     *
+     * @param userNames  упорядоченные имена пользователей
+     * @param groupNames упорядоченные имена групп
+     */
+    private Memberships resolveMemberships(String[] userNames, String[] groupNames) {
+        long started = System.nanoTime();
+        Map<String, Integer> groupIds = ids(groupNames);
+        int[][] directMemberOf = new int[userNames.length][];
+        for (int id = 0; id < userNames.length; id++) {
+            directMemberOf[id] = directory.isUserActive(userNames[id])
+                    ? ids(directory.getGroupNames(userNames[id]), groupIds, directory::isGroupActive)
+                    : NO_IDS;
+        }
+        int[][] chainMemberOf = directMemberOf;
+        if (memberOfIncludeNested || memberOfEmulateActiveDirectory) {
+            // вложенность учитывается только между активными группами
+            int[][] parents = new int[groupNames.length][];
+            for (int id = 0; id < groupNames.length; id++) {
+                parents[id] = directory.isGroupActive(groupNames[id])
+                        ? ids(directory.getParentGroupNames(groupNames[id]), groupIds, directory::isGroupActive)
+                        : NO_IDS;
+            }
+            CrowdGroupClosure closure = new CrowdGroupClosure(parents);
+            if (closure.getCyclicGroupCount() > 0) {
+                log.warn("sync(): {} groups are nested in themselves", closure.getCyclicGroupCount());
+            }
+            chainMemberOf = new int[userNames.length][];
+            for (int id = 0; id < userNames.length; id++) {
+                chainMemberOf[id] = closure.expand(directMemberOf[id]);
+            }
+        }
+        Memberships memberships = new Memberships();
+        memberships.memberOf = memberOfIncludeNested ? chainMemberOf : directMemberOf;
+        memberships.members = members(memberships.memberOf, groupNames.length);
+        if (memberOfEmulateActiveDirectory && chainMemberOf != memberships.memberOf) {
+            memberships.chainMemberOf = chainMemberOf;
+            memberships.chainMembers = members(chainMemberOf, groupNames.length);
+        }
+        metrics.sync("resolve memberships", started);
+        log.info("sync(): resolve memberships took {} ms", elapsed(started));
+        return memberships;
+    }
+
+    /**
+     * Обращает членства пользователей в группах.
+     *
+     * @return номер группы -> упорядоченные номера пользователей
+     */
+    private static int[][] members(int[][] memberOf, int groupCount) {
+        int[] counts = new int[groupCount];
+        for (int[] groups : memberOf) {
+            for (int group : groups) {
+                counts[group]++;
+            }
+        }
+        int[][] members = new int[groupCount][];
+        for (int group = 0; group < groupCount; group++) {
+            members[group] = counts[group] > 0 ? new int[counts[group]] : NO_IDS;
+            counts[group] = 0;
+        }
+        // пользователи перебираются по возрастанию номеров - номера участников получаются упорядоченными
+        for (int user = 0; user < memberOf.length; user++) {
+            for (int group : memberOf[user]) {
+                members[group][counts[group]++] = user;
+            }
+        }
+        return members;
+    }
+
+    private CrowdLdapEntryTable createGroupEntries(EntryNames groups, EntryNames users, Memberships memberships) throws LdapException {
+        CrowdLdapEntryTable.Interner interner = new CrowdLdapEntryTable.Interner();
+        String[] groupNames = groups.getRdnValues();
+        String[] descriptions = new String[groupNames.length];
+        for (int id = 0; id < groupNames.length; id++) {
+            descriptions[id] = directory.getGroup(groupNames[id]).getDescription();
+        }
+        return new CrowdLdapEntryTable(
+                directoryService.getSchemaManager(),
+                groups,
+                Arrays.asList(
+                        Column.constant(interner, attributeType(SchemaConstants.OBJECT_CLASS_AT), SchemaConstants.OBJECT_CLASS_AT,
+                                SchemaConstants.GROUP_OF_NAMES_OC),
+                        Column.single(interner, attributeType(CrowdLdapConstants.GROUP_ID_AT), CrowdLdapConstants.GROUP_ID_AT,
+                                groupNames.clone()),
+                        Column.single(interner, attributeType("description"), "description", descriptions),
+                        Column.references(attributeType(CrowdLdapConstants.MEMBER_AT), CrowdLdapConstants.MEMBER_AT,
+                                memberships.members, users)
+                ),
+                memberships.chainMembers != null
+                        ? Collections.singletonList(Column.references(attributeType(CrowdLdapConstants.MEMBER_AT),
+                                CrowdLdapConstants.MEMBER_AT, memberships.chainMembers, users))
+                        : Collections.emptyList(),
+                indexedAttributeTypes,
+                prefixIndexedAttributeTypes
+        );
+    }
+
+    private CrowdLdapEntryTable createUserEntries(EntryNames users, EntryNames groups, Memberships memberships) throws LdapException {
+        CrowdLdapEntryTable.Interner interner = new CrowdLdapEntryTable.Interner();
+        String[] userNames = users.getRdnValues();
+        String[] displayNames = new String[userNames.length];
+        String[] emailAddresses = new String[userNames.length];
+        String[] firstNames = new String[userNames.length];
+        String[] lastNames = new String[userNames.length];
+        for (int id = 0; id < userNames.length; id++) {
+            UserRecord user = directory.getUser(userNames[id]);
+            displayNames[id] = user.getDisplayName();
+            emailAddresses[id] = user.getEmailAddress();
+            firstNames[id] = user.getFirstName();
+            lastNames[id] = user.getLastName();
+        }
+        return new CrowdLdapEntryTable(
+                directoryService.getSchemaManager(),
+                users,
+                Arrays.asList(
+                        Column.constant(interner, attributeType(SchemaConstants.OBJECT_CLASS_AT), SchemaConstants.OBJECT_CLASS_AT,
+                                SchemaConstants.TOP_OC, SchemaConstants.ORGANIZATIONAL_PERSON_OC, SchemaConstants.PERSON_OC, SchemaConstants.INET_ORG_PERSON_OC),
+                        Column.single(interner, attributeType(SchemaConstants.CN_AT), SchemaConstants.CN_AT, displayNames),
+                        Column.single(interner, attributeType("displayName"), "displayName", displayNames.clone()),
+                        Column.single(interner, attributeType(CrowdLdapConstants.USER_ID_AT), CrowdLdapConstants.USER_ID_AT,
+                                userNames.clone()),
+                        Column.single(interner, attributeType("mail"), "mail", emailAddresses),
+                        Column.single(interner, attributeType("givenname"), "givenname", firstNames),
+                        Column.single(interner, attributeType(SchemaConstants.SN_AT), SchemaConstants.SN_AT, lastNames),
+                        Column.constant(interner, attributeType(SchemaConstants.OU_AT), SchemaConstants.OU_AT, "users"),
+                        Column.references(attributeType(CrowdLdapConstants.MEMBEROF_AT), CrowdLdapConstants.MEMBEROF_AT,
+                                memberships.memberOf, groups)
+                ),
+                memberships.chainMemberOf != null
+                        ? Collections.singletonList(Column.references(attributeType(CrowdLdapConstants.MEMBEROF_AT),
+                                CrowdLdapConstants.MEMBEROF_AT, memberships.chainMemberOf, groups))
+                        : Collections.emptyList(),
+                indexedAttributeTypes,
+                prefixIndexedAttributeTypes
+        );
+    }
+
+    private AttributeType attributeType(String attributeId) throws LdapException {
+        return directoryService.getSchemaManager().lookupAttributeTypeRegistry(attributeId);
+    }
+
+    private static Map<String, Integer> ids(String[] names) {
+        Map<String, Integer> ids = new HashMap<>(names.length * 4 / 3 + 1);
+        for (int id = 0; id < names.length; id++) {
+            ids.put(names[id], id);
+        }
+        return ids;
+    }
+
+    /**
+     * Возвращает упорядоченные номера записей с заданными именами, удовлетворяющих условию.
+     */
+    private static int[] ids(Set<String> names, Map<String, Integer> ids, Predicate<String> predicate) {
+        int[] result = new int[names.size()];
+        int size = 0;
+        for (String name : names) {
+            Integer id = ids.get(name);
+            if (id != null && predicate.test(name)) {
+                result[size++] = id;
+            }
+        }
+        if (size == 0) {
+            return NO_IDS;
+        }
+        result = size < result.length ? Arrays.copyOf(result, size) : result;
+        Arrays.sort(result);
+        return result;
+    }
+
+    private static Set<String> orEmpty(Set<String> names) {
+        return names != null ? names : Collections.emptySet();
+    }
+
+    private static long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * @return занятый heap, учтённый в пике текущей синхронизации
+     */
+    private long sampleUsedHeap() {
+        long usedHeap = getUsedHeap();
+        syncPeakUsedHeap.accumulate(usedHeap);
+        return usedHeap;
+    }
+
+
+
+    /**
+     * Членства пользователей в группах, вычисленные для публикации.
+     */
+    private static final class Memberships {
+
+        /**
+         * Номер пользователя -> упорядоченные номера групп (значения memberOf).
+         */
+        private int[][] memberOf;
+        /**
+         * Номер группы -> упорядоченные номера пользователей (значения member).
+         */
+        private int[][] members;
+        /**
+         * Членства с учётом вложенных групп для правила LDAP_MATCHING_RULE_IN_CHAIN,
+         * {@code null} - совпадают с memberOf/member.
+         */
+        private int[][] chainMemberOf;
+        private int[][] chainMembers;
+
     }
 
 }
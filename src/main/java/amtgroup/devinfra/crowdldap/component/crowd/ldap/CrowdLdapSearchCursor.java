@@ -0,0 +1,163 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.directory.server.core.interceptor.context.SearchOperationContext;
+import org.apache.directory.shared.ldap.cursor.AbstractCursor;
+import org.apache.directory.shared.ldap.cursor.InvalidCursorPositionException;
+import org.apache.directory.shared.ldap.entry.ServerEntry;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Курсор результатов поиска, перебирающий источники записей по мере чтения.
+ * <p>
+ * Каждый источник возвращает итератор, который проверяет фильтр и строит записи лениво,
+ * поэтому результаты поиска не накапливаются в памяти. Перебор прекращается, если операция
+ * поиска прервана клиентом или количество возвращённых записей превысило ограничение размера:
+ * запись сверх ограничения возвращается, чтобы сервер мог сообщить клиенту о его превышении.
+ * Курсор удерживает снимок каталога, по которому построены источники, поэтому постраничный поиск
+ * (RFC 2696) продолжает чтение того же поколения каталога без повторной проверки фильтра.
+ * Поддерживается только перебор в прямом направлении. При закрытии курсора поиск записывается в метрики
+ * и в журнал медленных поисков. Время поиска - время подготовки поиска и чтения результатов курсором:
+ * время, пока клиент обрабатывает результаты и запрашивает следующие страницы, не учитывается.
+ *
+ * @author Vitaly Ogoltsov
+ */
+@Slf4j
+final class CrowdLdapSearchCursor extends AbstractCursor<ServerEntry> {
+
+    private final SearchOperationContext searchContext;
+    private final long generation;
+    private final List<Supplier<Iterator<ServerEntry>>> sources;
+    private final long limit;
+    private final CrowdLdapMetrics.SearchMeters meters;
+    private final CrowdLdapSearchLog searchLog;
+    private final CrowdLdapSearchLog.Candidates candidates;
+
+    private int nextSource;
+    private Iterator<ServerEntry> iterator;
+    private ServerEntry current;
+    private long count;
+    private long elapsed;
+
+
+    /**
+     * @param generation поколение снимка каталога, из которого читают источники
+     * @param started    время начала поиска ({@link System#nanoTime()})
+     * @param meters     измерители поиска или {@code null}, если метрики отключены
+     * @param candidates предикат фильтра, которым источники проверяют записи
+     */
+    CrowdLdapSearchCursor(SearchOperationContext searchContext, long generation, List<Supplier<Iterator<ServerEntry>>> sources,
+                          long started, CrowdLdapMetrics.SearchMeters meters,
+                          CrowdLdapSearchLog searchLog, CrowdLdapSearchLog.Candidates candidates) {
+        this.searchContext = searchContext;
+        this.generation = generation;
+        this.sources = sources;
+        this.meters = meters;
+        this.searchLog = searchLog;
+        this.candidates = candidates;
+        this.limit = searchContext.getSizeLimit() > 0 ? searchContext.getSizeLimit() + 1 : 0;
+        // компиляция фильтра и сортировка выполнены до создания курсора
+        this.elapsed = System.nanoTime() - started;
+    }
+
+
+    @Override
+    public boolean available() {
+        return current != null;
+    }
+
+    @Override
+    public void beforeFirst() throws Exception {
+        checkNotClosed("beforeFirst()");
+        nextSource = 0;
+        iterator = null;
+        current = null;
+        count = 0;
+    }
+
+    @Override
+    public boolean first() throws Exception {
+        beforeFirst();
+        return next();
+    }
+
+    @Override
+    public boolean next() throws Exception {
+        checkNotClosed("next()");
+        current = null;
+        if (searchContext.isAbandoned() || (limit > 0 && count >= limit)) {
+            return false;
+        }
+        long nextStarted = System.nanoTime();
+        try {
+            while (iterator == null || !iterator.hasNext()) {
+                if (nextSource >= sources.size()) {
+                    return false;
+                }
+                iterator = sources.get(nextSource++).get();
+            }
+            current = iterator.next();
+            count++;
+            return true;
+        } finally {
+            elapsed += System.nanoTime() - nextStarted;
+        }
+    }
+
+    @Override
+    public ServerEntry get() throws Exception {
+        checkNotClosed("get()");
+        if (current == null) {
+            throw new InvalidCursorPositionException();
+        }
+        return current;
+    }
+
+    @Override
+    public boolean isElementReused() {
+        return false;
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (!isClosed()) {
+            if (meters != null) {
+                meters.record(elapsed, count);
+            }
+            searchLog.record(searchContext, candidates.getShape(), elapsed, candidates.getCount(), count);
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("search(): {} results returned from generation {}", count, generation);
+        }
+        super.close();
+    }
+
+    @Override
+    public void before(ServerEntry element) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void after(ServerEntry element) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void afterLast() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean last() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean previous() {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,220 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapProperties;
+import amtgroup.devinfra.crowdldap.component.crowd.util.CrowdLdapEntryView;
+import amtgroup.devinfra.crowdldap.component.crowd.util.CrowdLdapFilter;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.directory.server.core.LdapPrincipal;
+import org.apache.directory.server.core.interceptor.context.SearchOperationContext;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Журнал медленных поисков и статистика поисков по видам фильтров.
+ * <p>
+ * Поиск, выполнявшийся дольше заданного порога, записывается в журнал с базой и областью поиска,
+ * нормализованным фильтром, пользователем, количеством проверенных кандидатов и возвращённых записей.
+ * Вид фильтра - фильтр, в котором значения условий заменены на {@code ?}: поиски одним и тем же
+ * запросом приложения с разными значениями учитываются вместе. Виды фильтров с наибольшим суммарным временем
+ * возвращает endpoint {@code crowdldapsearches}, сбросить статистику можно только через JMX.
+ *
+ * @author Vitaly Ogoltsov
+ */
+@Component
+@Endpoint(id = "crowdldapsearches")
+@ManagedResource(objectName = "amtgroup.devinfra.crowdldap:type=CrowdLdapSearchLog")
+@Slf4j
+public class CrowdLdapSearchLog {
+
+    /**
+     * Вид фильтра, под которым учитываются поиски сверх максимального количества видов.
+     */
+    private static final String OTHER_SHAPE = "(other)";
+
+    private final long slowThreshold;
+    private final boolean statisticsEnabled;
+    private final int maxFilterShapes;
+    private final int top;
+
+    private final ConcurrentMap<String, ShapeStatistics> shapes = new ConcurrentHashMap<>();
+
+
+    public CrowdLdapSearchLog(CrowdLdapProperties crowdLdapProperties) {
+        this.slowThreshold = TimeUnit.MILLISECONDS.toNanos(crowdLdapProperties.getSearchLog().getSlowThreshold());
+        this.statisticsEnabled = crowdLdapProperties.getSearchLog().isStatisticsEnabled();
+        this.maxFilterShapes = crowdLdapProperties.getSearchLog().getMaxFilterShapes();
+        this.top = crowdLdapProperties.getSearchLog().getTop();
+    }
+
+
+    /**
+     * @return виды фильтров с наибольшим суммарным временем поиска
+     */
+    @ReadOperation
+    public List<FilterShapeStatistics> filterShapes() {
+        return shapes.entrySet().stream()
+                .map(e -> e.getValue().snapshot(e.getKey()))
+                .sorted(Comparator.comparingDouble(FilterShapeStatistics::getTotalTime).reversed())
+                .limit(top)
+                .collect(Collectors.toList());
+    }
+
+    @ManagedOperation(description = "Reset search statistics by filter shape")
+    public void reset() {
+        shapes.clear();
+    }
+
+
+    /**
+     * Записывает завершённый поиск.
+     *
+     * @param shape      вид фильтра поиска
+     * @param elapsed    время поиска без ожидания клиента (нс)
+     * @param candidates количество проверенных фильтром записей
+     * @param results    количество возвращённых записей
+     */
+    void record(SearchOperationContext searchContext, String shape, long elapsed, long candidates, long results) {
+        if (slowThreshold > 0 && elapsed >= slowThreshold) {
+            LdapPrincipal principal = searchContext.getSession() != null ? searchContext.getSession().getEffectivePrincipal() : null;
+            log.warn("search(): slow search took {} ms: base = [{}], scope = {}, filter = {}, principal = [{}], candidates = {}, results = {}",
+                    TimeUnit.NANOSECONDS.toMillis(elapsed),
+                    searchContext.getDn().getName(),
+                    searchContext.getScope(),
+                    searchContext.getFilter(),
+                    principal != null ? principal.getName() : null,
+                    candidates,
+                    results);
+        }
+        if (statisticsEnabled) {
+            ShapeStatistics statistics = shapes.get(shape);
+            if (statistics == null) {
+                // количество видов ограничено: приложение, подставляющее значения в структуру фильтра, не переполнит память
+                statistics = shapes.size() < maxFilterShapes
+                        ? shapes.computeIfAbsent(shape, s -> new ShapeStatistics())
+                        : shapes.computeIfAbsent(OTHER_SHAPE, s -> new ShapeStatistics());
+            }
+            statistics.record(elapsed, candidates, results);
+        }
+    }
+
+
+
+    /**
+     * Предикат фильтра поиска, считающий проверенные записи.
+     * Поиск читается одним потоком, поэтому счётчик не синхронизируется.
+     */
+    static final class Candidates implements Predicate<CrowdLdapEntryView> {
+
+        private final Predicate<CrowdLdapEntryView> predicate;
+        private final String shape;
+        private long count;
+
+        Candidates(CrowdLdapFilter.Compilation filter) {
+            this.predicate = filter.getPredicate().orElse(e -> true);
+            this.shape = filter.getShape();
+        }
+
+        @Override
+        public boolean test(CrowdLdapEntryView entry) {
+            count++;
+            return predicate.test(entry);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        /**
+         * @return вид фильтра поиска
+         */
+        String getShape() {
+            return shape;
+        }
+
+    }
+
+    /**
+     * Накопленная статистика поисков одного вида фильтра.
+     */
+    private static final class ShapeStatistics {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalTime = new LongAdder();
+        private final LongAccumulator maxTime = new LongAccumulator(Math::max, 0);
+        private final LongAdder candidates = new LongAdder();
+        private final LongAdder results = new LongAdder();
+
+        private void record(long elapsed, long candidates, long results) {
+            this.count.increment();
+            this.totalTime.add(elapsed);
+            this.maxTime.accumulate(elapsed);
+            this.candidates.add(candidates);
+            this.results.add(results);
+        }
+
+        private FilterShapeStatistics snapshot(String shape) {
+            return new FilterShapeStatistics(
+                    shape,
+                    count.sum(),
+                    totalTime.sum() / 1e6,
+                    maxTime.get() / 1e6,
+                    candidates.sum(),
+                    results.sum()
+            );
+        }
+
+    }
+
+    /**
+     * Статистика поисков одного вида фильтра.
+     */
+    @Value
+    public static class FilterShapeStatistics {
+
+        /**
+         * Вид фильтра.
+         */
+        private final String filter;
+
+        /**
+         * Количество поисков.
+         */
+        private final long count;
+
+        /**
+         * Суммарное время поисков (мс).
+         */
+        private final double totalTime;
+
+        /**
+         * Наибольшее время поиска (мс).
+         */
+        private final double maxTime;
+
+        /**
+         * Суммарное количество проверенных фильтром записей.
+         */
+        private final long candidates;
+
+        /**
+         * Суммарное количество возвращённых записей.
+         */
+        private final long results;
+
+    }
+
+}
@@ -0,0 +1,102 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.util.CrowdLdapEntryView;
+import org.apache.directory.shared.ldap.entry.ServerEntry;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.function.Predicate;
+
+/**
+ * Источник записей поиска: записи одного набора, удовлетворяющие фильтру.
+ * <p>
+ * Без сортировки записи перебираются итератором, который проверяет фильтр и строит записи по мере чтения.
+ * Для сортировки источник отдаёт номера подходящих записей и их представления,
+ * а записи строятся только при чтении упорядоченных результатов.
+ *
+ * @author Vitaly Ogoltsov
+ */
+interface CrowdLdapSearchSource {
+
+    /**
+     * Источник без записей.
+     */
+    CrowdLdapSearchSource EMPTY = new CrowdLdapSearchSource() {
+
+        @Override
+        public Iterator<ServerEntry> iterator() {
+            return Collections.emptyIterator();
+        }
+
+        @Override
+        public int[] findIds() {
+            return new int[0];
+        }
+
+        @Override
+        public CrowdLdapEntryView view(int id) {
+            throw new IndexOutOfBoundsException(String.valueOf(id));
+        }
+
+        @Override
+        public ServerEntry entry(int id) {
+            throw new IndexOutOfBoundsException(String.valueOf(id));
+        }
+
+    };
+
+
+    /**
+     * @return записи, удовлетворяющие фильтру; фильтр проверяется по мере перебора
+     */
+    Iterator<ServerEntry> iterator();
+
+    /**
+     * @return номера записей, удовлетворяющих фильтру
+     */
+    int[] findIds();
+
+    /**
+     * @return представление записи для чтения значений атрибутов без построения записи
+     */
+    CrowdLdapEntryView view(int id);
+
+    /**
+     * @return запись по номеру
+     */
+    ServerEntry entry(int id);
+
+
+    /**
+     * Источник из одной уже построенной записи.
+     */
+    static CrowdLdapSearchSource of(ServerEntry entry, Predicate<CrowdLdapEntryView> predicate) {
+        CrowdLdapEntryView entryView = CrowdLdapEntryView.of(entry);
+        return new CrowdLdapSearchSource() {
+
+            @Override
+            public Iterator<ServerEntry> iterator() {
+                return predicate.test(entryView)
+                        ? Collections.singletonList(entry).iterator()
+                        : Collections.emptyIterator();
+            }
+
+            @Override
+            public int[] findIds() {
+                return predicate.test(entryView) ? new int[]{0} : new int[0];
+            }
+
+            @Override
+            public CrowdLdapEntryView view(int id) {
+                return entryView;
+            }
+
+            @Override
+            public ServerEntry entry(int id) {
+                return entry;
+            }
+
+        };
+    }
+
+}
@@ -0,0 +1,119 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.util.CrowdLdapEntryView;
+import org.apache.directory.shared.ldap.entry.ServerEntry;
+import org.apache.directory.shared.ldap.filter.ExprNode;
+import org.apache.directory.shared.ldap.name.RDN;
+
+import java.util.Optional;
+import java.util.function.Predicate;
+
+/**
+ * Неизменяемый согласованный снимок каталога: группы и пользователи одного поколения.
+ * <p>
+ * Публикуется целиком одной записью ссылки, поэтому ссылки member/memberOf в записях снимка
+ * всегда указывают на записи этого же снимка. Операция чтения получает снимок один раз
+ * и работает с ним до завершения без блокировок.
+ *
+ * @author Vitaly Ogoltsov
+ */
+final class CrowdLdapSnapshot {
+
+    /**
+     * Пустой снимок, используемый до завершения первой синхронизации.
+     */
+    static final CrowdLdapSnapshot EMPTY = new CrowdLdapSnapshot(0, 0, null, null);
+
+    private final long generation;
+    private final long created;
+    private final CrowdLdapEntryTable groupEntries;
+    private final CrowdLdapEntryTable userEntries;
+
+
+    CrowdLdapSnapshot(long generation, long created, CrowdLdapEntryTable groupEntries, CrowdLdapEntryTable userEntries) {
+        this.generation = generation;
+        this.created = created;
+        this.groupEntries = groupEntries;
+        this.userEntries = userEntries;
+    }
+
+
+    /**
+     * @return номер поколения снимка, 0 - каталог ещё не загружен
+     */
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return время публикации снимка (мс), 0 - каталог ещё не загружен
+     */
+    long getCreated() {
+        return created;
+    }
+
+    int getGroupCount() {
+        return groupEntries != null ? groupEntries.size() : 0;
+    }
+
+    int getUserCount() {
+        return userEntries != null ? userEntries.size() : 0;
+    }
+
+    /**
+     * Возвращает группы, удовлетворяющие фильтру. Фильтр проверяется по мере перебора источника.
+     *
+     * @param filter    фильтр поиска, используется для отбора кандидатов по индексам
+     * @param predicate предикат, построенный по фильтру
+     */
+    CrowdLdapSearchSource findGroupEntries(ExprNode filter, Predicate<CrowdLdapEntryView> predicate) {
+        return groupEntries != null ? groupEntries.find(filter, predicate) : CrowdLdapSearchSource.EMPTY;
+    }
+
+    /**
+     * Ищет группу по RDN.
+     *
+     * @param rdn нормализованный RDN записи (в контекстах операций ApacheDS DN уже нормализованы)
+     */
+    Optional<ServerEntry> findGroupEntryById(RDN rdn) {
+        return groupEntries != null ? groupEntries.findById(rdn) : Optional.empty();
+    }
+
+    /**
+     * Проверяет наличие группы по RDN.
+     *
+     * @param rdn нормализованный RDN записи
+     */
+    boolean hasGroupEntry(RDN rdn) {
+        return groupEntries != null && groupEntries.containsId(rdn);
+    }
+
+    /**
+     * Возвращает пользователей, удовлетворяющих фильтру. Фильтр проверяется по мере перебора источника.
+     *
+     * @param filter    фильтр поиска, используется для отбора кандидатов по индексам
+     * @param predicate предикат, построенный по фильтру
+     */
+    CrowdLdapSearchSource findUserEntries(ExprNode filter, Predicate<CrowdLdapEntryView> predicate) {
+        return userEntries != null ? userEntries.find(filter, predicate) : CrowdLdapSearchSource.EMPTY;
+    }
+
+    /**
+     * Ищет пользователя по RDN.
+     *
+     * @param rdn нормализованный RDN записи (в контекстах операций ApacheDS DN уже нормализованы)
+     */
+    Optional<ServerEntry> findUserEntryById(RDN rdn) {
+        return userEntries != null ? userEntries.findById(rdn) : Optional.empty();
+    }
+
+    /**
+     * Проверяет наличие пользователя по RDN.
+     *
+     * @param rdn нормализованный RDN записи
+     */
+    boolean hasUserEntry(RDN rdn) {
+        return userEntries != null && userEntries.containsId(rdn);
+    }
+
+}
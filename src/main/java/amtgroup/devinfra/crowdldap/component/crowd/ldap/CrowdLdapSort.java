@@ -0,0 +1,480 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.util.CrowdLdapEntryView;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.directory.server.core.interceptor.context.SearchingOperationContext;
+import org.apache.directory.shared.asn1.ber.tlv.TLV;
+import org.apache.directory.shared.ldap.codec.controls.ControlImpl;
+import org.apache.directory.shared.ldap.entry.ServerEntry;
+import org.apache.directory.shared.ldap.exception.LdapException;
+import org.apache.directory.shared.ldap.exception.LdapOperationException;
+import org.apache.directory.shared.ldap.exception.LdapProtocolErrorException;
+import org.apache.directory.shared.ldap.message.ResultCodeEnum;
+import org.apache.directory.shared.ldap.message.control.Control;
+import org.apache.directory.shared.ldap.schema.AttributeType;
+import org.apache.directory.shared.ldap.schema.MatchingRule;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * Сортировка результатов поиска на стороне сервера (RFC 2891, Server Side Sorting).
+ * <p>
+ * Ключи сортировки читаются из значения управляющего элемента запроса. Источники поиска отдают номера записей,
+ * удовлетворяющих фильтру, номера упорядочиваются по значениям атрибутов ключей, прочитанным из представлений записей,
+ * а сами записи строятся только при чтении результатов. Упорядоченные номера удерживаются курсором,
+ * поэтому при постраничном чтении (RFC 2696) фильтр повторно не проверяется.
+ * <p>
+ * Без правила упорядочения значения сравниваются после нормализации по правилу равенства,
+ * с правилом упорядочения из ключа - нормализатором и компаратором этого правила.
+ * Результат сортировки возвращается управляющим элементом ответа sortResult. Если сортировка невозможна,
+ * результаты возвращаются без сортировки, а для критичного управляющего элемента поиск завершается
+ * с кодом unavailableCriticalExtension. Некорректное значение управляющего элемента - ошибка протокола.
+ *
+ * @author Vitaly Ogoltsov
+ */
+@Slf4j
+final class CrowdLdapSort {
+
+    /**
+     * Server Side Sort Request Control.
+     */
+    static final String SORT_REQUEST_CONTROL_OID = "1.2.840.113556.1.4.473";
+    /**
+     * Server Side Sort Response Control.
+     */
+    static final String SORT_RESPONSE_CONTROL_OID = "1.2.840.113556.1.4.474";
+
+    private static final int SEQUENCE_TAG = 0x30;
+    private static final int OCTET_STRING_TAG = 0x04;
+    private static final int ENUMERATED_TAG = 0x0A;
+    private static final int ORDERING_RULE_TAG = 0x80;
+    private static final int REVERSE_ORDER_TAG = 0x81;
+    private static final int ATTRIBUTE_TYPE_TAG = 0x80;
+
+    private final SearchingOperationContext searchContext;
+    private final Control control;
+    private final List<Key> keys;
+
+
+    private CrowdLdapSort(SearchingOperationContext searchContext, Control control, List<Key> keys) {
+        this.searchContext = searchContext;
+        this.control = control;
+        this.keys = keys;
+    }
+
+
+    /**
+     * @return сортировка, запрошенная управляющим элементом поиска, или пустой {@link Optional}, если сортировка
+     * не запрошена или невозможна (тогда в ответ уже добавлен sortResult с причиной)
+     * @throws LdapProtocolErrorException если значение управляющего элемента некорректно
+     * @throws LdapOperationException     если сортировка невозможна, а управляющий элемент критичный
+     */
+    static Optional<CrowdLdapSort> of(SearchingOperationContext searchContext, SchemaManager schemaManager) throws LdapException {
+        Control control = searchContext.getRequestControl(SORT_REQUEST_CONTROL_OID);
+        if (control == null) {
+            return Optional.empty();
+        }
+        List<RequestedKey> requestedKeys = decode(control.getValue());
+        List<Key> keys = new ArrayList<>(requestedKeys.size());
+        for (RequestedKey requestedKey : requestedKeys) {
+            AttributeType attributeType;
+            try {
+                attributeType = schemaManager.lookupAttributeTypeRegistry(requestedKey.attributeId);
+            } catch (LdapException e) {
+                unavailable(searchContext, control, ResultCodeEnum.NO_SUCH_ATTRIBUTE, requestedKey.attributeId);
+                return Optional.empty();
+            }
+            MatchingRule orderingRule = null;
+            if (requestedKey.orderingRuleId != null) {
+                try {
+                    orderingRule = schemaManager.lookupMatchingRuleRegistry(requestedKey.orderingRuleId);
+                } catch (LdapException e) {
+                    orderingRule = null;
+                }
+                if (orderingRule == null || orderingRule.getLdapComparator() == null || orderingRule.getNormalizer() == null) {
+                    unavailable(searchContext, control, ResultCodeEnum.INAPPROPRIATE_MATCHING, requestedKey.attributeId);
+                    return Optional.empty();
+                }
+            }
+            keys.add(new Key(attributeType, requestedKey.attributeId, orderingRule, requestedKey.reverseOrder));
+        }
+        return Optional.of(new CrowdLdapSort(searchContext, control, keys));
+    }
+
+    /**
+     * @return источники результатов, каждый из которых читает записи одного источника поиска без сортировки
+     */
+    static List<Supplier<Iterator<ServerEntry>>> unsorted(List<CrowdLdapSearchSource> sources) {
+        List<Supplier<Iterator<ServerEntry>>> results = new ArrayList<>(sources.size());
+        for (CrowdLdapSearchSource source : sources) {
+            results.add(source::iterator);
+        }
+        return results;
+    }
+
+
+    /**
+     * Упорядочивает номера записей, удовлетворяющих фильтру, и добавляет в ответ sortResult.
+     *
+     * @return единственный источник результатов, строящий записи в порядке ключей сортировки по мере чтения,
+     * или источники без сортировки, если значение ключа не удалось нормализовать правилом упорядочения
+     * @throws LdapOperationException если сортировка невозможна, а управляющий элемент критичный
+     */
+    List<Supplier<Iterator<ServerEntry>>> sort(List<CrowdLdapSearchSource> sources) throws LdapException {
+        int[][] sourceIds = new int[sources.size()][];
+        int size = 0;
+        for (int s = 0; s < sourceIds.length; s++) {
+            sourceIds[s] = sources.get(s).findIds();
+            size += sourceIds[s].length;
+        }
+        // строка сортировки -> источник и номер записи в нём
+        int[] rowSources = new int[size];
+        int[] rowIds = new int[size];
+        String[][] values = new String[keys.size()][size];
+        for (int s = 0, row = 0; s < sourceIds.length; s++) {
+            CrowdLdapSearchSource source = sources.get(s);
+            for (int id : sourceIds[s]) {
+                rowSources[row] = s;
+                rowIds[row] = id;
+                CrowdLdapEntryView view = source.view(id);
+                for (int k = 0; k < values.length; k++) {
+                    Key key = keys.get(k);
+                    try {
+                        values[k][row] = key.value(view);
+                    } catch (LdapException e) {
+                        log.debug("search(): unable to sort by [{}]: {}", key.attributeId, e.getMessage());
+                        unavailable(searchContext, control, ResultCodeEnum.INAPPROPRIATE_MATCHING, key.attributeId);
+                        return unsorted(sources);
+                    }
+                }
+                row++;
+            }
+        }
+        int[] order = new int[size];
+        for (int row = 0; row < size; row++) {
+            order[row] = row;
+        }
+        mergeSort(order, new int[size], 0, size, values);
+        searchContext.addResponseControl(result(ResultCodeEnum.SUCCESS, null));
+        return Collections.singletonList(() -> new Iterator<ServerEntry>() {
+
+            private int position;
+
+            @Override
+            public boolean hasNext() {
+                return position < order.length;
+            }
+
+            @Override
+            public ServerEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int row = order[position++];
+                return sources.get(rowSources[row]).entry(rowIds[row]);
+            }
+
+        });
+    }
+
+    /**
+     * Устойчивая сортировка слиянием строк {@code order[from, to)} по значениям ключей.
+     */
+    private void mergeSort(int[] order, int[] buffer, int from, int to, String[][] values) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(order, buffer, from, middle, values);
+        mergeSort(order, buffer, middle, to, values);
+        if (compare(order[middle - 1], order[middle], values) <= 0) {
+            return;
+        }
+        System.arraycopy(order, from, buffer, from, to - from);
+        for (int i = from, left = from, right = middle; i < to; i++) {
+            if (right >= to || (left < middle && compare(buffer[left], buffer[right], values) <= 0)) {
+                order[i] = buffer[left++];
+            } else {
+                order[i] = buffer[right++];
+            }
+        }
+    }
+
+    /**
+     * Записи без значения атрибута ключа следуют за остальными при сортировке по возрастанию
+     * и предшествуют им при сортировке по убыванию.
+     */
+    private int compare(int a, int b, String[][] values) {
+        for (int k = 0; k < values.length; k++) {
+            String x = values[k][a];
+            String y = values[k][b];
+            Key key = keys.get(k);
+            int result = x == null ? (y == null ? 0 : 1) : (y == null ? -1 : key.compare(x, y));
+            if (result != 0) {
+                return key.reverseOrder ? -result : result;
+            }
+        }
+        return 0;
+    }
+
+
+    /**
+     * Сообщает, что сортировка невозможна: для критичного управляющего элемента поиск завершается ошибкой,
+     * иначе в ответ добавляется sortResult с причиной, а результаты возвращаются без сортировки.
+     */
+    private static void unavailable(SearchingOperationContext searchContext, Control control,
+                                    ResultCodeEnum resultCode, String attributeId) throws LdapOperationException {
+        if (control.isCritical()) {
+            throw new LdapOperationException(ResultCodeEnum.UNAVAILABLE_CRITICAL_EXTENSION,
+                    "Unable to sort by [" + attributeId + "]: " + resultCode);
+        }
+        searchContext.addResponseControl(result(resultCode, attributeId));
+    }
+
+    /**
+     * Управляющий элемент ответа sortResult.
+     * <pre>
+     * SortResult ::= SEQUENCE {
+     *     sortResult    ENUMERATED,
+     *     attributeType [0] AttributeDescription OPTIONAL }
+     * </pre>
+     */
+    static Control result(ResultCodeEnum resultCode, String attributeId) {
+        byte[] attributeType = attributeId != null ? attributeId.getBytes(StandardCharsets.UTF_8) : null;
+        int length = 3 + (attributeType != null ? 1 + TLV.getNbBytes(attributeType.length) + attributeType.length : 0);
+        ByteBuffer value = ByteBuffer.allocate(1 + TLV.getNbBytes(length) + length);
+        value.put((byte) SEQUENCE_TAG).put(TLV.getBytes(length));
+        value.put((byte) ENUMERATED_TAG).put((byte) 1).put((byte) resultCode.getValue());
+        if (attributeType != null) {
+            value.put((byte) ATTRIBUTE_TYPE_TAG).put(TLV.getBytes(attributeType.length)).put(attributeType);
+        }
+        ControlImpl control = new ControlImpl(SORT_RESPONSE_CONTROL_OID);
+        control.setValue(value.array());
+        return control;
+    }
+
+    /**
+     * Разбирает значение управляющего элемента запроса.
+     * <pre>
+     * SortKeyList ::= SEQUENCE OF SEQUENCE {
+     *     attributeType   AttributeDescription,
+     *     orderingRule    [0] MatchingRuleId OPTIONAL,
+     *     reverseOrder    [1] BOOLEAN DEFAULT FALSE }
+     * </pre>
+     *
+     * @throws LdapProtocolErrorException если значение отсутствует или закодировано некорректно
+     */
+    static List<RequestedKey> decode(byte[] value) throws LdapProtocolErrorException {
+        if (value == null) {
+            throw new LdapProtocolErrorException("Sort control value is missing");
+        }
+        try {
+            List<RequestedKey> keys = new ArrayList<>();
+            Reader reader = new Reader(value);
+            Reader keyList = reader.sequence();
+            reader.end();
+            while (keyList.hasMore()) {
+                Reader key = keyList.sequence();
+                String attributeId = key.string(OCTET_STRING_TAG);
+                String orderingRuleId = null;
+                boolean reverseOrder = false;
+                if (key.hasMore() && key.peekTag() == ORDERING_RULE_TAG) {
+                    orderingRuleId = key.string(ORDERING_RULE_TAG);
+                }
+                if (key.hasMore() && key.peekTag() == REVERSE_ORDER_TAG) {
+                    byte[] reverse = key.value(REVERSE_ORDER_TAG);
+                    if (reverse.length != 1) {
+                        throw new IllegalArgumentException("Invalid reverseOrder length " + reverse.length);
+                    }
+                    reverseOrder = reverse[0] != 0;
+                }
+                key.end();
+                if (attributeId.isEmpty()) {
+                    throw new IllegalArgumentException("Empty attribute type");
+                }
+                keys.add(new RequestedKey(attributeId, orderingRuleId, reverseOrder));
+            }
+            if (keys.isEmpty()) {
+                throw new IllegalArgumentException("Empty sort key list");
+            }
+            return keys;
+        } catch (IllegalArgumentException e) {
+            throw new LdapProtocolErrorException("Invalid sort control value: " + e.getMessage());
+        }
+    }
+
+
+
+    /**
+     * Ключ сортировки в том виде, в котором он передан в запросе.
+     */
+    static final class RequestedKey {
+
+        final String attributeId;
+        final String orderingRuleId;
+        final boolean reverseOrder;
+
+        private RequestedKey(String attributeId, String orderingRuleId, boolean reverseOrder) {
+            this.attributeId = attributeId;
+            this.orderingRuleId = orderingRuleId;
+            this.reverseOrder = reverseOrder;
+        }
+
+    }
+
+
+
+    /**
+     * Ключ сортировки, сопоставленный со схемой.
+     */
+    private static final class Key {
+
+        private final AttributeType attributeType;
+        private final String attributeId;
+        /**
+         * Правило упорядочения из запроса, {@code null} - нормализованные значения сравниваются как строки.
+         */
+        private final MatchingRule orderingRule;
+        private final boolean reverseOrder;
+
+        private Key(AttributeType attributeType, String attributeId, MatchingRule orderingRule, boolean reverseOrder) {
+            this.attributeType = attributeType;
+            this.attributeId = attributeId;
+            this.orderingRule = orderingRule;
+            this.reverseOrder = reverseOrder;
+        }
+
+        /**
+         * Ключом многозначного атрибута является наименьшее значение при сортировке по возрастанию
+         * и наибольшее - при сортировке по убыванию.
+         *
+         * @return значение ключа записи, {@code null} - у записи нет значений атрибута
+         */
+        private String value(CrowdLdapEntryView view) throws LdapException {
+            String keyValue = null;
+            for (int i = 0, size = view.size(attributeType); i < size; i++) {
+                String value;
+                if (orderingRule != null) {
+                    String upValue = view.getUpValue(attributeType, i);
+                    value = upValue != null ? orderingRule.getNormalizer().normalize(upValue) : null;
+                } else {
+                    value = view.getNormValue(attributeType, i);
+                }
+                if (value != null && (keyValue == null || (compare(value, keyValue) < 0) != reverseOrder)) {
+                    keyValue = value;
+                }
+            }
+            return keyValue;
+        }
+
+        private int compare(String x, String y) {
+            return orderingRule != null ? orderingRule.getLdapComparator().compare(x, y) : x.compareTo(y);
+        }
+
+    }
+
+
+
+    /**
+     * Чтение элементов BER-кодирования из значения управляющего элемента.
+     * Любое нарушение структуры или выход за границы значения - {@link IllegalArgumentException}.
+     */
+    private static final class Reader {
+
+        private final byte[] data;
+        private int position;
+        private final int end;
+
+        private Reader(byte[] data) {
+            this(data, 0, data.length);
+        }
+
+        private Reader(byte[] data, int position, int end) {
+            this.data = data;
+            this.position = position;
+            this.end = end;
+        }
+
+        private boolean hasMore() {
+            return position < end;
+        }
+
+        /**
+         * Проверяет, что все элементы прочитаны.
+         */
+        private void end() {
+            if (position != end) {
+                throw new IllegalArgumentException("Unexpected data after element");
+            }
+        }
+
+        private int peekTag() {
+            if (position >= end) {
+                throw new IllegalArgumentException("Unexpected end of data");
+            }
+            return data[position] & 0xFF;
+        }
+
+        private Reader sequence() {
+            int length = header(SEQUENCE_TAG);
+            Reader reader = new Reader(data, position, position + length);
+            position += length;
+            return reader;
+        }
+
+        private String string(int tag) {
+            return new String(value(tag), StandardCharsets.UTF_8);
+        }
+
+        private byte[] value(int tag) {
+            int length = header(tag);
+            byte[] value = new byte[length];
+            System.arraycopy(data, position, value, 0, length);
+            position += length;
+            return value;
+        }
+
+        /**
+         * Читает тег и длину элемента.
+         *
+         * @return длина значения, которое полностью помещается в границы читаемого элемента
+         */
+        private int header(int tag) {
+            int found = peekTag();
+            if (found != tag) {
+                throw new IllegalArgumentException("Expected tag " + tag + ", found " + found);
+            }
+            position++;
+            if (position >= end) {
+                throw new IllegalArgumentException("Unexpected end of data");
+            }
+            int length = data[position++] & 0xFF;
+            if (length > 0x7F) {
+                int octets = length & 0x7F;
+                // неопределённая длина (0x80) в LDAP запрещена, длина больше 3 байт не помещается в значение элемента
+                if (octets == 0 || octets > 3 || octets > end - position) {
+                    throw new IllegalArgumentException("Unsupported length");
+                }
+                length = 0;
+                for (int i = 0; i < octets; i++) {
+                    length = (length << 8) | (data[position++] & 0xFF);
+                }
+            }
+            if (length > end - position) {
+                throw new IllegalArgumentException("Unexpected end of data");
+            }
+            return length;
+        }
+
+    }
+
+}
@@ -27,4 +27,9 @@ public class CrowdLdapConstants {
     public static final String MEMBER_AT = "member";
     public static final String MEMBEROF_AT = "memberof";
 
+    /**
+     * Правило сопоставления Active Directory LDAP_MATCHING_RULE_IN_CHAIN: членство с учётом вложенных групп.
+     */
+    public static final String MATCHING_RULE_IN_CHAIN_OID = "1.2.840.113556.1.4.1941";
+
 }
@@ -0,0 +1,77 @@
+package amtgroup.devinfra.crowdldap.component.crowd.util;
+
+import org.apache.directory.shared.ldap.entry.EntryAttribute;
+import org.apache.directory.shared.ldap.entry.ServerEntry;
+import org.apache.directory.shared.ldap.entry.Value;
+import org.apache.directory.shared.ldap.schema.AttributeType;
+
+/**
+ * Представление записи каталога для проверки фильтров поиска.
+ * <p>
+ * Позволяет проверять фильтр по компактному представлению каталога без построения {@link ServerEntry}.
+ *
+ * @author Vitaly Ogoltsov
+ */
+public interface CrowdLdapEntryView {
+
+    /**
+     * @return количество значений атрибута, 0 - если атрибута нет
+     */
+    int size(AttributeType attributeType);
+
+    /**
+     * @return нормализованное значение атрибута
+     */
+    String getNormValue(AttributeType attributeType, int index);
+
+    /**
+     * @return значение атрибута в исходном виде
+     */
+    String getUpValue(AttributeType attributeType, int index);
+
+    /**
+     * Значения атрибута связи (member/memberOf) с учётом вложенных групп для правила LDAP_MATCHING_RULE_IN_CHAIN.
+     *
+     * @return количество значений, по умолчанию - количество значений самого атрибута
+     */
+    default int getChainSize(AttributeType attributeType) {
+        return size(attributeType);
+    }
+
+    /**
+     * @return нормализованное значение атрибута связи с учётом вложенных групп,
+     * по умолчанию - значение самого атрибута
+     */
+    default String getChainNormValue(AttributeType attributeType, int index) {
+        return getNormValue(attributeType, index);
+    }
+
+
+    /**
+     * Представление для записи, уже построенной в виде {@link ServerEntry}.
+     */
+    static CrowdLdapEntryView of(ServerEntry entry) {
+        return new CrowdLdapEntryView() {
+
+            @Override
+            public int size(AttributeType attributeType) {
+                EntryAttribute attribute = entry.get(attributeType);
+                return attribute != null ? attribute.size() : 0;
+            }
+
+            @Override
+            public String getNormValue(AttributeType attributeType, int index) {
+                Value<?> value = entry.get(attributeType).get(index);
+                return value.isBinary() ? null : (String) value.getNormalizedValue();
+            }
+
+            @Override
+            public String getUpValue(AttributeType attributeType, int index) {
+                Value<?> value = entry.get(attributeType).get(index);
+                return value.isBinary() ? null : value.getString();
+            }
+
+        };
+    }
+
+}
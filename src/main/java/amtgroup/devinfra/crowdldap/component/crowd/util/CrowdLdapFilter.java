@@ -1,131 +1,639 @@
 package amtgroup.devinfra.crowdldap.component.crowd.util;
 
+import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapProperties;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.ObjectUtils;
-import org.apache.directory.shared.ldap.entry.EntryAttribute;
-import org.apache.directory.shared.ldap.entry.ServerEntry;
 import org.apache.directory.shared.ldap.entry.Value;
+import org.apache.directory.shared.ldap.exception.LdapException;
 import org.apache.directory.shared.ldap.filter.AndNode;
+import org.apache.directory.shared.ldap.filter.ApproximateNode;
+import org.apache.directory.shared.ldap.filter.BranchNode;
 import org.apache.directory.shared.ldap.filter.EqualityNode;
 import org.apache.directory.shared.ldap.filter.ExprNode;
+import org.apache.directory.shared.ldap.filter.ExtensibleNode;
 import org.apache.directory.shared.ldap.filter.GreaterEqNode;
+import org.apache.directory.shared.ldap.filter.LeafNode;
 import org.apache.directory.shared.ldap.filter.LessEqNode;
 import org.apache.directory.shared.ldap.filter.NotNode;
 import org.apache.directory.shared.ldap.filter.OrNode;
 import org.apache.directory.shared.ldap.filter.PresenceNode;
+import org.apache.directory.shared.ldap.filter.SimpleNode;
+import org.apache.directory.shared.ldap.filter.SubstringNode;
+import org.apache.directory.shared.ldap.schema.AttributeType;
+import org.apache.directory.shared.ldap.schema.MatchingRule;
+import org.apache.directory.shared.ldap.schema.Normalizer;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
 import org.springframework.stereotype.Component;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 /**
+ * Компилирует фильтры поиска в плоские программы проверки записей.
+ * <p>
+ * Типы атрибутов разрешаются, а значения из фильтра нормализуются один раз при компиляции,
+ * проверка записи не создаёт объектов. Скомпилированные программы кешируются
+ * по строковому представлению нормализованного фильтра вместе с видом фильтра для статистики поисков.
+ * Попадание в кеш не захватывает общих блокировок: при переполнении кеша вытесняются фильтры,
+ * использованные раньше других, по логическому времени обращения.
+ *
  * @author Vitaly Ogoltsov
  */
 @Component
 @Slf4j
 public class CrowdLdapFilter {
 
-    public Optional<Predicate<ServerEntry>> of(ExprNode filter) {
-        if (filter instanceof AndNode) {
-            List<Predicate<ServerEntry>> predicates = ((AndNode) filter).getChildren()
-                    .stream()
-                    .map(this::of)
-                    .filter(Optional::isPresent)
-                    .map(Optional::get)
-                    .collect(Collectors.toList());
-            return predicates.isEmpty()
-                    ? Optional.empty()
-                    : Optional.of(t -> predicates.stream().allMatch(p -> p.test(t)));
-        } else if (filter instanceof OrNode) {
-            List<Predicate<ServerEntry>> predicates = ((OrNode) filter).getChildren()
-                    .stream()
-                    .map(this::of)
-                    .filter(Optional::isPresent)
-                    .map(Optional::get)
-                    .collect(Collectors.toList());
-            return predicates.isEmpty()
-                    ? Optional.empty()
-                    : Optional.of(t -> predicates.stream().anyMatch(p -> p.test(t)));
-        } else if (filter instanceof NotNode) {
-            return of(((NotNode) filter).getFirstChild())
-                    .map(Predicate::negate);
-        } else if (filter instanceof PresenceNode) {
-            PresenceNode node = (PresenceNode) filter;
-            return Optional.of(exists(node.getAttribute()));
-        } else if (filter instanceof EqualityNode) {
-            EqualityNode node = (EqualityNode) filter;
-            return Optional.of(eq(node.getAttribute(), node.getValue()));
-        } else if (filter instanceof GreaterEqNode) {
-            GreaterEqNode node = (GreaterEqNode) filter;
-            return Optional.of(goe(node.getAttribute(), node.getValue()));
-        } else if (filter instanceof LessEqNode) {
-            LessEqNode node = (LessEqNode) filter;
-            return Optional.of(loe(node.getAttribute(), node.getValue()));
-        }
-        log.warn("Expression nodes of type [{}] are not supported", filter.getClass().getSimpleName());
-        return Optional.empty();
+    private static final int AND = 0;
+    private static final int OR = 1;
+    private static final int NOT = 2;
+    private static final int PRESENT = 3;
+    private static final int EQUAL = 4;
+    private static final int GREATER_OR_EQUAL = 5;
+    private static final int LESS_OR_EQUAL = 6;
+    private static final int SUBSTRING = 7;
+    private static final int EXTENSIBLE = 8;
+    private static final int NEVER = 9;
+    private static final int IN_CHAIN = 10;
+
+    private final SchemaManager schemaManager;
+
+    private final int cacheSize;
+    /**
+     * Количество фильтров, остающихся в кеше после вытеснения: вытесняется сразу часть кеша,
+     * чтобы поток непохожих фильтров не просматривал кеш при каждом промахе.
+     */
+    private final int evictedCacheSize;
+
+    /**
+     * Нормализованный фильтр -> результат компиляции.
+     */
+    private final ConcurrentMap<String, CacheEntry> cache = new ConcurrentHashMap<>();
+    /**
+     * Логическое время обращений к кешу. Продвигается только при промахах на 2: скомпилированный фильтр
+     * получает нечётное время, а попадание - текущее чётное, то есть более позднее, чем у всех ранее
+     * скомпилированных фильтров. Попадание только читает время и записывает его в элемент, если оно изменилось.
+     */
+    private final AtomicLong clock = new AtomicLong();
+    private final Object evictionLock = new Object();
+
+
+    public CrowdLdapFilter(CrowdLdapProperties crowdLdapProperties, SchemaManager schemaManager) {
+        this.schemaManager = schemaManager;
+        this.cacheSize = crowdLdapProperties.getFilterCacheSize();
+        this.evictedCacheSize = cacheSize - cacheSize / 10;
     }
 
 
-    private Predicate<ServerEntry> exists(String attributeName) {
-        return e -> e.get(attributeName) != null;
+    /**
+     * @param filter нормализованный фильтр поиска
+     * @return предикат для проверки записей и вид фильтра
+     */
+    public Compilation of(ExprNode filter) {
+        String key = filter.toString();
+        CacheEntry entry = cache.get(key);
+        if (entry != null) {
+            long used = clock.get();
+            if (entry.used != used) {
+                entry.used = used;
+            }
+            return entry.compilation;
+        }
+        CacheEntry compiled = new CacheEntry(compile(filter), clock.addAndGet(2) - 1);
+        entry = cache.putIfAbsent(key, compiled);
+        if (entry != null) {
+            // фильтр одновременно скомпилирован другим потоком
+            return entry.compilation;
+        }
+        if (cache.size() > cacheSize) {
+            evict();
+        }
+        return compiled.compilation;
     }
 
-    private Predicate<ServerEntry> eq(String attributeName, Value attributeValue) {
-        return e -> {
-            EntryAttribute attribute = e.get(attributeName);
-            if (attribute == null) {
-                return false;
+
+    /**
+     * Вытесняет фильтры, использованные раньше других. Выполняется только при промахах в переполненном кеше.
+     */
+    private void evict() {
+        synchronized (evictionLock) {
+            // время обращения может измениться во время вытеснения: порог вычисляется по снимку,
+            // а использованный после снимка фильтр остаётся в кеше
+            long[] used = cache.values().stream().mapToLong(entry -> entry.used).sorted().toArray();
+            int excess = used.length - evictedCacheSize;
+            if (used.length <= cacheSize || excess <= 0) {
+                return;
             }
-            if (Objects.equals(attributeValue.getString(), "*")) {
-                return true;
+            long threshold = used[excess - 1];
+            for (Map.Entry<String, CacheEntry> entry : cache.entrySet()) {
+                if (excess > 0 && entry.getValue().used <= threshold && cache.remove(entry.getKey(), entry.getValue())) {
+                    excess--;
+                }
             }
-            for (Iterator<Value<?>> valueIterator = attribute.getAll(); valueIterator.hasNext(); ) {
-                Value<?> value = valueIterator.next();
-                if (Objects.equals(value, attributeValue)) {
-                    return true;
+        }
+    }
+
+
+    private Compilation compile(ExprNode filter) {
+        Program program = new Program();
+        Optional<Predicate<CrowdLdapEntryView>> predicate = program.add(filter)
+                ? Optional.of(program.toPredicate())
+                : Optional.empty();
+        StringBuilder shape = new StringBuilder();
+        appendShape(shape, filter);
+        return new Compilation(predicate, shape.toString());
+    }
+
+    private void appendShape(StringBuilder shape, ExprNode node) {
+        if (node instanceof BranchNode) {
+            shape.append('(').append(node instanceof OrNode ? '|' : node instanceof NotNode ? '!' : '&');
+            for (ExprNode child : ((BranchNode) node).getChildren()) {
+                appendShape(shape, child);
+            }
+            shape.append(')');
+        } else if (node instanceof LeafNode) {
+            String attributeId = ((LeafNode) node).getAttribute();
+            AttributeType attributeType = attributeType(attributeId);
+            shape.append('(').append(attributeType != null ? attributeType.getName() : attributeId);
+            if (node instanceof PresenceNode) {
+                shape.append("=*");
+            } else if (node instanceof EqualityNode) {
+                shape.append("=?");
+            } else if (node instanceof GreaterEqNode) {
+                shape.append(">=?");
+            } else if (node instanceof LessEqNode) {
+                shape.append("<=?");
+            } else if (node instanceof ApproximateNode) {
+                shape.append("~=?");
+            } else if (node instanceof SubstringNode) {
+                SubstringNode substring = (SubstringNode) node;
+                shape.append('=').append(substring.getInitial() != null ? "?*" : "*");
+                if (substring.getAny() != null) {
+                    substring.getAny().forEach(any -> shape.append("?*"));
+                }
+                if (substring.getFinal() != null) {
+                    shape.append('?');
+                }
+            } else if (node instanceof ExtensibleNode) {
+                ExtensibleNode extensible = (ExtensibleNode) node;
+                if (extensible.hasDnAttributes()) {
+                    shape.append(":dn");
                 }
+                if (extensible.getMatchingRuleId() != null) {
+                    shape.append(':').append(extensible.getMatchingRuleId());
+                }
+                shape.append(":=?");
             }
-            return false;
-        };
+            shape.append(')');
+        } else {
+            shape.append(node);
+        }
+    }
+
+    /**
+     * @return тип атрибута или {@code null}, если атрибут не описан в схеме (такого атрибута нет ни у одной записи)
+     */
+    private AttributeType attributeType(String attributeName) {
+        try {
+            return schemaManager.lookupAttributeTypeRegistry(attributeName);
+        } catch (LdapException e) {
+            log.debug("Unknown attribute [{}] in filter", attributeName);
+            return null;
+        }
+    }
+
+    private static String normalize(AttributeType attributeType, Value<?> value) {
+        return value.isBinary() ? null : normalize(attributeType, value.getString());
     }
 
-    @SuppressWarnings("unchecked")
-    private Predicate<ServerEntry> goe(String attributeName, Value attributeValue) {
-        return e -> {
-            EntryAttribute attribute = e.get(attributeName);
-            if (attribute == null) {
-                return false;
+    private static String normalize(AttributeType attributeType, String value) {
+        try {
+            if (attributeType.getEquality() == null || attributeType.getEquality().getNormalizer() == null) {
+                return value;
             }
-            for (Iterator<Value<?>> valueIterator = attribute.getAll(); valueIterator.hasNext(); ) {
-                Value<?> value = valueIterator.next();
-                if (ObjectUtils.compare(value, attributeValue) >= 0) {
-                    return true;
+            return attributeType.getEquality().getNormalizer().normalize(value);
+        } catch (LdapException e) {
+            log.debug("Unable to normalize value [{}] of attribute [{}]", value, attributeType.getName());
+            return null;
+        }
+    }
+
+
+
+    /**
+     * Нормализует части условия на подстроку правилом сопоставления подстрок атрибута
+     * (или правилом равенства, если правило подстрок не задано).
+     *
+     * @return {@code null}, если части условия не удалось нормализовать
+     */
+    private static Substring substring(AttributeType attributeType, SubstringNode node) {
+        MatchingRule matchingRule = attributeType.getSubstring() != null ? attributeType.getSubstring() : attributeType.getEquality();
+        Normalizer normalizer = matchingRule != null ? matchingRule.getNormalizer() : null;
+        try {
+            List<String> any = node.getAny() != null ? node.getAny() : Collections.emptyList();
+            String[] normalizedAny = new String[any.size()];
+            for (int i = 0; i < normalizedAny.length; i++) {
+                normalizedAny[i] = normalize(normalizer, any.get(i));
+            }
+            return new Substring(normalize(normalizer, node.getInitial()), normalizedAny, normalize(normalizer, node.getFinal()));
+        } catch (LdapException e) {
+            log.debug("Unable to normalize substring filter [{}]", node);
+            return null;
+        }
+    }
+
+    private static String normalize(Normalizer normalizer, String value) throws LdapException {
+        return value == null || normalizer == null ? value : normalizer.normalize(value);
+    }
+
+
+
+    /**
+     * Программа в процессе компиляции: узлы фильтра в прямом порядке обхода.
+     * Для каждого узла хранится позиция, следующая за его поддеревом.
+     */
+    private final class Program {
+
+        private final List<Integer> operations = new ArrayList<>();
+        private final List<Integer> ends = new ArrayList<>();
+        private final List<AttributeType> attributeTypes = new ArrayList<>();
+        private final List<String> values = new ArrayList<>();
+        private final List<Object> operands = new ArrayList<>();
+
+        /**
+         * Добавляет узел фильтра в программу.
+         *
+         * @return {@code false}, если узел не поддерживается и не ограничивает поиск (узел не добавлен)
+         */
+        private boolean add(ExprNode filter) {
+            if (filter instanceof AndNode || filter instanceof OrNode) {
+                int position = append(filter instanceof AndNode ? AND : OR, null, null, null);
+                boolean constrained = false;
+                for (ExprNode child : ((BranchNode) filter).getChildren()) {
+                    constrained |= add(child);
+                }
+                return constrained ? end(position) : rollback(position);
+            } else if (filter instanceof NotNode) {
+                int position = append(NOT, null, null, null);
+                return add(((NotNode) filter).getFirstChild()) ? end(position) : rollback(position);
+            } else if (filter instanceof PresenceNode) {
+                AttributeType attributeType = attributeType(((PresenceNode) filter).getAttribute());
+                return end(attributeType != null ? append(PRESENT, attributeType, null, null) : append(NEVER, null, null, null));
+            } else if (filter instanceof SimpleNode) {
+                SimpleNode<?> node = (SimpleNode<?>) filter;
+                AttributeType attributeType = attributeType(node.getAttribute());
+                if (attributeType == null) {
+                    return end(append(NEVER, null, null, null));
+                }
+                if (filter instanceof EqualityNode && Objects.equals(node.getValue().getString(), "*")) {
+                    return end(append(PRESENT, attributeType, null, null));
+                }
+                String value = normalize(attributeType, node.getValue());
+                if (value == null) {
+                    return end(append(NEVER, null, null, null));
+                }
+                if (filter instanceof EqualityNode || filter instanceof ApproximateNode) {
+                    // приближённое совпадение, как и в ApacheDS, проверяется по правилу равенства
+                    return end(append(EQUAL, attributeType, value, null));
+                } else if (filter instanceof GreaterEqNode) {
+                    return end(append(GREATER_OR_EQUAL, attributeType, value, null));
+                } else if (filter instanceof LessEqNode) {
+                    return end(append(LESS_OR_EQUAL, attributeType, value, null));
                 }
+            } else if (filter instanceof SubstringNode) {
+                SubstringNode node = (SubstringNode) filter;
+                AttributeType attributeType = attributeType(node.getAttribute());
+                Substring substring = attributeType != null ? substring(attributeType, node) : null;
+                return end(substring != null
+                        ? append(SUBSTRING, attributeType, null, substring)
+                        : append(NEVER, null, null, null));
+            } else if (filter instanceof ExtensibleNode) {
+                return addExtensible((ExtensibleNode) filter);
             }
+            log.warn("Expression nodes of type [{}] are not supported", filter.getClass().getSimpleName());
             return false;
-        };
+        }
+
+        /**
+         * Расширенное сопоставление {@code (attr:rule:=value)}. Поддерживаются только условия с указанным атрибутом,
+         * признак dnAttributes не учитывается: значения RDN записей каталога совпадают со значениями их атрибутов.
+         * Правило LDAP_MATCHING_RULE_IN_CHAIN проверяется по связям записи с учётом вложенных групп.
+         */
+        private boolean addExtensible(ExtensibleNode node) {
+            AttributeType attributeType = node.getAttribute() != null ? attributeType(node.getAttribute()) : null;
+            if (attributeType == null || node.getValue() == null) {
+                return end(append(NEVER, null, null, null));
+            }
+            // значение расширенного сопоставления парсер и декодер LDAP-сообщений передают в двоичном виде:
+            // строковые атрибуты каталога сравниваются с ним как со строкой UTF-8
+            String assertion = node.getValue().getString();
+            if (CrowdLdapConstants.MATCHING_RULE_IN_CHAIN_OID.equals(node.getMatchingRuleId())) {
+                // правило Active Directory не описано в схеме: значение сравнивается по правилу равенства атрибута
+                // со значениями связи с учётом вложенных групп
+                String value = normalize(attributeType, assertion);
+                return end(value != null
+                        ? append(IN_CHAIN, attributeType, value, null)
+                        : append(NEVER, null, null, null));
+            }
+            MatchingRule matchingRule;
+            try {
+                matchingRule = node.getMatchingRuleId() != null
+                        ? schemaManager.lookupMatchingRuleRegistry(node.getMatchingRuleId())
+                        : attributeType.getEquality();
+            } catch (LdapException e) {
+                log.debug("Unknown matching rule [{}] in filter", node.getMatchingRuleId());
+                return end(append(NEVER, null, null, null));
+            }
+            if (matchingRule == null || matchingRule == attributeType.getEquality()) {
+                String value = normalize(attributeType, assertion);
+                return end(value != null
+                        ? append(EQUAL, attributeType, value, null)
+                        : append(NEVER, null, null, null));
+            }
+            // правило отличается от правила равенства атрибута - значения записи нормализуются при проверке
+            Normalizer normalizer = matchingRule.getNormalizer();
+            try {
+                String value = normalizer != null ? normalizer.normalize(assertion) : assertion;
+                return end(append(EXTENSIBLE, attributeType, value, normalizer));
+            } catch (LdapException e) {
+                log.debug("Unable to normalize value [{}] with matching rule [{}]", node.getValue(), matchingRule.getName());
+                return end(append(NEVER, null, null, null));
+            }
+        }
+
+        private int append(int operation, AttributeType attributeType, String value, Object operand) {
+            operations.add(operation);
+            ends.add(-1);
+            attributeTypes.add(attributeType);
+            values.add(value);
+            operands.add(operand);
+            return operations.size() - 1;
+        }
+
+        private boolean end(int position) {
+            ends.set(position, operations.size());
+            return true;
+        }
+
+        private boolean rollback(int position) {
+            while (operations.size() > position) {
+                int last = operations.size() - 1;
+                operations.remove(last);
+                ends.remove(last);
+                attributeTypes.remove(last);
+                values.remove(last);
+                operands.remove(last);
+            }
+            return false;
+        }
+
+        private CompiledFilter toPredicate() {
+            int size = operations.size();
+            int[] operationArray = new int[size];
+            int[] endArray = new int[size];
+            for (int i = 0; i < size; i++) {
+                operationArray[i] = operations.get(i);
+                endArray[i] = ends.get(i);
+            }
+            return new CompiledFilter(
+                    operationArray,
+                    endArray,
+                    attributeTypes.toArray(new AttributeType[0]),
+                    values.toArray(new String[0]),
+                    operands.toArray()
+            );
+        }
+
     }
 
-    @SuppressWarnings("unchecked")
-    private Predicate<ServerEntry> loe(String attributeName, Value attributeValue) {
-        return e -> {
-            EntryAttribute attribute = e.get(attributeName);
-            if (attribute == null) {
-                return false;
+
+
+    /**
+     * Элемент кеша скомпилированных фильтров.
+     */
+    private static final class CacheEntry {
+
+        private final Compilation compilation;
+        /**
+         * Логическое время последнего обращения.
+         */
+        private volatile long used;
+
+        private CacheEntry(Compilation compilation, long used) {
+            this.compilation = compilation;
+            this.used = used;
+        }
+
+    }
+
+    /**
+     * Результат компиляции фильтра.
+     */
+    public static final class Compilation {
+
+        private final Optional<Predicate<CrowdLdapEntryView>> predicate;
+        private final String shape;
+
+        public Compilation(Optional<Predicate<CrowdLdapEntryView>> predicate, String shape) {
+            this.predicate = predicate;
+            this.shape = shape;
+        }
+
+        /**
+         * @return предикат для проверки записей или пустой {@link Optional}, если фильтр не ограничивает поиск
+         */
+        public Optional<Predicate<CrowdLdapEntryView>> getPredicate() {
+            return predicate;
+        }
+
+        /**
+         * @return вид фильтра: фильтр с заменёнными на {@code ?} значениями и именами атрибутов вместо OID
+         */
+        public String getShape() {
+            return shape;
+        }
+
+    }
+
+    /**
+     * Скомпилированный фильтр. Неизменяем и может использоваться одновременно несколькими поисками.
+     */
+    private static final class CompiledFilter implements Predicate<CrowdLdapEntryView> {
+
+        private final int[] operations;
+        private final int[] ends;
+        private final AttributeType[] attributeTypes;
+        private final String[] values;
+        /**
+         * {@link Substring} для подстрок, {@link Normalizer} правила для расширенного сопоставления.
+         */
+        private final Object[] operands;
+
+        private CompiledFilter(int[] operations, int[] ends, AttributeType[] attributeTypes, String[] values, Object[] operands) {
+            this.operations = operations;
+            this.ends = ends;
+            this.attributeTypes = attributeTypes;
+            this.values = values;
+            this.operands = operands;
+        }
+
+        @Override
+        public boolean test(CrowdLdapEntryView entry) {
+            return evaluate(entry, 0);
+        }
+
+        private boolean evaluate(CrowdLdapEntryView entry, int position) {
+            switch (operations[position]) {
+                case AND:
+                    for (int child = position + 1; child < ends[position]; child = ends[child]) {
+                        if (!evaluate(entry, child)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                case OR:
+                    for (int child = position + 1; child < ends[position]; child = ends[child]) {
+                        if (evaluate(entry, child)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                case NOT:
+                    return !evaluate(entry, position + 1);
+                case PRESENT:
+                    return entry.size(attributeTypes[position]) > 0;
+                case EQUAL:
+                case GREATER_OR_EQUAL:
+                case LESS_OR_EQUAL:
+                    return compare(entry, position);
+                case SUBSTRING:
+                    return matchSubstring(entry, position);
+                case EXTENSIBLE:
+                    return matchExtensible(entry, position);
+                case IN_CHAIN:
+                    return matchInChain(entry, position);
+                default:
+                    return false;
             }
-            for (Iterator<Value<?>> valueIterator = attribute.getAll(); valueIterator.hasNext(); ) {
-                Value<?> value = valueIterator.next();
-                if (ObjectUtils.compare(value, attributeValue) <= 0) {
+        }
+
+        private boolean compare(CrowdLdapEntryView entry, int position) {
+            AttributeType attributeType = attributeTypes[position];
+            String expected = values[position];
+            for (int i = 0, size = entry.size(attributeType); i < size; i++) {
+                String value = entry.getNormValue(attributeType, i);
+                if (value == null) {
+                    continue;
+                }
+                switch (operations[position]) {
+                    case EQUAL:
+                        if (expected.equals(value)) {
+                            return true;
+                        }
+                        break;
+                    case GREATER_OR_EQUAL:
+                        if (value.compareTo(expected) >= 0) {
+                            return true;
+                        }
+                        break;
+                    case LESS_OR_EQUAL:
+                        if (value.compareTo(expected) <= 0) {
+                            return true;
+                        }
+                        break;
+                }
+            }
+            return false;
+        }
+
+        private boolean matchSubstring(CrowdLdapEntryView entry, int position) {
+            AttributeType attributeType = attributeTypes[position];
+            Substring substring = (Substring) operands[position];
+            for (int i = 0, size = entry.size(attributeType); i < size; i++) {
+                String value = entry.getNormValue(attributeType, i);
+                if (value != null && substring.matches(value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matchInChain(CrowdLdapEntryView entry, int position) {
+            AttributeType attributeType = attributeTypes[position];
+            for (int i = 0, size = entry.getChainSize(attributeType); i < size; i++) {
+                if (values[position].equals(entry.getChainNormValue(attributeType, i))) {
                     return true;
                 }
             }
             return false;
-        };
+        }
+
+        /**
+         * Значения записи нормализуются правилом сопоставления при каждой проверке:
+         * такие фильтры редки, хранить значения для всех правил нецелесообразно.
+         */
+        private boolean matchExtensible(CrowdLdapEntryView entry, int position) {
+            AttributeType attributeType = attributeTypes[position];
+            Normalizer normalizer = (Normalizer) operands[position];
+            for (int i = 0, size = entry.size(attributeType); i < size; i++) {
+                String value = entry.getUpValue(attributeType, i);
+                if (value == null) {
+                    continue;
+                }
+                try {
+                    if (values[position].equals(normalizer != null ? normalizer.normalize(value) : value)) {
+                        return true;
+                    }
+                } catch (LdapException e) {
+                    log.debug("Unable to normalize value [{}] of attribute [{}]", value, attributeType.getName());
+                }
+            }
+            return false;
+        }
+
+    }
+
+
+
+    /**
+     * Нормализованные части условия на подстроку.
+     */
+    private static final class Substring {
+
+        private final String initial;
+        private final String[] any;
+        private final String fin;
+
+        private Substring(String initial, String[] any, String fin) {
+            this.initial = initial;
+            this.any = any;
+            this.fin = fin;
+        }
+
+        private boolean matches(String value) {
+            int position = 0;
+            if (initial != null) {
+                if (!value.startsWith(initial)) {
+                    return false;
+                }
+                position = initial.length();
+            }
+            for (String part : any) {
+                int index = value.indexOf(part, position);
+                if (index < 0) {
+                    return false;
+                }
+                position = index + part.length();
+            }
+            return fin == null || (value.length() - fin.length() >= position && value.endsWith(fin));
+        }
+
     }
 
 }
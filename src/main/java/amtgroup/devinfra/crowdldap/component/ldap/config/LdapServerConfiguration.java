@@ -113,7 +113,8 @@ public class LdapServerConfiguration {
     }
 
     @Bean
-    public DirectoryService directoryService(SchemaManager schemaManager,
+    public DirectoryService directoryService(LdapServerProperties ldapServerProperties,
+                                             SchemaManager schemaManager,
                                              SchemaPartition schemaPartition,
                                              Set<Authenticator> authenticators) throws Exception {
 
@@ -132,6 +133,7 @@ public class LdapServerConfiguration {
         // настроить сервис
         directoryService.getChangeLog().setEnabled(false);
         directoryService.setDenormalizeOpAttrsEnabled(true);
+        directoryService.setMaxPDUSize(ldapServerProperties.getMaxPduSize());
         // запретить анонимный доступ
         directoryService.setAllowAnonymousAccess(false);
         // настроить способы аутентификации
@@ -147,8 +149,15 @@ public class LdapServerConfiguration {
                                  DirectoryService directoryService) throws Exception {
 
         // настроить и запустить LdapServer
+        int threads = ldapServerProperties.getThreads();
+        // количество потоков транспорта задает и количество потоков ввода-вывода MINA,
+        // и размер пула потоков обработки LDAP-запросов
+        TcpTransport transport = new TcpTransport(ldapServerProperties.getPort(), threads, ldapServerProperties.getBacklog());
+        log.info("ldapServer(): port = {}, threads = {}, backlog = {}", ldapServerProperties.getPort(), threads, ldapServerProperties.getBacklog());
         LdapServer ldapServer = new LdapServer();
-        ldapServer.setTransports(new TcpTransport(ldapServerProperties.getPort()));
+        ldapServer.setTransports(transport);
+        ldapServer.setMaxSizeLimit(ldapServerProperties.getMaxSizeLimit());
+        ldapServer.setMaxTimeLimit(ldapServerProperties.getMaxTimeLimit());
         ldapServer.setDirectoryService(directoryService);
         ldapServer.start();
         return ldapServer;
@@ -15,4 +15,30 @@ public class LdapServerProperties {
      */
     private int port = 10389;
 
+    /**
+     * Количество потоков ввода-вывода и количество потоков обработки LDAP-запросов.
+     * По умолчанию - значение ApacheDS; нагрузочными тестами значение не проверялось (см. README).
+     */
+    private int threads = 3;
+
+    /**
+     * Размер очереди входящих подключений, ожидающих принятия.
+     */
+    private int backlog = 50;
+
+    /**
+     * Максимальный размер LDAP-сообщения (байт).
+     */
+    private int maxPduSize = 2000000;
+
+    /**
+     * Максимальное количество записей в результате поиска, 0 - без ограничения.
+     */
+    private long maxSizeLimit = 100;
+
+    /**
+     * Максимальное время выполнения поиска (с), 0 - без ограничения.
+     */
+    private int maxTimeLimit = 10000;
+
 }
@@ -0,0 +1,98 @@
+package amtgroup.devinfra.crowdldap.component.crowd;
+
+import amtgroup.devinfra.crowdldap.component.ldap.config.LdapServerConfiguration;
+import amtgroup.devinfra.crowdldap.component.ldap.config.LdapServerProperties;
+import org.apache.directory.server.core.normalization.FilterNormalizingVisitor;
+import org.apache.directory.shared.ldap.entry.EntryAttribute;
+import org.apache.directory.shared.ldap.entry.ServerEntry;
+import org.apache.directory.shared.ldap.entry.Value;
+import org.apache.directory.shared.ldap.filter.ExprNode;
+import org.apache.directory.shared.ldap.filter.FilterParser;
+import org.apache.directory.shared.ldap.name.DN;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.apache.directory.shared.ldap.schema.normalizers.ConcreteNameComponentNormalizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Схема LDAP для тестов crowd partition: загружается один раз на JVM во временную рабочую директорию.
+ *
+ * @author Vitaly Ogoltsov
+ */
+public final class CrowdLdapTestSchema {
+
+    private static SchemaManager schemaManager;
+    private static File workingDirectory;
+
+
+    private CrowdLdapTestSchema() {
+    }
+
+
+    /**
+     * @return менеджер схем, настроенный так же, как в {@link LdapServerConfiguration}
+     */
+    public static synchronized SchemaManager schemaManager() throws Exception {
+        if (schemaManager == null) {
+            workingDirectory = Files.createTempDirectory("crowd-ldap-test").toFile();
+            System.setProperty("ldap.server.work.dir", workingDirectory.getAbsolutePath());
+            schemaManager = new LdapServerConfiguration().schemaManager(new LdapServerProperties());
+        }
+        return schemaManager;
+    }
+
+    /**
+     * @return рабочая директория, в которую извлечены файлы схем
+     */
+    public static synchronized File workingDirectory() throws Exception {
+        schemaManager();
+        return workingDirectory;
+    }
+
+    /**
+     * @return временная директория для файлов теста
+     */
+    public static File newDirectory(String prefix) {
+        try {
+            return Files.createTempDirectory(prefix).toFile();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return нормализованный DN
+     */
+    public static DN dn(String dn) throws Exception {
+        return DN.normalize(dn, schemaManager().getNormalizerMapping());
+    }
+
+    /**
+     * @return фильтр, нормализованный так же, как его нормализует служба каталогов перед обращением к partition
+     */
+    public static ExprNode filter(String filter) throws Exception {
+        FilterNormalizingVisitor visitor = new FilterNormalizingVisitor(
+                new ConcreteNameComponentNormalizer(schemaManager()), schemaManager());
+        return (ExprNode) FilterParser.parse(filter).accept(visitor);
+    }
+
+    /**
+     * @return строковые значения атрибута записи, пустое множество - атрибута нет
+     */
+    public static Set<String> values(ServerEntry entry, String attributeId) {
+        Set<String> values = new TreeSet<>();
+        EntryAttribute attribute = entry.get(attributeId);
+        if (attribute != null) {
+            for (Value<?> value : attribute) {
+                values.add(value.getString());
+            }
+        }
+        return values;
+    }
+
+}
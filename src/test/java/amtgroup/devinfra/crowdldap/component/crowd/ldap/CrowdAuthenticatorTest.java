@@ -0,0 +1,275 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.CrowdLdapTestSchema;
+import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapConfiguration;
+import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapProperties;
+import amtgroup.devinfra.crowdldap.component.crowd.exception.CrowdAuthenticationException;
+import amtgroup.devinfra.crowdldap.component.crowd.exception.CrowdLdapException;
+import com.atlassian.crowd.exception.InvalidAuthenticationException;
+import com.atlassian.crowd.model.user.UserTemplate;
+import com.atlassian.crowd.service.client.CrowdClient;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.directory.server.core.interceptor.context.BindOperationContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Порядок проверок {@link CrowdAuthenticator}: ограничение неуспешных аутентификаций проверяется
+ * до кеша аутентификаций и обращения к Crowd. Объединение одновременных аутентификаций, отклонение
+ * при заполнении очереди и ожидание Crowd с ограничением времени проверяются с блокирующимся клиентом Crowd.
+ *
+ * @author Vitaly Ogoltsov
+ */
+public class CrowdAuthenticatorTest {
+
+    private CrowdClient crowdClient;
+    private CrowdBindCache bindCache;
+    private ThreadPoolTaskExecutor bindExecutor;
+    private CrowdAuthenticator authenticator;
+
+    /**
+     * Ответы Crowd на пароль {@code blocked} ожидают этого сигнала.
+     */
+    private final CountDownLatch crowdResponse = new CountDownLatch(1);
+    private final ExecutorService clients = Executors.newCachedThreadPool();
+
+
+    @Before
+    public void setUp() throws Exception {
+        CrowdLdapProperties crowdLdapProperties = new CrowdLdapProperties();
+        crowdLdapProperties.getBindThrottle().setUserBurst(1);
+        crowdClient = mock(CrowdClient.class);
+        when(crowdClient.authenticateUser("jdoe", "secret")).thenReturn(new UserTemplate("jdoe"));
+        when(crowdClient.authenticateUser("jdoe", "wrong")).thenThrow(new InvalidAuthenticationException("wrong"));
+        when(crowdClient.authenticateUser("jdoe", "guess")).thenThrow(new InvalidAuthenticationException("guess"));
+        when(crowdClient.authenticateUser(anyString(), eq("blocked"))).thenAnswer(invocation -> {
+            crowdResponse.await();
+            throw new InvalidAuthenticationException("blocked");
+        });
+        bindCache = mock(CrowdBindCache.class);
+        bindExecutor = new CrowdLdapConfiguration().crowdBindExecutor(crowdLdapProperties);
+        bindExecutor.initialize();
+        CrowdCredentialHasher credentialHasher = new CrowdCredentialHasher();
+        authenticator = new CrowdAuthenticator(
+                crowdLdapProperties,
+                crowdClient,
+                bindCache,
+                new CrowdBindThrottle(crowdLdapProperties, credentialHasher),
+                credentialHasher,
+                bindExecutor,
+                new CrowdLdapMetrics(crowdLdapProperties, new SimpleMeterRegistry())
+        );
+    }
+
+    @After
+    public void tearDown() {
+        crowdResponse.countDown();
+        clients.shutdownNow();
+        bindExecutor.shutdown();
+    }
+
+
+    @Test
+    public void successfulBindIsCached() throws Exception {
+        assertNotNull(authenticator.authenticate(bindContext("jdoe", "secret")));
+        verify(bindCache).authenticate("jdoe", "secret");
+        verify(bindCache).put("jdoe", "secret");
+    }
+
+    @Test
+    public void rejectedBindsDoNotReachBindCache() throws Exception {
+        assertRejected("wrong");
+        // повтор тех же учётных данных отклоняется по HMAC, без PBKDF2 и без Crowd
+        assertRejected("wrong");
+        // другой пароль того же пользователя отклоняется ограничением по пользователю
+        assertRejected("guess");
+        verify(bindCache, times(1)).authenticate(anyString(), anyString());
+        verify(crowdClient, times(1)).authenticateUser(anyString(), anyString());
+    }
+
+
+    @Test(timeout = 10_000)
+    public void concurrentIdenticalBindsShareOneCrowdCall() throws Exception {
+        ThreadPoolTaskExecutor executor = bindExecutor(new CrowdLdapProperties());
+        try {
+            CrowdAuthenticator authenticator = newAuthenticator(new CrowdLdapProperties(), executor);
+            List<Future<?>> binds = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                binds.add(clients.submit(() -> authenticator.authenticate(bindContext("jdoe", "blocked"))));
+            }
+            await(() -> authenticator.getCoalescedBindCount() == 3);
+            crowdResponse.countDown();
+            for (Future<?> bind : binds) {
+                assertCause(CrowdAuthenticationException.class, bind);
+            }
+            verify(crowdClient, times(1)).authenticateUser("jdoe", "blocked");
+            // после отказа выполняющаяся аутентификация удалена: повтор обращается к Crowd
+            assertRejected(authenticator, "blocked");
+            verify(crowdClient, times(2)).authenticateUser("jdoe", "blocked");
+            assertEquals(3, authenticator.getCoalescedBindCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void inFlightBindIsRemovedAfterSuccess() throws Exception {
+        ThreadPoolTaskExecutor executor = bindExecutor(new CrowdLdapProperties());
+        try {
+            CrowdAuthenticator authenticator = newAuthenticator(new CrowdLdapProperties(), executor);
+            assertNotNull(authenticator.authenticate(bindContext("jdoe", "secret")));
+            assertNotNull(authenticator.authenticate(bindContext("jdoe", "secret")));
+            verify(crowdClient, times(2)).authenticateUser("jdoe", "secret");
+            assertEquals(0, authenticator.getCoalescedBindCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void slowCrowdTimesOut() throws Exception {
+        CrowdLdapProperties crowdLdapProperties = new CrowdLdapProperties();
+        crowdLdapProperties.getBind().setTimeout(200);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ThreadPoolTaskExecutor executor = bindExecutor(crowdLdapProperties);
+        try {
+            CrowdAuthenticator authenticator = newAuthenticator(crowdLdapProperties, executor, meterRegistry);
+            long started = System.nanoTime();
+            assertCause(TimeoutException.class, clients.submit(() -> authenticator.authenticate(bindContext("jdoe", "blocked"))));
+            assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(200));
+            assertEquals(1, authenticator.getTimedOutBindCount());
+            assertEquals(1, meterRegistry.get("crowdldap.bind").tag("result", "timeout").timer().count());
+            // после истечения времени выполняющаяся аутентификация удалена, обращение к Crowd прервано
+            await(() -> executor.getActiveCount() == 0);
+            assertCause(TimeoutException.class, clients.submit(() -> authenticator.authenticate(bindContext("jdoe", "blocked"))));
+            verify(crowdClient, times(2)).authenticateUser("jdoe", "blocked");
+            assertEquals(0, authenticator.getCoalescedBindCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void fullBindQueueRejectsBind() throws Exception {
+        CrowdLdapProperties crowdLdapProperties = new CrowdLdapProperties();
+        crowdLdapProperties.getBind().setThreads(1);
+        crowdLdapProperties.getBind().setQueueCapacity(1);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ThreadPoolTaskExecutor executor = bindExecutor(crowdLdapProperties);
+        try {
+            CrowdAuthenticator authenticator = newAuthenticator(crowdLdapProperties, executor, meterRegistry);
+            // первая аутентификация занимает поток пула, вторая - очередь
+            clients.submit(() -> authenticator.authenticate(bindContext("alice", "blocked")));
+            await(() -> executor.getActiveCount() == 1);
+            clients.submit(() -> authenticator.authenticate(bindContext("bob", "blocked")));
+            await(() -> executor.getThreadPoolExecutor().getQueue().size() == 1);
+            try {
+                authenticator.authenticate(bindContext("carol", "blocked"));
+                fail("bind must be rejected when the bind queue is full");
+            } catch (CrowdLdapException e) {
+                assertTrue(e.getCause() instanceof TaskRejectedException);
+            }
+            assertEquals(1, authenticator.getRejectedBindCount());
+            assertEquals(1, meterRegistry.get("crowdldap.bind").tag("result", "rejected").timer().count());
+            verify(crowdClient, times(0)).authenticateUser("carol", "blocked");
+        } finally {
+            crowdResponse.countDown();
+            executor.shutdown();
+        }
+    }
+
+
+    /**
+     * @return аутентификатор без ограничения неуспешных аутентификаций: каждый отказ доходит до Crowd
+     */
+    private CrowdAuthenticator newAuthenticator(CrowdLdapProperties crowdLdapProperties,
+                                                ThreadPoolTaskExecutor executor) throws Exception {
+        return newAuthenticator(crowdLdapProperties, executor, new SimpleMeterRegistry());
+    }
+
+    private CrowdAuthenticator newAuthenticator(CrowdLdapProperties crowdLdapProperties,
+                                                ThreadPoolTaskExecutor executor,
+                                                SimpleMeterRegistry meterRegistry) throws Exception {
+        CrowdBindThrottle bindThrottle = mock(CrowdBindThrottle.class);
+        when(bindThrottle.acquire(anyString(), anyString(), any())).thenReturn(true);
+        return new CrowdAuthenticator(
+                crowdLdapProperties,
+                crowdClient,
+                bindCache,
+                bindThrottle,
+                new CrowdCredentialHasher(),
+                executor,
+                new CrowdLdapMetrics(crowdLdapProperties, meterRegistry)
+        );
+    }
+
+    private static ThreadPoolTaskExecutor bindExecutor(CrowdLdapProperties crowdLdapProperties) {
+        ThreadPoolTaskExecutor executor = new CrowdLdapConfiguration().crowdBindExecutor(crowdLdapProperties);
+        executor.initialize();
+        return executor;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        while (!condition.getAsBoolean()) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static void assertCause(Class<? extends Exception> expected, Future<?> bind) throws Exception {
+        try {
+            bind.get();
+            fail("bind must fail with " + expected.getSimpleName());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CrowdLdapException ? e.getCause().getCause() : e.getCause();
+            assertTrue("unexpected " + cause, expected.isInstance(cause));
+        }
+    }
+
+    private void assertRejected(String password) throws Exception {
+        assertRejected(authenticator, password);
+    }
+
+    private static void assertRejected(CrowdAuthenticator authenticator, String password) throws Exception {
+        try {
+            authenticator.authenticate(bindContext("jdoe", password));
+            fail("bind with password [" + password + "] must be rejected");
+        } catch (CrowdAuthenticationException e) {
+            // ожидаемый результат
+        }
+    }
+
+    private static BindOperationContext bindContext(String userName, String password) throws Exception {
+        BindOperationContext bindContext = new BindOperationContext(null);
+        bindContext.setDn(CrowdLdapTestSchema.dn("uid=" + userName + ",ou=users,dc=crowd"));
+        bindContext.setCredentials(password.getBytes(StandardCharsets.UTF_8));
+        return bindContext;
+    }
+
+}
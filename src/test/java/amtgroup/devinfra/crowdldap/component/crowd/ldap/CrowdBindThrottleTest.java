@@ -0,0 +1,126 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapProperties;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ограничение неуспешных аутентификаций {@link CrowdBindThrottle}: кеш неуспешных паролей
+ * и корзины маркеров пользователей и адресов клиентов при управляемом времени.
+ *
+ * @author Vitaly Ogoltsov
+ */
+public class CrowdBindThrottleTest {
+
+    private final AtomicLong clock = new AtomicLong(TimeUnit.HOURS.toNanos(1));
+
+    private CrowdLdapProperties crowdLdapProperties;
+
+
+    @Before
+    public void setUp() {
+        crowdLdapProperties = new CrowdLdapProperties();
+        crowdLdapProperties.getBindThrottle().setNegativeCacheTtl(30_000);
+        crowdLdapProperties.getBindThrottle().setUserBurst(3);
+        crowdLdapProperties.getBindThrottle().setUserRate(1);
+        crowdLdapProperties.getBindThrottle().setAddressBurst(5);
+        crowdLdapProperties.getBindThrottle().setAddressRate(0.5);
+    }
+
+
+    @Test
+    public void failedPasswordIsRejectedUntilExpired() throws Exception {
+        CrowdBindThrottle throttle = newThrottle();
+        throttle.failed("jdoe", "wrong", "10.0.0.1");
+        assertFalse(throttle.acquire("jdoe", "wrong", "10.0.0.1"));
+        // кеш учитывает пароль, а не только пользователя
+        assertTrue(throttle.acquire("jdoe", "secret", "10.0.0.1"));
+        advance(30_000);
+        assertFalse(throttle.acquire("jdoe", "wrong", "10.0.0.1"));
+        advance(1);
+        assertTrue(throttle.acquire("jdoe", "wrong", "10.0.0.1"));
+        assertEquals(2, throttle.getRejectedCount());
+        assertEquals(2, throttle.getForwardedCount());
+    }
+
+    @Test
+    public void userBurstIsLimited() throws Exception {
+        CrowdBindThrottle throttle = newThrottle();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(throttle.acquire("jdoe", "guess" + i, null));
+            throttle.failed("jdoe", "guess" + i, null);
+        }
+        // корзина пользователя пуста: отклоняется и верный пароль, имя пользователя без учёта регистра
+        assertFalse(throttle.acquire("jdoe", "secret", null));
+        assertFalse(throttle.acquire("JDoe", "secret", null));
+        assertTrue(throttle.acquire("alice", "secret", null));
+        assertEquals(2, throttle.getThrottledCount());
+    }
+
+    @Test
+    public void userBucketRefills() throws Exception {
+        CrowdBindThrottle throttle = newThrottle();
+        for (int i = 0; i < 3; i++) {
+            throttle.failed("jdoe", "guess" + i, null);
+        }
+        advance(999);
+        assertFalse(throttle.acquire("jdoe", "secret", null));
+        // userRate = 1: через секунду доступен один маркер
+        advance(1);
+        assertTrue(throttle.acquire("jdoe", "secret", null));
+        throttle.failed("jdoe", "guess3", null);
+        assertFalse(throttle.acquire("jdoe", "secret", null));
+        // корзина пополняется не больше чем до userBurst
+        advance(60_000);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(throttle.acquire("jdoe", "secret", null));
+            throttle.failed("jdoe", "later" + i, null);
+        }
+        assertFalse(throttle.acquire("jdoe", "secret", null));
+    }
+
+    @Test
+    public void addressBurstIsLimited() throws Exception {
+        CrowdBindThrottle throttle = newThrottle();
+        for (int i = 0; i < 5; i++) {
+            throttle.failed("user" + i, "guess", "10.0.0.1");
+        }
+        assertFalse(throttle.acquire("alice", "secret", "10.0.0.1"));
+        assertTrue(throttle.acquire("alice", "secret", "10.0.0.2"));
+        assertTrue(throttle.acquire("alice", "secret", null));
+        // addressRate = 0.5: маркер через две секунды
+        advance(1_999);
+        assertFalse(throttle.acquire("alice", "secret", "10.0.0.1"));
+        advance(1);
+        assertTrue(throttle.acquire("alice", "secret", "10.0.0.1"));
+    }
+
+    @Test
+    public void disabledThrottleForwardsEverything() throws Exception {
+        crowdLdapProperties.getBindThrottle().setEnabled(false);
+        CrowdBindThrottle throttle = newThrottle();
+        for (int i = 0; i < 10; i++) {
+            throttle.failed("jdoe", "wrong", "10.0.0.1");
+        }
+        assertTrue(throttle.acquire("jdoe", "wrong", "10.0.0.1"));
+        assertEquals(0, throttle.getRejectedCount());
+        assertEquals(0, throttle.getThrottledCount());
+    }
+
+
+    private CrowdBindThrottle newThrottle() throws Exception {
+        return new CrowdBindThrottle(crowdLdapProperties, new CrowdCredentialHasher(), clock::get);
+    }
+
+    private void advance(long millis) {
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+}
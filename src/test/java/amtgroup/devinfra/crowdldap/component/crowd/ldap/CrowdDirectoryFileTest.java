@@ -0,0 +1,102 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.CrowdLdapTestSchema;
+import amtgroup.devinfra.crowdldap.component.crowd.ldap.CrowdDirectory.GroupRecord;
+import amtgroup.devinfra.crowdldap.component.crowd.ldap.CrowdDirectory.UserRecord;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Запись и чтение модели каталога {@link CrowdDirectoryFile}.
+ *
+ * @author Vitaly Ogoltsov
+ */
+public class CrowdDirectoryFileTest {
+
+    private CrowdDirectoryFile directoryFile;
+
+
+    @Before
+    public void setUp() {
+        directoryFile = new CrowdDirectoryFile(new File(CrowdLdapTestSchema.newDirectory("crowd-directory-file"), "crowd-directory.bin"));
+    }
+
+
+    @Test
+    public void directoryRoundTrip() throws Exception {
+        CrowdDirectory directory = new CrowdDirectory();
+        directory.putGroup(new GroupRecord("developers", "Разработчики", true));
+        directory.putGroup(new GroupRecord("staff", null, false));
+        directory.putUser(new UserRecord("alice", "Алиса", "alice@example.com", "Alice", null, true));
+        directory.putUser(new UserRecord("bob", null, null, null, null, false));
+        directory.addMembership("alice", "developers");
+        directory.addMembership("bob", "developers");
+        directory.addMembership("alice", "staff");
+        directory.addGroupMembership("developers", "staff");
+        directoryFile.write(directory, "token-1");
+        assertTrue(directoryFile.exists());
+
+        CrowdDirectory restored = new CrowdDirectory();
+        assertEquals("token-1", directoryFile.read(restored));
+        assertEquals(new HashSet<>(directory.getGroups()), new HashSet<>(restored.getGroups()));
+        assertEquals(new HashSet<>(directory.getUsers()), new HashSet<>(restored.getUsers()));
+        assertEquals(directory.getUserNames("developers"), restored.getUserNames("developers"));
+        assertEquals(directory.getGroupNames("alice"), restored.getGroupNames("alice"));
+        assertEquals(directory.getChildGroupNames("staff"), restored.getChildGroupNames("staff"));
+        assertEquals(directory.getParentGroupNames("developers"), restored.getParentGroupNames("developers"));
+    }
+
+    @Test
+    public void nullEventToken() throws Exception {
+        directoryFile.write(new CrowdDirectory(), null);
+        CrowdDirectory restored = new CrowdDirectory();
+        assertNull(directoryFile.read(restored));
+        assertTrue(restored.getGroups().isEmpty());
+        assertTrue(restored.getUsers().isEmpty());
+    }
+
+    @Test
+    public void stringsLongerThanModifiedUtf8Limit() throws Exception {
+        // описание длиннее 64 КБ в UTF-8: DataOutputStream.writeUTF такую строку не записывает
+        char[] chars = new char[40_000];
+        Arrays.fill(chars, 'ж');
+        String description = new String(chars);
+        CrowdDirectory directory = new CrowdDirectory();
+        directory.putGroup(new GroupRecord("developers", description, true));
+        directoryFile.write(directory, "token-1");
+
+        CrowdDirectory restored = new CrowdDirectory();
+        directoryFile.read(restored);
+        assertEquals(description, restored.getGroup("developers").getDescription());
+    }
+
+    @Test
+    public void corruptedStringLengthIsRejected() throws Exception {
+        directoryFile.write(new CrowdDirectory(), "token-1");
+        try (RandomAccessFile file = new RandomAccessFile(directoryFile.getFile(), "rw")) {
+            // длина токена событий следует за сигнатурой и версией
+            file.seek(8);
+            file.writeInt(Integer.MAX_VALUE);
+        }
+        try {
+            directoryFile.read(new CrowdDirectory());
+            fail("corrupted file must be rejected");
+        } catch (IOException e) {
+            assertFalse(e instanceof EOFException);
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.ldap.CrowdDirectory.GroupRecord;
+import amtgroup.devinfra.crowdldap.component.crowd.ldap.CrowdDirectory.UserRecord;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Модель каталога {@link CrowdDirectory}.
+ *
+ * @author Vitaly Ogoltsov
+ */
+public class CrowdDirectoryTest {
+
+    @Test
+    public void copyIsIndependent() {
+        CrowdDirectory directory = new CrowdDirectory();
+        directory.putGroup(new GroupRecord("developers", null, true));
+        directory.putGroup(new GroupRecord("staff", null, true));
+        directory.putUser(new UserRecord("alice", null, null, null, null, true));
+        directory.putUser(new UserRecord("bob", null, null, null, null, true));
+        directory.addMembership("alice", "developers");
+        directory.addMembership("bob", "developers");
+        directory.addGroupMembership("developers", "staff");
+
+        // пакет событий применяется к копии
+        CrowdDirectory copy = directory.copy();
+        copy.removeUser("bob");
+        copy.removeMembership("alice", "developers");
+        copy.removeGroupMembership("developers", "staff");
+        copy.putGroup(new GroupRecord("testers", null, true));
+
+        assertNotNull(directory.getUser("bob"));
+        assertNull(directory.getGroup("testers"));
+        assertEquals(new HashSet<>(Arrays.asList("alice", "bob")), directory.getUserNames("developers"));
+        assertEquals(new HashSet<>(Arrays.asList("staff")), directory.getParentGroupNames("developers"));
+        assertEquals(new HashSet<>(Arrays.asList("developers")), directory.getChildGroupNames("staff"));
+
+        assertNull(copy.getUser("bob"));
+        assertTrue(copy.getUserNames("developers").isEmpty());
+        assertTrue(copy.getParentGroupNames("developers").isEmpty());
+    }
+
+}
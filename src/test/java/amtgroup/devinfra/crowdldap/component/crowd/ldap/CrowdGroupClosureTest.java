@@ -0,0 +1,111 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Транзитивное замыкание вложенности групп {@link CrowdGroupClosure}, в том числе с циклами вложенности.
+ *
+ * @author Vitaly Ogoltsov
+ */
+public class CrowdGroupClosureTest {
+
+    @Test
+    public void nestingWithoutCycles() {
+        // 0 -> 1 -> 2, 3 -> 1
+        CrowdGroupClosure closure = new CrowdGroupClosure(new int[][]{{1}, {2}, {}, {1}});
+        assertArrayEquals(new int[]{1, 2}, closure.ancestors(0));
+        assertArrayEquals(new int[]{2}, closure.ancestors(1));
+        assertArrayEquals(new int[]{}, closure.ancestors(2));
+        assertArrayEquals(new int[]{1, 2}, closure.ancestors(3));
+        assertEquals(0, closure.getCyclicGroupCount());
+    }
+
+    @Test
+    public void groupNestedInItself() {
+        CrowdGroupClosure closure = new CrowdGroupClosure(new int[][]{{0}, {0}});
+        assertArrayEquals(new int[]{}, closure.ancestors(0));
+        assertArrayEquals(new int[]{0}, closure.ancestors(1));
+        assertEquals(1, closure.getCyclicGroupCount());
+    }
+
+    @Test
+    public void cycleMembersIncludeEachOtherButNotThemselves() {
+        // цикл 1 -> 2 -> 3 -> 1, в него вложена группа 0, сам цикл вложен в группу 4
+        CrowdGroupClosure closure = new CrowdGroupClosure(new int[][]{{1}, {2}, {3}, {1, 4}, {}});
+        assertArrayEquals(new int[]{1, 2, 3, 4}, closure.ancestors(0));
+        assertArrayEquals(new int[]{2, 3, 4}, closure.ancestors(1));
+        assertArrayEquals(new int[]{1, 3, 4}, closure.ancestors(2));
+        assertArrayEquals(new int[]{1, 2, 4}, closure.ancestors(3));
+        assertArrayEquals(new int[]{}, closure.ancestors(4));
+        assertEquals(3, closure.getCyclicGroupCount());
+    }
+
+    @Test
+    public void groupReachingCycleComputedEarlier() {
+        // группы цикла 0 <-> 1 обработаны раньше группы 2, которая входит в цикл через группу 1
+        CrowdGroupClosure closure = new CrowdGroupClosure(new int[][]{{1}, {0}, {1}});
+        assertArrayEquals(new int[]{0, 1}, closure.ancestors(2));
+        assertEquals(2, closure.getCyclicGroupCount());
+    }
+
+    @Test
+    public void expandAddsAncestors() {
+        CrowdGroupClosure closure = new CrowdGroupClosure(new int[][]{{1}, {0}, {}, {2}});
+        assertArrayEquals(new int[]{}, closure.expand(new int[]{}));
+        assertArrayEquals(new int[]{0, 1}, closure.expand(new int[]{0}));
+        assertArrayEquals(new int[]{0, 1, 2, 3}, closure.expand(new int[]{0, 3}));
+    }
+
+    @Test
+    public void matchesReachabilityOnRandomGraphs() {
+        Random random = new Random(42);
+        for (int iteration = 0; iteration < 200; iteration++) {
+            int size = 1 + random.nextInt(30);
+            int[][] parents = new int[size][];
+            for (int id = 0; id < size; id++) {
+                TreeSet<Integer> groupParents = new TreeSet<>();
+                for (int i = random.nextInt(4); i > 0; i--) {
+                    groupParents.add(random.nextInt(size));
+                }
+                parents[id] = groupParents.stream().mapToInt(Integer::intValue).toArray();
+            }
+            CrowdGroupClosure closure = new CrowdGroupClosure(parents);
+            int cyclic = 0;
+            for (int id = 0; id < size; id++) {
+                TreeSet<Integer> expected = reachable(parents, id);
+                if (expected.remove(id)) {
+                    cyclic++;
+                }
+                assertArrayEquals(expected.stream().mapToInt(Integer::intValue).toArray(), closure.ancestors(id));
+            }
+            assertEquals(cyclic, closure.getCyclicGroupCount());
+        }
+    }
+
+
+    /**
+     * @return группы, достижимые из группы хотя бы по одной связи вложенности
+     */
+    private static TreeSet<Integer> reachable(int[][] parents, int id) {
+        TreeSet<Integer> reachable = new TreeSet<>();
+        Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(id);
+        while (!queue.isEmpty()) {
+            for (int parent : parents[queue.poll()]) {
+                if (reachable.add(parent)) {
+                    queue.add(parent);
+                }
+            }
+        }
+        return reachable;
+    }
+
+}
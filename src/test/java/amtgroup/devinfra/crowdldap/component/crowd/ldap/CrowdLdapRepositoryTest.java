@@ -0,0 +1,372 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.CrowdLdapTestSchema;
+import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapConfiguration;
+import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapProperties;
+import amtgroup.devinfra.crowdldap.component.crowd.util.CrowdLdapConstants;
+import com.atlassian.crowd.event.Events;
+import com.atlassian.crowd.exception.EventTokenExpiredException;
+import com.atlassian.crowd.model.event.GroupEvent;
+import com.atlassian.crowd.model.event.GroupMembershipEvent;
+import com.atlassian.crowd.model.event.Operation;
+import com.atlassian.crowd.model.event.OperationEvent;
+import com.atlassian.crowd.model.event.UserEvent;
+import com.atlassian.crowd.model.event.UserMembershipEvent;
+import com.atlassian.crowd.model.group.Group;
+import com.atlassian.crowd.model.group.GroupTemplate;
+import com.atlassian.crowd.model.group.Membership;
+import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.model.user.UserTemplate;
+import com.atlassian.crowd.service.client.CrowdClient;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.directory.server.core.DirectoryService;
+import org.apache.directory.shared.ldap.entry.ServerEntry;
+import org.apache.directory.shared.ldap.schema.AttributeType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Полная и инкрементальная синхронизация {@link CrowdLdapRepository} с Crowd:
+ * события пользователей, групп и членств применяются к модели и публикуются новым снимком.
+ *
+ * @author Vitaly Ogoltsov
+ */
+public class CrowdLdapRepositoryTest {
+
+    private CrowdClient crowdClient;
+    private CrowdBindCache bindCache;
+    private ThreadPoolTaskExecutor syncExecutor;
+    private CrowdLdapRepository repository;
+
+    /**
+     * Состояние каталога Crowd, возвращаемое при полной синхронизации.
+     */
+    private final List<Group> groups = new ArrayList<>();
+    private final List<User> users = new ArrayList<>();
+    private final List<Membership> memberships = new ArrayList<>();
+
+
+    @Before
+    public void setUp() throws Exception {
+        CrowdLdapProperties crowdLdapProperties = new CrowdLdapProperties();
+        crowdLdapProperties.setPersistSnapshot(false);
+        crowdLdapProperties.setMemberOfIncludeNested(true);
+        DirectoryService directoryService = mock(DirectoryService.class);
+        when(directoryService.getSchemaManager()).thenReturn(CrowdLdapTestSchema.schemaManager());
+        when(directoryService.getWorkingDirectory()).thenReturn(CrowdLdapTestSchema.workingDirectory());
+        crowdClient = mock(CrowdClient.class);
+        when(crowdClient.getCurrentEventToken()).thenReturn("token-1");
+        when(crowdClient.getMemberships()).thenAnswer(invocation -> memberships);
+        when(crowdClient.searchGroups(any(), anyInt(), anyInt())).thenAnswer(invocation -> groups);
+        when(crowdClient.searchUsers(any(), anyInt(), anyInt())).thenAnswer(invocation -> users);
+        bindCache = mock(CrowdBindCache.class);
+        syncExecutor = new CrowdLdapConfiguration().crowdSyncExecutor(crowdLdapProperties);
+        syncExecutor.initialize();
+        repository = new CrowdLdapRepository(
+                crowdLdapProperties,
+                crowdClient,
+                directoryService,
+                bindCache,
+                syncExecutor,
+                new CrowdLdapMetrics(crowdLdapProperties, new SimpleMeterRegistry())
+        );
+        groups.add(group("developers"));
+        groups.add(group("staff"));
+        users.add(user("alice"));
+        users.add(user("bob"));
+        memberships.add(membership("developers", set("alice", "bob"), set()));
+        memberships.add(membership("staff", set(), set("developers")));
+        repository.sync();
+    }
+
+    @After
+    public void tearDown() {
+        syncExecutor.shutdown();
+    }
+
+
+    @Test
+    public void fullSyncPublishesDirectory() throws Exception {
+        assertEquals(1, repository.getGeneration());
+        assertEquals(2, repository.getGroupCount());
+        assertEquals(2, repository.getUserCount());
+        assertEquals(set("cn=developers,ou=groups,dc=crowd", "cn=staff,ou=groups,dc=crowd"), memberOf("alice"));
+        assertEquals(set("uid=alice,ou=users,dc=crowd", "uid=bob,ou=users,dc=crowd"), members("developers"));
+    }
+
+    @Test
+    public void syncPeakUsedHeapIsSampled() {
+        assertTrue(repository.getSyncPeakUsedHeap() > 0);
+    }
+
+    @Test
+    public void searchSourceIdsMatchIterator() throws Exception {
+        AttributeType uid = CrowdLdapTestSchema.schemaManager().lookupAttributeTypeRegistry(CrowdLdapConstants.USER_ID_AT);
+        CrowdLdapSearchSource source = repository.getSnapshot()
+                .findUserEntries(CrowdLdapTestSchema.filter("(uid=bob)"), entry -> entry.getNormValue(uid, 0).equals("bob"));
+        int[] ids = source.findIds();
+        assertEquals(1, ids.length);
+        assertEquals("bob", source.view(ids[0]).getNormValue(uid, 0));
+        assertEquals(source.iterator().next().getDn(), source.entry(ids[0]).getDn());
+    }
+
+    @Test
+    public void matchingRuleInChainUsesIndex() throws Exception {
+        // значение расширенного сопоставления парсер фильтров передаёт в двоичном виде
+        AtomicInteger checked = new AtomicInteger();
+        CrowdLdapSearchSource staff = repository.getSnapshot().findUserEntries(
+                CrowdLdapTestSchema.filter("(memberOf:1.2.840.113556.1.4.1941:=CN=Staff,OU=Groups,DC=Crowd)"),
+                entry -> checked.incrementAndGet() > 0);
+        assertEquals(2, staff.findIds().length);
+        assertEquals(2, checked.get());
+        // без индекса фильтр проверялся бы для каждого пользователя
+        checked.set(0);
+        CrowdLdapSearchSource testers = repository.getSnapshot().findUserEntries(
+                CrowdLdapTestSchema.filter("(memberOf:1.2.840.113556.1.4.1941:=cn=testers,ou=groups,dc=crowd)"),
+                entry -> checked.incrementAndGet() > 0);
+        assertEquals(0, testers.findIds().length);
+        assertEquals(0, checked.get());
+    }
+
+    @Test
+    public void userEventsAreApplied() throws Exception {
+        User carol = user("carol");
+        events(
+                event(UserEvent.class, Operation.CREATED, e -> when(e.getUser()).thenReturn(carol)),
+                event(UserEvent.class, Operation.DELETED, e -> when(e.getUser()).thenReturn(user("bob")))
+        );
+        repository.sync();
+        assertEquals(2, repository.getGeneration());
+        assertTrue(userEntry("carol").isPresent());
+        assertFalse(userEntry("bob").isPresent());
+        assertEquals(set("uid=alice,ou=users,dc=crowd"), members("developers"));
+        // изменённые и удалённые пользователи должны пройти аутентификацию в Crowd заново
+        verify(bindCache).invalidate("carol");
+        verify(bindCache).invalidate("bob");
+        verify(crowdClient, times(1)).getMemberships();
+    }
+
+    @Test
+    public void groupEventsAreApplied() throws Exception {
+        events(
+                event(GroupEvent.class, Operation.CREATED, e -> when(e.getGroup()).thenReturn(group("testers"))),
+                event(GroupEvent.class, Operation.DELETED, e -> when(e.getGroup()).thenReturn(group("staff")))
+        );
+        repository.sync();
+        assertEquals(2, repository.getGroupCount());
+        assertTrue(groupEntry("testers").isPresent());
+        assertFalse(groupEntry("staff").isPresent());
+        assertEquals(set("cn=developers,ou=groups,dc=crowd"), memberOf("alice"));
+    }
+
+    @Test
+    public void userMembershipEventsAreApplied() throws Exception {
+        events(
+                event(UserMembershipEvent.class, Operation.DELETED, e -> {
+                    when(e.getChildUsername()).thenReturn("bob");
+                    when(e.getParentGroupNames()).thenReturn(set("developers"));
+                }),
+                // событие UPDATED содержит полный список родительских групп пользователя
+                event(UserMembershipEvent.class, Operation.UPDATED, e -> {
+                    when(e.getChildUsername()).thenReturn("alice");
+                    when(e.getParentGroupNames()).thenReturn(set("staff"));
+                })
+        );
+        repository.sync();
+        assertEquals(set(), memberOf("bob"));
+        assertEquals(set("cn=staff,ou=groups,dc=crowd"), memberOf("alice"));
+        assertEquals(set(), members("developers"));
+        assertEquals(set("uid=alice,ou=users,dc=crowd"), members("staff"));
+    }
+
+    @Test
+    public void groupMembershipEventsAreApplied() throws Exception {
+        events(
+                event(GroupMembershipEvent.class, Operation.DELETED, e -> {
+                    when(e.getGroupName()).thenReturn("developers");
+                    when(e.getParentGroupNames()).thenReturn(set("staff"));
+                })
+        );
+        repository.sync();
+        // без вложенности в staff пользователи developers больше не входят в staff
+        assertEquals(set("cn=developers,ou=groups,dc=crowd"), memberOf("alice"));
+        assertEquals(set(), members("staff"));
+        events(
+                event(GroupMembershipEvent.class, Operation.CREATED, e -> {
+                    when(e.getGroupName()).thenReturn("staff");
+                    when(e.getChildGroupNames()).thenReturn(set("developers"));
+                })
+        );
+        repository.sync();
+        assertEquals(set("cn=developers,ou=groups,dc=crowd", "cn=staff,ou=groups,dc=crowd"), memberOf("bob"));
+    }
+
+    @Test
+    public void emptyEventsKeepSnapshot() throws Exception {
+        events();
+        repository.sync();
+        assertEquals(1, repository.getGeneration());
+        verify(crowdClient).getNewEvents("token-1");
+    }
+
+    @Test
+    public void expiredEventTokenFallsBackToFullSync() throws Exception {
+        when(crowdClient.getNewEvents("token-1")).thenThrow(new EventTokenExpiredException());
+        users.add(user("carol"));
+        repository.sync();
+        assertEquals(2, repository.getGeneration());
+        assertTrue(userEntry("carol").isPresent());
+        verify(crowdClient, times(2)).getMemberships();
+    }
+
+    @Test
+    public void unsupportedEventFallsBackToFullSync() throws Exception {
+        events(mock(OperationEvent.class));
+        repository.sync();
+        verify(crowdClient, times(2)).getMemberships();
+        verify(bindCache, never()).invalidate("alice");
+    }
+
+    @Test(timeout = 10_000)
+    public void backgroundSyncAfterRestoreWithSingleSyncThread() throws Exception {
+        CrowdLdapProperties crowdLdapProperties = new CrowdLdapProperties();
+        crowdLdapProperties.setSyncThreads(1);
+        DirectoryService directoryService = mock(DirectoryService.class);
+        when(directoryService.getSchemaManager()).thenReturn(CrowdLdapTestSchema.schemaManager());
+        when(directoryService.getWorkingDirectory()).thenReturn(CrowdLdapTestSchema.newDirectory("crowd-ldap-repository"));
+        ThreadPoolTaskExecutor singleThreadExecutor = new CrowdLdapConfiguration().crowdSyncExecutor(crowdLdapProperties);
+        singleThreadExecutor.initialize();
+        try {
+            // первый запуск синхронизирует каталог и сохраняет модель
+            newRepository(crowdLdapProperties, directoryService, singleThreadExecutor).start();
+            // повторный запуск публикует сохранённую модель и выполняет полную синхронизацию в фоне
+            when(crowdClient.getNewEvents("token-1")).thenThrow(new EventTokenExpiredException());
+            users.add(user("carol"));
+            CrowdLdapRepository restarted = newRepository(crowdLdapProperties, directoryService, singleThreadExecutor);
+            restarted.start();
+            assertEquals(1, restarted.getGeneration());
+            while (restarted.getGeneration() < 2) {
+                Thread.sleep(10);
+            }
+            assertEquals(3, restarted.getUserCount());
+        } finally {
+            singleThreadExecutor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void syncExecutorRequiresThreads() {
+        CrowdLdapProperties crowdLdapProperties = new CrowdLdapProperties();
+        crowdLdapProperties.setSyncThreads(0);
+        new CrowdLdapConfiguration().crowdSyncExecutor(crowdLdapProperties);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void syncPageSizeShouldBePositive() throws Exception {
+        CrowdLdapProperties crowdLdapProperties = new CrowdLdapProperties();
+        crowdLdapProperties.setSyncPageSize(0);
+        DirectoryService directoryService = mock(DirectoryService.class);
+        when(directoryService.getSchemaManager()).thenReturn(CrowdLdapTestSchema.schemaManager());
+        newRepository(crowdLdapProperties, directoryService, syncExecutor);
+    }
+
+
+    private CrowdLdapRepository newRepository(CrowdLdapProperties crowdLdapProperties,
+                                              DirectoryService directoryService,
+                                              ThreadPoolTaskExecutor executor) throws Exception {
+        return new CrowdLdapRepository(
+                crowdLdapProperties,
+                crowdClient,
+                directoryService,
+                bindCache,
+                executor,
+                new CrowdLdapMetrics(crowdLdapProperties, new SimpleMeterRegistry())
+        );
+    }
+
+    private void events(OperationEvent... events) throws Exception {
+        Events result = mock(Events.class);
+        when(result.getEvents()).thenReturn(Arrays.asList(events));
+        when(result.getNewEventToken()).thenReturn("token-" + (repository.getGeneration() + 1));
+        when(crowdClient.getNewEvents("token-" + repository.getGeneration())).thenReturn(result);
+    }
+
+    private static <E extends OperationEvent> E event(Class<E> type, Operation operation, EventSetup<E> setup) throws Exception {
+        E event = mock(type);
+        when(event.getOperation()).thenReturn(operation);
+        setup.apply(event);
+        return event;
+    }
+
+    private Optional<ServerEntry> userEntry(String name) throws Exception {
+        return repository.getSnapshot().findUserEntryById(CrowdLdapTestSchema.dn("uid=" + name + ",ou=users,dc=crowd").getRdn());
+    }
+
+    private Optional<ServerEntry> groupEntry(String name) throws Exception {
+        return repository.getSnapshot().findGroupEntryById(CrowdLdapTestSchema.dn("cn=" + name + ",ou=groups,dc=crowd").getRdn());
+    }
+
+    private Set<String> memberOf(String userName) throws Exception {
+        return CrowdLdapTestSchema.values(userEntry(userName).get(), CrowdLdapConstants.MEMBEROF_AT);
+    }
+
+    private Set<String> members(String groupName) throws Exception {
+        return CrowdLdapTestSchema.values(groupEntry(groupName).get(), CrowdLdapConstants.MEMBER_AT);
+    }
+
+    private static Group group(String name) {
+        GroupTemplate group = new GroupTemplate(name);
+        group.setActive(true);
+        return group;
+    }
+
+    private static User user(String name) {
+        UserTemplate user = new UserTemplate(name);
+        user.setDisplayName(name);
+        user.setActive(true);
+        return user;
+    }
+
+    private static Membership membership(String groupName, Set<String> userNames, Set<String> childGroupNames) {
+        Membership membership = mock(Membership.class);
+        when(membership.getGroupName()).thenReturn(groupName);
+        when(membership.getUserNames()).thenReturn(userNames);
+        when(membership.getChildGroupNames()).thenReturn(childGroupNames);
+        return membership;
+    }
+
+    private static Set<String> set(String... values) {
+        return new TreeSet<>(Arrays.asList(values));
+    }
+
+
+
+    @FunctionalInterface
+    private interface EventSetup<E> {
+
+        void apply(E event) throws Exception;
+
+    }
+
+}
@@ -0,0 +1,52 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.util.CrowdLdapFilter;
+import org.apache.directory.server.core.interceptor.context.SearchOperationContext;
+import org.apache.directory.shared.ldap.entry.ServerEntry;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Учёт времени поиска курсором {@link CrowdLdapSearchCursor}.
+ *
+ * @author Vitaly Ogoltsov
+ */
+public class CrowdLdapSearchCursorTest {
+
+    @Test
+    public void clientThinkTimeIsNotCounted() throws Exception {
+        SearchOperationContext searchContext = mock(SearchOperationContext.class);
+        CrowdLdapSearchLog searchLog = mock(CrowdLdapSearchLog.class);
+        List<ServerEntry> entries = Arrays.asList(mock(ServerEntry.class), mock(ServerEntry.class));
+        List<Supplier<Iterator<ServerEntry>>> sources = Collections.singletonList(entries::iterator);
+        CrowdLdapSearchCursor cursor = new CrowdLdapSearchCursor(searchContext, 1, sources, System.nanoTime(),
+                null, searchLog, new CrowdLdapSearchLog.Candidates(new CrowdLdapFilter.Compilation(Optional.empty(), "(objectClass=*)")));
+
+        assertTrue(cursor.next());
+        // клиент обрабатывает первую страницу результатов
+        Thread.sleep(300);
+        assertTrue(cursor.next());
+        assertFalse(cursor.next());
+        cursor.close();
+
+        ArgumentCaptor<Long> elapsed = ArgumentCaptor.forClass(Long.class);
+        verify(searchLog).record(eq(searchContext), eq("(objectClass=*)"), elapsed.capture(), anyLong(), eq(2L));
+        assertTrue(elapsed.getValue() < TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+}
@@ -0,0 +1,319 @@
+package amtgroup.devinfra.crowdldap.component.crowd.ldap;
+
+import amtgroup.devinfra.crowdldap.component.crowd.CrowdLdapTestSchema;
+import amtgroup.devinfra.crowdldap.component.crowd.util.CrowdLdapEntryView;
+import org.apache.directory.server.core.CoreSession;
+import org.apache.directory.server.core.interceptor.context.SearchOperationContext;
+import org.apache.directory.shared.ldap.codec.controls.ControlImpl;
+import org.apache.directory.shared.ldap.entry.DefaultServerEntry;
+import org.apache.directory.shared.ldap.entry.ServerEntry;
+import org.apache.directory.shared.ldap.exception.LdapOperationException;
+import org.apache.directory.shared.ldap.exception.LdapProtocolErrorException;
+import org.apache.directory.shared.ldap.message.ResultCodeEnum;
+import org.apache.directory.shared.ldap.message.control.Control;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Разбор управляющего элемента сортировки, упорядочение записей и ответ sortResult {@link CrowdLdapSort}.
+ *
+ * @author Vitaly Ogoltsov
+ */
+public class CrowdLdapSortTest {
+
+    private SchemaManager schemaManager;
+    private List<ServerEntry> entries;
+    private int builtEntries;
+
+
+    @Before
+    public void setUp() throws Exception {
+        schemaManager = CrowdLdapTestSchema.schemaManager();
+        entries = Arrays.asList(
+                user("carol", "Carol", "carol@example.com"),
+                user("alice", "alice", null),
+                user("bob", "Bob", "bob@example.com"),
+                user("dave", "Alice", "dave@example.com")
+        );
+    }
+
+
+    @Test
+    public void decodeSortKeys() throws Exception {
+        List<CrowdLdapSort.RequestedKey> keys = CrowdLdapSort.decode(keyList(
+                key("cn", "caseExactOrderingMatch", true),
+                key("uid", null, false)
+        ));
+        assertEquals(2, keys.size());
+        assertEquals("cn", keys.get(0).attributeId);
+        assertEquals("caseExactOrderingMatch", keys.get(0).orderingRuleId);
+        assertTrue(keys.get(0).reverseOrder);
+        assertEquals("uid", keys.get(1).attributeId);
+        assertNull(keys.get(1).orderingRuleId);
+        assertFalse(keys.get(1).reverseOrder);
+    }
+
+    @Test
+    public void decodeLongFormLength() throws Exception {
+        char[] chars = new char[200];
+        Arrays.fill(chars, 'a');
+        List<CrowdLdapSort.RequestedKey> keys = CrowdLdapSort.decode(keyList(key(new String(chars), null, false)));
+        assertEquals(200, keys.get(0).attributeId.length());
+    }
+
+    @Test
+    public void malformedValuesAreProtocolErrors() throws Exception {
+        byte[] valid = keyList(key("cn", null, false));
+        assertProtocolError(null);
+        assertProtocolError(new byte[0]);
+        // усечённое значение
+        for (int length = 1; length < valid.length; length++) {
+            assertProtocolError(Arrays.copyOf(valid, length));
+        }
+        // лишние данные после списка ключей
+        assertProtocolError(Arrays.copyOf(valid, valid.length + 1));
+        // длина больше значения
+        assertProtocolError(new byte[]{0x30, 0x7F, 0x30, 0x04, 0x04, 0x02, 'c', 'n'});
+        assertProtocolError(new byte[]{0x30, (byte) 0x84, 0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF});
+        // неопределённая длина
+        assertProtocolError(new byte[]{0x30, (byte) 0x80, 0x00, 0x00});
+        // неожиданный тег и пустой список ключей
+        assertProtocolError(new byte[]{0x31, 0x00});
+        assertProtocolError(new byte[]{0x30, 0x00});
+        assertProtocolError(keyList(tlv(0x30, tlv(0x04, "cn".getBytes(StandardCharsets.UTF_8)), tlv(0x82, new byte[]{1}))));
+        // reverseOrder не из одного байта
+        assertProtocolError(keyList(tlv(0x30, tlv(0x04, "cn".getBytes(StandardCharsets.UTF_8)), tlv(0x81, new byte[0]))));
+    }
+
+    @Test
+    public void malformedControlFailsSearch() throws Exception {
+        SearchOperationContext searchContext = searchContext(new byte[]{0x30, 0x05, 0x30}, false);
+        try {
+            CrowdLdapSort.of(searchContext, schemaManager);
+            fail("malformed sort control must be rejected");
+        } catch (LdapProtocolErrorException e) {
+            assertEquals(ResultCodeEnum.PROTOCOL_ERROR, e.getResultCode());
+        }
+    }
+
+    @Test
+    public void sortByNormalizedValues() throws Exception {
+        SearchOperationContext searchContext = searchContext(keyList(key("cn", null, false), key("uid", null, false)), false);
+        assertEquals(Arrays.asList("alice", "dave", "bob", "carol"), sort(searchContext));
+        assertSortResult(searchContext, ResultCodeEnum.SUCCESS, null);
+    }
+
+    @Test
+    public void sortInReverseOrderWithMissingValues() throws Exception {
+        // записи без значения атрибута следуют за остальными при сортировке по возрастанию
+        assertEquals(Arrays.asList("bob", "carol", "dave", "alice"),
+                sort(searchContext(keyList(key("mail", null, false)), false)));
+        // и предшествуют им при сортировке по убыванию
+        assertEquals(Arrays.asList("alice", "dave", "carol", "bob"),
+                sort(searchContext(keyList(key("mail", null, true)), false)));
+    }
+
+    @Test
+    public void sortByOrderingRule() throws Exception {
+        // caseExactOrderingMatch различает регистр: прописные буквы предшествуют строчным
+        SearchOperationContext searchContext = searchContext(keyList(key("cn", "caseExactOrderingMatch", false)), false);
+        assertEquals(Arrays.asList("dave", "bob", "carol", "alice"), sort(searchContext));
+        assertSortResult(searchContext, ResultCodeEnum.SUCCESS, null);
+    }
+
+    @Test
+    public void entriesAreBuiltWhileReading() throws Exception {
+        SearchOperationContext searchContext = searchContext(keyList(key("uid", null, false)), false);
+        List<Supplier<Iterator<ServerEntry>>> results = CrowdLdapSort.of(searchContext, schemaManager).get()
+                .sort(Collections.singletonList(source(entries)));
+        assertEquals(1, results.size());
+        assertEquals(0, builtEntries);
+        Iterator<ServerEntry> iterator = results.get(0).get();
+        assertEquals("alice", iterator.next().get("uid").getString());
+        assertEquals(1, builtEntries);
+    }
+
+    @Test
+    public void sortMergesSources() throws Exception {
+        SearchOperationContext searchContext = searchContext(keyList(key("uid", null, true)), false);
+        List<Supplier<Iterator<ServerEntry>>> results = CrowdLdapSort.of(searchContext, schemaManager).get().sort(Arrays.asList(
+                source(entries.subList(0, 2)),
+                CrowdLdapSearchSource.EMPTY,
+                CrowdLdapSearchSource.of(entries.get(2), e -> true),
+                CrowdLdapSearchSource.of(entries.get(3), e -> false)
+        ));
+        assertEquals(Arrays.asList("carol", "bob", "alice"), uids(results));
+    }
+
+    @Test
+    public void unknownAttributeReturnsUnsortedResults() throws Exception {
+        SearchOperationContext searchContext = searchContext(keyList(key("noSuchAttribute", null, false)), false);
+        assertFalse(CrowdLdapSort.of(searchContext, schemaManager).isPresent());
+        assertSortResult(searchContext, ResultCodeEnum.NO_SUCH_ATTRIBUTE, "noSuchAttribute");
+    }
+
+    @Test
+    public void unknownOrderingRuleReturnsUnsortedResults() throws Exception {
+        SearchOperationContext searchContext = searchContext(keyList(key("cn", "noSuchOrderingMatch", false)), false);
+        assertFalse(CrowdLdapSort.of(searchContext, schemaManager).isPresent());
+        assertSortResult(searchContext, ResultCodeEnum.INAPPROPRIATE_MATCHING, "cn");
+    }
+
+    @Test
+    public void criticalControlFailsSearchWhenSortIsUnavailable() throws Exception {
+        try {
+            CrowdLdapSort.of(searchContext(keyList(key("cn", "noSuchOrderingMatch", false)), true), schemaManager);
+            fail("critical sort control must fail the search");
+        } catch (LdapOperationException e) {
+            assertEquals(ResultCodeEnum.UNAVAILABLE_CRITICAL_EXTENSION, e.getResultCode());
+        }
+    }
+
+    @Test
+    public void sortResultEncoding() {
+        assertArrayEquals(new byte[]{0x30, 0x03, 0x0A, 0x01, 0x00},
+                CrowdLdapSort.result(ResultCodeEnum.SUCCESS, null).getValue());
+        assertArrayEquals(new byte[]{0x30, 0x07, 0x0A, 0x01, 0x12, (byte) 0x80, 0x02, 'c', 'n'},
+                CrowdLdapSort.result(ResultCodeEnum.INAPPROPRIATE_MATCHING, "cn").getValue());
+    }
+
+
+    private List<String> sort(SearchOperationContext searchContext) throws Exception {
+        return uids(CrowdLdapSort.of(searchContext, schemaManager).get()
+                .sort(Collections.singletonList(source(entries))));
+    }
+
+    private static List<String> uids(List<Supplier<Iterator<ServerEntry>>> results) throws Exception {
+        List<String> uids = new ArrayList<>();
+        for (Supplier<Iterator<ServerEntry>> result : results) {
+            for (Iterator<ServerEntry> iterator = result.get(); iterator.hasNext(); ) {
+                uids.add(iterator.next().get("uid").getString());
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * @return источник, который, как и набор записей, отдаёт представления без построения записей
+     */
+    private CrowdLdapSearchSource source(List<ServerEntry> sourceEntries) {
+        return new CrowdLdapSearchSource() {
+
+            @Override
+            public Iterator<ServerEntry> iterator() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int[] findIds() {
+                int[] ids = new int[sourceEntries.size()];
+                for (int id = 0; id < ids.length; id++) {
+                    ids[id] = id;
+                }
+                return ids;
+            }
+
+            @Override
+            public CrowdLdapEntryView view(int id) {
+                return CrowdLdapEntryView.of(sourceEntries.get(id));
+            }
+
+            @Override
+            public ServerEntry entry(int id) {
+                builtEntries++;
+                return sourceEntries.get(id);
+            }
+
+        };
+    }
+
+    private ServerEntry user(String uid, String cn, String mail) throws Exception {
+        ServerEntry entry = new DefaultServerEntry(schemaManager, CrowdLdapTestSchema.dn("uid=" + uid + ",ou=users,dc=crowd"));
+        entry.put("uid", uid);
+        entry.put("cn", cn);
+        if (mail != null) {
+            entry.put("mail", mail);
+        }
+        return entry;
+    }
+
+    private static SearchOperationContext searchContext(byte[] value, boolean critical) {
+        ControlImpl control = new ControlImpl(CrowdLdapSort.SORT_REQUEST_CONTROL_OID);
+        control.setValue(value);
+        control.setCritical(critical);
+        SearchOperationContext searchContext = new SearchOperationContext((CoreSession) null);
+        searchContext.addRequestControl(control);
+        return searchContext;
+    }
+
+    private static void assertSortResult(SearchOperationContext searchContext, ResultCodeEnum resultCode, String attributeId) {
+        Control control = searchContext.getResponseControl(CrowdLdapSort.SORT_RESPONSE_CONTROL_OID);
+        assertArrayEquals(CrowdLdapSort.result(resultCode, attributeId).getValue(), control.getValue());
+    }
+
+    private static void assertProtocolError(byte[] value) {
+        try {
+            CrowdLdapSort.decode(value);
+            fail("value " + Arrays.toString(value) + " must be rejected");
+        } catch (LdapProtocolErrorException e) {
+            // ожидаемый результат
+        }
+    }
+
+    private static byte[] keyList(byte[]... keys) {
+        return tlv(0x30, keys);
+    }
+
+    private static byte[] key(String attributeId, String orderingRuleId, boolean reverseOrder) {
+        List<byte[]> elements = new ArrayList<>();
+        elements.add(tlv(0x04, attributeId.getBytes(StandardCharsets.UTF_8)));
+        if (orderingRuleId != null) {
+            elements.add(tlv(0x80, orderingRuleId.getBytes(StandardCharsets.UTF_8)));
+        }
+        if (reverseOrder) {
+            elements.add(tlv(0x81, new byte[]{(byte) 0xFF}));
+        }
+        return tlv(0x30, elements.toArray(new byte[0][]));
+    }
+
+    private static byte[] tlv(int tag, byte[]... values) {
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        for (byte[] element : values) {
+            value.write(element, 0, element.length);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(tag);
+        int length = value.size();
+        if (length < 0x80) {
+            out.write(length);
+        } else if (length < 0x100) {
+            out.write(0x81);
+            out.write(length);
+        } else {
+            out.write(0x82);
+            out.write(length >> 8);
+            out.write(length);
+        }
+        byte[] bytes = value.toByteArray();
+        out.write(bytes, 0, bytes.length);
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,215 @@
+package amtgroup.devinfra.crowdldap.component.crowd.util;
+
+import amtgroup.devinfra.crowdldap.component.crowd.CrowdLdapTestSchema;
+import amtgroup.devinfra.crowdldap.component.crowd.config.CrowdLdapProperties;
+import org.apache.directory.shared.ldap.constants.SchemaConstants;
+import org.apache.directory.shared.ldap.entry.DefaultServerEntry;
+import org.apache.directory.shared.ldap.entry.ServerEntry;
+import org.apache.directory.shared.ldap.filter.ExprNode;
+import org.apache.directory.shared.ldap.schema.AttributeType;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Компиляция и проверка фильтров {@link CrowdLdapFilter} по записи пользователя.
+ *
+ * @author Vitaly Ogoltsov
+ */
+public class CrowdLdapFilterTest {
+
+    private SchemaManager schemaManager;
+    private CrowdLdapFilter crowdLdapFilter;
+    private CrowdLdapEntryView user;
+
+
+    @Before
+    public void setUp() throws Exception {
+        schemaManager = CrowdLdapTestSchema.schemaManager();
+        CrowdLdapProperties crowdLdapProperties = new CrowdLdapProperties();
+        crowdLdapProperties.setFilterCacheSize(2);
+        crowdLdapFilter = new CrowdLdapFilter(crowdLdapProperties, schemaManager);
+        ServerEntry entry = new DefaultServerEntry(schemaManager, CrowdLdapTestSchema.dn("uid=jdoe,ou=users,dc=crowd"));
+        entry.put(SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.TOP_OC, SchemaConstants.PERSON_OC,
+                SchemaConstants.ORGANIZATIONAL_PERSON_OC, SchemaConstants.INET_ORG_PERSON_OC);
+        entry.put(SchemaConstants.UID_AT, "jdoe");
+        entry.put(SchemaConstants.CN_AT, "John Doe");
+        entry.put(SchemaConstants.SN_AT, "Doe");
+        entry.put("mail", "John.Doe@Example.com");
+        entry.put(CrowdLdapConstants.MEMBEROF_AT, "cn=developers,ou=groups,dc=crowd");
+        user = withChain(CrowdLdapEntryView.of(entry), CrowdLdapConstants.MEMBEROF_AT,
+                "cn=developers,ou=groups,dc=crowd", "cn=staff,ou=groups,dc=crowd");
+    }
+
+
+    @Test
+    public void equalityIgnoresCase() throws Exception {
+        assertTrue(matches("(uid=JDOE)"));
+        assertTrue(matches("(mail=john.doe@example.com)"));
+        assertFalse(matches("(uid=jdoe2)"));
+        assertTrue(matches("(memberOf=CN=Developers,OU=Groups,DC=Crowd)"));
+    }
+
+    @Test
+    public void presence() throws Exception {
+        assertTrue(matches("(mail=*)"));
+        assertTrue(matches("(objectClass=inetOrgPerson)"));
+        assertFalse(matches("(telephoneNumber=*)"));
+    }
+
+    @Test
+    public void ordering() throws Exception {
+        assertTrue(matches("(uid>=jd)"));
+        assertFalse(matches("(uid>=je)"));
+        assertTrue(matches("(uid<=je)"));
+        assertFalse(matches("(uid<=jc)"));
+    }
+
+    @Test
+    public void substring() throws Exception {
+        assertTrue(matches("(cn=jo*)"));
+        assertTrue(matches("(cn=*DOE)"));
+        assertTrue(matches("(cn=*hn d*)"));
+        assertTrue(matches("(cn=j*n*d*e)"));
+        assertFalse(matches("(cn=doe*)"));
+        assertFalse(matches("(cn=*john)"));
+        // начало и конец условия не должны перекрываться
+        assertFalse(matches("(cn=john*ohn doe)"));
+        assertFalse(matches("(cn=j*x*e)"));
+    }
+
+    @Test
+    public void booleanOperators() throws Exception {
+        assertTrue(matches("(&(uid=jdoe)(sn=doe))"));
+        assertFalse(matches("(&(uid=jdoe)(sn=smith))"));
+        assertTrue(matches("(|(uid=other)(sn=doe))"));
+        assertFalse(matches("(|(uid=other)(sn=smith))"));
+        assertFalse(matches("(!(uid=jdoe))"));
+        assertTrue(matches("(!(uid=other))"));
+        assertTrue(matches("(!(telephoneNumber=*))"));
+        assertTrue(matches("(&(objectClass=person)(!(|(uid=other)(cn=x*)))(cn=*doe))"));
+        assertFalse(matches("(!(&(objectClass=person)(cn=*doe)))"));
+    }
+
+    @Test
+    public void matchingRuleInChain() throws Exception {
+        // прямое членство
+        assertTrue(matches("(memberOf:1.2.840.113556.1.4.1941:=cn=developers,ou=groups,dc=crowd)"));
+        // членство через вложенную группу проверяется только правилом LDAP_MATCHING_RULE_IN_CHAIN
+        assertTrue(matches("(memberOf:1.2.840.113556.1.4.1941:=CN=Staff,OU=Groups,DC=Crowd)"));
+        assertFalse(matches("(memberOf=cn=staff,ou=groups,dc=crowd)"));
+        assertFalse(matches("(memberOf:1.2.840.113556.1.4.1941:=cn=testers,ou=groups,dc=crowd)"));
+        assertTrue(matches("(!(memberOf:1.2.840.113556.1.4.1941:=cn=testers,ou=groups,dc=crowd))"));
+    }
+
+    @Test
+    public void extensibleMatchWithAttributeEquality() throws Exception {
+        assertTrue(matches("(uid:caseIgnoreMatch:=JDoe)"));
+        assertFalse(matches("(uid:caseExactMatch:=JDoe)"));
+        assertTrue(matches("(uid:caseExactMatch:=jdoe)"));
+    }
+
+    @Test
+    public void compiledFiltersAreCachedInLeastRecentlyUsedOrder() throws Exception {
+        Predicate<CrowdLdapEntryView> a = compile("(uid=a)");
+        Predicate<CrowdLdapEntryView> b = compile("(uid=b)");
+        assertSame(a, compile("(uid=a)"));
+        // размер кеша - 2, вытесняется фильтр, использованный раньше других
+        compile("(uid=c)");
+        assertSame(a, compile("(uid=a)"));
+        assertNotSame(b, compile("(uid=b)"));
+    }
+
+    @Test
+    public void concurrentSearchesShareCompiledFilter() throws Exception {
+        ExprNode filter = CrowdLdapTestSchema.filter("(uid=jdoe)");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<CrowdLdapFilter.Compilation>> compilations = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                compilations.add(executor.submit(() -> crowdLdapFilter.of(filter)));
+            }
+            CrowdLdapFilter.Compilation expected = compilations.get(0).get();
+            for (Future<CrowdLdapFilter.Compilation> compilation : compilations) {
+                assertSame(expected, compilation.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void equivalentFiltersShareCompiledFilter() throws Exception {
+        assertSame(compile("(uid=JDOE)"), compile("(UID=jdoe)"));
+    }
+
+    @Test
+    public void shapeReplacesValues() throws Exception {
+        assertEquals("(&(uid=?)(cn=?*?*?)(|(mail=*)(!(sn>=?))))",
+                crowdLdapFilter.of(CrowdLdapTestSchema.filter("(&(UID=jdoe)(2.5.4.3=J*o*e)(|(mail=*)(!(sn>=D))))")).getShape());
+        assertEquals("(uid=?)", crowdLdapFilter.of(CrowdLdapTestSchema.filter("(uid=jsmith)")).getShape());
+    }
+
+
+    private boolean matches(String filter) throws Exception {
+        return compile(filter).test(user);
+    }
+
+    private Predicate<CrowdLdapEntryView> compile(String filter) throws Exception {
+        return crowdLdapFilter.of(CrowdLdapTestSchema.filter(filter)).getPredicate()
+                .orElseThrow(() -> new AssertionError("filter " + filter + " is not constrained"));
+    }
+
+    /**
+     * @return представление записи, у которой значения атрибута связи с учётом вложенных групп заданы явно
+     */
+    private CrowdLdapEntryView withChain(CrowdLdapEntryView entry, String attributeId, String... chainValues) throws Exception {
+        AttributeType chainAttributeType = schemaManager.lookupAttributeTypeRegistry(attributeId);
+        String[] normalized = new String[chainValues.length];
+        for (int i = 0; i < chainValues.length; i++) {
+            normalized[i] = chainAttributeType.getEquality().getNormalizer().normalize(chainValues[i]);
+        }
+        return new CrowdLdapEntryView() {
+
+            @Override
+            public int size(AttributeType attributeType) {
+                return entry.size(attributeType);
+            }
+
+            @Override
+            public String getNormValue(AttributeType attributeType, int index) {
+                return entry.getNormValue(attributeType, index);
+            }
+
+            @Override
+            public String getUpValue(AttributeType attributeType, int index) {
+                return entry.getUpValue(attributeType, index);
+            }
+
+            @Override
+            public int getChainSize(AttributeType attributeType) {
+                return attributeType.equals(chainAttributeType) ? normalized.length : size(attributeType);
+            }
+
+            @Override
+            public String getChainNormValue(AttributeType attributeType, int index) {
+                return attributeType.equals(chainAttributeType) ? normalized[index] : getNormValue(attributeType, index);
+            }
+
+        };
+    }
+
+}